@@ -0,0 +1,452 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import emu6502.jmh.Workload;
+
+/**
+ * Workloads of the JMH benchmarks of emu6502.jmh: the programs, kernels
+ * and memory layouts they run. Workloads running the cpu run CYCLES
+ * cycles per operation, so that operations per second are emulated MHz.
+ */
+public final class JmhWorkloads {
+
+	public static final int CYCLES = 1000000;
+
+	private static final int START = 0x8000;
+
+	/*
+	 * Small loop mixing loads, stores, arithmetic, a forward branch and a
+	 * subroutine call
+	 */
+	private static final int[] LOOP = {
+		0xA2, 0x00,       // 8000 LDX #$00
+		0xA0, 0x10,       // 8002 LDY #$10
+		0xB5, 0x20,       // 8004 LDA $20,X
+		0x18,             // 8006 CLC
+		0x69, 0x07,       // 8007 ADC #$07
+		0x95, 0x20,       // 8009 STA $20,X
+		0xE8,             // 800B INX
+		0x8A,             // 800C TXA
+		0x29, 0x0F,       // 800D AND #$0F
+		0xAA,             // 800F TAX
+		0x88,             // 8010 DEY
+		0xD0, 0x02,       // 8011 BNE $8015
+		0xA0, 0x10,       // 8013 LDY #$10
+		0x20, 0x00, 0x90, // 8015 JSR $9000
+		0x4C, 0x04, 0x80  // 8018 JMP $8004
+	};
+	private static final int[] SUBROUTINE = {
+		0xE6, 0x30,       // 9000 INC $30
+		0x60              // 9002 RTS
+	};
+
+	/*
+	 * Kernels: instructions of one opcode family or addressing mode,
+	 * repeated KERNEL_REPEAT times in a loop. Memory holds a pointer to
+	 * $0300 at $20 for the indexed indirect modes, and one to the closing
+	 * JMP of the loop at $0300 for JMP (ind).
+	 */
+	private static final int KERNEL_REPEAT = 32;
+	private static final String[] FAMILIES = {
+		"load", "store", "alu", "shift", "incdec", "transfer", "flags", "stack", "branch", "jump", "decimal", "adcsbc"
+	};
+	private static final int[][] FAMILY_KERNELS = {
+		{ 0xA9, 0x01, 0xA2, 0x02, 0xA0, 0x03 },                   // LDA # LDX # LDY #
+		{ 0x85, 0x20, 0x86, 0x21, 0x84, 0x22 },                   // STA zp STX zp STY zp
+		{ 0x69, 0x01, 0xE9, 0x01, 0x29, 0xFF, 0x09, 0x01, 0x49, 0x01, 0xC9, 0x01, 0x24, 0x20 },
+		{ 0x0A, 0x4A, 0x2A, 0x6A, 0x06, 0x30 },                   // ASL LSR ROL ROR ASL zp
+		{ 0xE8, 0xC8, 0xCA, 0x88, 0xE6, 0x30, 0xC6, 0x30 },       // INX INY DEX DEY INC DEC
+		{ 0xAA, 0x8A, 0x98, 0xBA, 0x9A },                         // TAX TXA TYA TSX TXS
+		{ 0x18, 0x38, 0xD8, 0x58, 0xB8 },                         // CLC SEC CLD CLI CLV
+		{ 0x48, 0x68, 0x08, 0x28 },                               // PHA PLA PHP PLP
+		{ 0xD0, 0x00, 0xF0, 0x00, 0x10, 0x00, 0x30, 0x00 },       // taken and untaken branches
+		{ 0x20, 0x00, 0x90 },                                     // JSR $9000, RTS
+		{ 0xF8, 0x18, 0x69, 0x01, 0x38, 0xE9, 0x01, 0xD8 },       // SED CLC ADC SEC SBC CLD
+		{ 0x69, 0x37, 0x69, 0xC9, 0xE9, 0x11, 0xE9, 0x25 }        // ADC # ADC # SBC # SBC #
+	};
+	private static final String[] MODES = {
+		"IMM", "ZP", "ZPX", "ZPY", "IZX", "IZY", "ABS", "ABSX", "ABSY", "IND", "REL", "ACC", "NONE"
+	};
+	private static final int[][] MODE_KERNELS = {
+		{ 0xA9, 0x01 },             // LDA #$01
+		{ 0xA5, 0x20 },             // LDA $20
+		{ 0xB5, 0x20 },             // LDA $20,X
+		{ 0xB6, 0x20 },             // LDX $20,Y
+		{ 0xA1, 0x20 },             // LDA ($20,X)
+		{ 0xB1, 0x20 },             // LDA ($20),Y
+		{ 0xAD, 0x00, 0x03 },       // LDA $0300
+		{ 0xBD, 0x00, 0x03 },       // LDA $0300,X
+		{ 0xB9, 0x00, 0x03 },       // LDA $0300,Y
+		{ 0x6C, 0x00, 0x03 },       // JMP ($0300)
+		{ 0xD0, 0x00 },             // BNE *+2
+		{ 0x0A },                   // ASL A
+		{ 0xEA }                    // NOP
+	};
+
+	/*
+	 * Raw page table accesses: read-modify-write of every byte of the
+	 * address space in a scattered order, in the int[] pages memory used to
+	 * be made of, in byte[] pages and in a direct buffer
+	 */
+	public static final int PASSES = 200;
+	private static final int STRIDE = 40503;
+
+	/*
+	 * readByte() and writeByte() through the page table: 2KB of RAM, its
+	 * mirrors, RAM without mirror and the I/O registers
+	 */
+	private static final String[] BUS_AREAS = { "ram", "mirror", "page", "io" };
+	private static final int[] BUS_FIRST = { 0x0000, 0x0800, 0x6000, 0x2000 };
+	public static final int BUS_SIZE = 0x800;
+
+	private static final int IMAGE_SIZE = 0x4000;
+	//cpus created and loaded by the farm in one operation
+	public static final int FARM_LOADS = 2000;
+
+	private JmhWorkloads() {
+	}
+
+	private static Cpu6502.Core core(String name) {
+		return Cpu6502.Core.valueOf(name);
+	}
+
+	private static int indexOf(String[] names, String name) {
+		for(int i = 0; i < names.length; i++)
+			if(names[i].equals(name))
+				return i;
+		throw new IllegalArgumentException(name);
+	}
+
+	public static Workload create(String name, String[] params) throws IOException {
+		if(name.equals("loop"))
+			return cycles(loopCpu(core(params[0]), Cpu6502.MemoryBackend.valueOf(params[1])));
+		if(name.equals("family"))
+			return cycles(kernelCpu(core(params[0]), FAMILY_KERNELS[indexOf(FAMILIES, params[1])]));
+		if(name.equals("mode"))
+			return cycles(kernelCpu(core(params[0]), MODE_KERNELS[indexOf(MODES, params[1])]));
+		if(name.equals("program"))
+			return program(core(params[0]), params[1]);
+		if(name.equals("bus"))
+			return bus(Cpu6502.MemoryBackend.valueOf(params[0]), BUS_FIRST[indexOf(BUS_AREAS, params[1])]);
+		if(name.equals("memory"))
+			return memory(params[0]);
+		if(name.equals("snapshot"))
+			return snapshot(params[0]);
+		if(name.equals("load"))
+			return load(params[0]);
+		if(name.equals("construct"))
+			return construct(core(params[0]), Cpu6502.Variant.valueOf(params[1]),
+					Cpu6502.MemoryBackend.valueOf(params[2]));
+		if(name.equals("first"))
+			return first();
+		if(name.equals("startup"))
+			return startup(params[0]);
+		throw new IllegalArgumentException(name);
+	}
+
+	private static Cpu6502 loopCpu(Cpu6502.Core core, Cpu6502.MemoryBackend backend) {
+		Cpu6502 cpu = new Cpu6502(START, core, backend);
+		for(int i = 0; i < LOOP.length; i++)
+			cpu.writeByte(START+i, LOOP[i]);
+		for(int i = 0; i < SUBROUTINE.length; i++)
+			cpu.writeByte(0x9000+i, SUBROUTINE[i]);
+		return cpu;
+	}
+
+	private static Cpu6502 kernelCpu(Cpu6502.Core core, int[] kernel) {
+		Cpu6502 cpu = new Cpu6502(START, core);
+		int addr = START;
+		for(int i = 0; i < KERNEL_REPEAT; i++)
+			for(int b : kernel)
+				cpu.writeByte(addr++, b);
+		cpu.writeByte(0x0300, addr&0xFF);
+		cpu.writeByte(0x0301, addr>>8);
+		cpu.writeByte(addr++, 0x4C);
+		cpu.writeByte(addr++, START&0xFF);
+		cpu.writeByte(addr, START>>8);
+		for(int i = 0; i < SUBROUTINE.length; i++)
+			cpu.writeByte(0x9000+i, SUBROUTINE[i]);
+		cpu.writeByte(0x20, 0x00);
+		cpu.writeByte(0x21, 0x03);
+		return cpu;
+	}
+
+	private static Workload cycles(final Cpu6502 cpu) {
+		return new Workload() {
+			public long run() {
+				Cpu6502.RunStatus status = cpu.run(CYCLES);
+				if(status.getReason() != Cpu6502.StopReason.CYCLE_LIMIT)
+					throw new IllegalStateException(status.toString());
+				return status.getCycles();
+			}
+		};
+	}
+
+	/**
+	 * Run a program file loaded like Emu6502 does, or the loop, from a
+	 * fork of the loaded cpu, forked again when the program halts
+	 */
+	private static Workload program(Cpu6502.Core core, String fileName) throws IOException {
+		final Cpu6502 loaded = fileName.equals("loop") ? loopCpu(core, Cpu6502.MemoryBackend.BYTE_ARRAY) :
+			Emu6502.loadProgram(fileName, core);
+		return new Workload() {
+			private Cpu6502 cpu = loaded.fork();
+
+			public long run() {
+				Cpu6502.RunStatus status = cpu.run(CYCLES);
+				if(status.getReason() != Cpu6502.StopReason.CYCLE_LIMIT)
+					cpu = loaded.fork();
+				return status.getCycles();
+			}
+		};
+	}
+
+	private static Workload bus(Cpu6502.MemoryBackend backend, final int first) {
+		final Cpu6502 cpu = new Cpu6502(START, Cpu6502.Core.INSTRUCTION, backend);
+		return new Workload() {
+			public long run() {
+				int sum = 0;
+				for(int pass = 0; pass < PASSES; pass++) {
+					for(int i = 0; i < BUS_SIZE; i++) {
+						int val = cpu.readByte(first+i);
+						cpu.writeByte(first+i, val+1);
+						sum += val;
+					}
+				}
+				return sum;
+			}
+		};
+	}
+
+	private static Workload memory(String layout) {
+		if(layout.equals("int")) {
+			final int[][] pages = new int[256][256];
+			return new Workload() {
+				public long run() {
+					int sum = 0;
+					for(int pass = 0; pass < PASSES; pass++) {
+						for(int i = 0; i < 0x10000; i++) {
+							int addr = (i*STRIDE)&0xFFFF;
+							int[] page = pages[addr>>8];
+							int val = page[addr&0xFF];
+							page[addr&0xFF] = (val+1)&0xFF;
+							sum += val;
+						}
+					}
+					return sum;
+				}
+			};
+		}
+		if(layout.equals("byte")) {
+			final byte[][] pages = new byte[256][256];
+			return new Workload() {
+				public long run() {
+					int sum = 0;
+					for(int pass = 0; pass < PASSES; pass++) {
+						for(int i = 0; i < 0x10000; i++) {
+							int addr = (i*STRIDE)&0xFFFF;
+							byte[] page = pages[addr>>8];
+							int val = page[addr&0xFF]&0xFF;
+							page[addr&0xFF] = (byte)(val+1);
+							sum += val;
+						}
+					}
+					return sum;
+				}
+			};
+		}
+		if(layout.equals("direct")) {
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(0x10000);
+			return new Workload() {
+				public long run() {
+					int sum = 0;
+					for(int pass = 0; pass < PASSES; pass++) {
+						for(int i = 0; i < 0x10000; i++) {
+							int addr = (i*STRIDE)&0xFFFF;
+							int val = buffer.get(addr)&0xFF;
+							buffer.put(addr, (byte)(val+1));
+							sum += val;
+						}
+					}
+					return sum;
+				}
+			};
+		}
+		throw new IllegalArgumentException(layout);
+	}
+
+	private static Workload snapshot(String operation) throws IOException {
+		final Cpu6502 cpu = loopCpu(Cpu6502.Core.INSTRUCTION, Cpu6502.MemoryBackend.BYTE_ARRAY);
+		cpu.run(100000);
+		final Cpu6502.Snapshot snapshot = cpu.snapshot();
+		if(operation.equals("snapshot")) {
+			return new Workload() {
+				public long run() {
+					return cpu.snapshot().size();
+				}
+			};
+		}
+		if(operation.equals("restore")) {
+			return new Workload() {
+				public long run() {
+					cpu.restore(snapshot);
+					return cpu.getPC();
+				}
+			};
+		}
+		if(operation.equals("fork")) {
+			return new Workload() {
+				private int count;
+
+				public long run() {
+					//a child touching a few pages: stack, zero page and one more
+					Cpu6502 child = cpu.fork();
+					child.writeByte(0x0010, count);
+					child.writeByte(0x01FF, count);
+					child.writeByte(0x6000, count++);
+					return child.getPC();
+				}
+			};
+		}
+		if(operation.equals("save") || operation.equals("read")) {
+			File file = File.createTempFile("bench6502", ".snapshot");
+			file.deleteOnExit();
+			final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+			snapshot.writeTo(channel);
+			if(operation.equals("save")) {
+				return new Workload() {
+					public long run() throws IOException {
+						channel.position(0);
+						cpu.snapshot().writeTo(channel);
+						return channel.position();
+					}
+				};
+			}
+			return new Workload() {
+				public long run() throws IOException {
+					channel.position(0);
+					cpu.restore(Cpu6502.Snapshot.readFrom(channel));
+					return cpu.getPC();
+				}
+			};
+		}
+		throw new IllegalArgumentException(operation);
+	}
+
+	private static Workload load(String method) throws IOException {
+		final File file = File.createTempFile("bench6502", ".bin");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[IMAGE_SIZE]);
+		out.close();
+		final Cpu6502 cpu = new Cpu6502(START);
+		if(method.equals("stream")) {
+			return new Workload() {
+				public long run() throws IOException {
+					FileInputStream in = new FileInputStream(file);
+					int c;
+					int addr = START;
+					while((c = in.read()) != -1)
+						cpu.writeByte(addr++, c);
+					in.close();
+					return addr;
+				}
+			};
+		}
+		if(method.equals("load")) {
+			return new Workload() {
+				public long run() throws IOException {
+					return cpu.load(START, file);
+				}
+			};
+		}
+		if(method.equals("farm")) {
+			final List<CpuFarm.Job> jobs = new ArrayList<CpuFarm.Job>();
+			for(int i = 0; i < FARM_LOADS; i++) {
+				jobs.add(new CpuFarm.Job(0, null) {
+					protected Cpu6502 createCpu() throws IOException {
+						Cpu6502 cpu = new Cpu6502(START);
+						cpu.load(START, file);
+						return cpu;
+					}
+				});
+			}
+			final CpuFarm farm = new CpuFarm();
+			return new Workload() {
+				public long run() {
+					long count = 0;
+					for(CpuFarm.Results results = farm.submit(jobs); results.hasNext(); count++) {
+						CpuFarm.Result result = results.next();
+						if(result.getError() != null)
+							throw new IllegalStateException(result.getError());
+					}
+					return count;
+				}
+			};
+		}
+		throw new IllegalArgumentException(method);
+	}
+
+	private static Workload construct(final Cpu6502.Core core, final Cpu6502.Variant variant,
+			final Cpu6502.MemoryBackend backend) {
+		return new Workload() {
+			public long run() {
+				return new Cpu6502(START, core, backend, variant).getPC();
+			}
+		};
+	}
+
+	/**
+	 * First cpu of the JVM up to its first instruction, static tables
+	 * included: Cpu6502 is only initialized by the first run
+	 */
+	private static Workload first() {
+		return new Workload() {
+			public long run() {
+				Cpu6502 cpu = new Cpu6502(START);
+				return cpu.run(1).getCycles();
+			}
+		};
+	}
+
+	/**
+	 * Launch of Emu6502 on a program stopping at its first instruction, an
+	 * unknown opcode
+	 * @param executable "jvm" to run it on this JVM, else its native image
+	 */
+	private static Workload startup(String executable) throws IOException {
+		File file = File.createTempFile("bench6502", ".bin");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(0x02);
+		out.close();
+		final List<String> command = new ArrayList<String>();
+		if(executable.equals("jvm")) {
+			command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add("Emu6502");
+		}
+		else
+			command.add(executable);
+		command.add(file.getPath());
+		return new Workload() {
+			public long run() throws IOException, InterruptedException {
+				Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+				long output = 0;
+				while(process.getInputStream().read() != -1)
+					output++;
+				if(process.waitFor() != 0)
+					throw new IllegalStateException(command + " exited with " + process.exitValue());
+				return output;
+			}
+		};
+	}
+}
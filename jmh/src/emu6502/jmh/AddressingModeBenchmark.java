@@ -0,0 +1,46 @@
+package emu6502.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Addressing modes, each repeated in a loop with LDA, LDX or JMP (see the
+ * kernels of JmhWorkloads), in emulated MHz
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AddressingModeBenchmark {
+
+	@Param({ "INSTRUCTION", "SWITCH", "TIERED" })
+	public String core;
+
+	@Param({ "IMM", "ZP", "ZPX", "ZPY", "IZX", "IZY", "ABS", "ABSX", "ABSY", "IND", "REL", "ACC", "NONE" })
+	public String mode;
+
+	private Workload kernel;
+
+	@Setup
+	public void setup() throws Exception {
+		kernel = Workloads.create("mode", core, mode);
+	}
+
+	@Benchmark
+	public long mode() throws Exception {
+		return kernel.run();
+	}
+}
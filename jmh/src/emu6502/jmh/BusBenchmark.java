@@ -0,0 +1,74 @@
+package emu6502.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * readByte() and writeByte() through the page table, in nanoseconds per
+ * read and write: 2KB of RAM, its mirrors, RAM without mirror and the I/O
+ * registers. Raw accesses to int[] pages, the memory layout used before
+ * byte[] pages, and to a direct buffer give the cost of the bus itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BusBenchmark {
+
+	@State(Scope.Thread)
+	public static class Bus {
+		@Param({ "BYTE_ARRAY", "DIRECT_BUFFER" })
+		public String backend;
+
+		@Param({ "ram", "mirror", "page", "io" })
+		public String area;
+
+		Workload accesses;
+
+		@Setup
+		public void setup() throws Exception {
+			accesses = Workloads.create("bus", backend, area);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Memory {
+		@Param({ "int", "byte", "direct" })
+		public String layout;
+
+		Workload accesses;
+
+		@Setup
+		public void setup() throws Exception {
+			accesses = Workloads.create("memory", layout);
+		}
+	}
+
+	//JmhWorkloads.PASSES times JmhWorkloads.BUS_SIZE
+	@Benchmark
+	@OperationsPerInvocation(200*0x800)
+	public long bus(Bus bus) throws Exception {
+		return bus.accesses.run();
+	}
+
+	//JmhWorkloads.PASSES times the address space
+	@Benchmark
+	@OperationsPerInvocation(200*0x10000)
+	public long memory(Memory memory) throws Exception {
+		return memory.accesses.run();
+	}
+}
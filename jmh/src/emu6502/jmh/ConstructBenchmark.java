@@ -0,0 +1,74 @@
+package emu6502.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * new Cpu6502 for each core, variant and memory backend, in microseconds,
+ * and the first cpu of a fresh JVM up to its first instruction, static
+ * tables included, in milliseconds. With -prof gc, gc.alloc.rate.norm of
+ * construct is the heap taken by a cpu.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConstructBenchmark {
+
+	@State(Scope.Thread)
+	public static class Construct {
+		@Param({ "INSTRUCTION", "SWITCH", "TIERED" })
+		public String core;
+
+		@Param({ "NMOS", "RICOH_2A03", "CMOS_65C02" })
+		public String variant;
+
+		@Param({ "BYTE_ARRAY", "DIRECT_BUFFER" })
+		public String backend;
+
+		Workload workload;
+
+		@Setup
+		public void setup() throws Exception {
+			workload = Workloads.create("construct", core, variant, backend);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class First {
+		Workload workload;
+
+		@Setup
+		public void setup() throws Exception {
+			workload = Workloads.create("first");
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long construct(Construct construct) throws Exception {
+		return construct.workload.run();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Fork(10)
+	@Warmup(iterations = 0)
+	@Measurement(iterations = 1)
+	public long firstInstruction(First first) throws Exception {
+		return first.workload.run();
+	}
+}
@@ -0,0 +1,47 @@
+package emu6502.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Dispatch of each core and memory backend on the loop of JmhWorkloads, in
+ * emulated MHz (one operation is a million cycles). Run with -prof gc to
+ * check that the cores don't allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CoreBenchmark {
+
+	@Param({ "INSTRUCTION", "SWITCH", "TIERED" })
+	public String core;
+
+	@Param({ "BYTE_ARRAY", "DIRECT_BUFFER" })
+	public String backend;
+
+	private Workload loop;
+
+	@Setup
+	public void setup() throws Exception {
+		loop = Workloads.create("loop", core, backend);
+	}
+
+	@Benchmark
+	public long loop() throws Exception {
+		return loop.run();
+	}
+}
@@ -0,0 +1,51 @@
+package emu6502.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole program throughput in emulated MHz: "loop" is the loop of
+ * JmhWorkloads, other values are files loaded like Emu6502 does (o65, iNES or
+ * raw at $1000), for instance a functional test ROM:
+ * -p program=6502_functional_test.bin
+ * The program runs from a fork of the loaded cpu, forked again when it
+ * halts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProgramBenchmark {
+
+	@Param({ "INSTRUCTION", "SWITCH", "TIERED" })
+	public String core;
+
+	@Param({ "loop" })
+	public String program;
+
+	private Workload run;
+
+	@Setup
+	public void setup() throws Exception {
+		run = Workloads.create("program", core, program);
+	}
+
+	@Benchmark
+	public long program() throws Exception {
+		return run.run();
+	}
+}
@@ -0,0 +1,85 @@
+package emu6502.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * snapshot(), restore() and fork() of a cpu, fork followed by writes to
+ * three pages, saving a snapshot to a file and restoring one read from
+ * it, and loading a 16KB image byte by byte through a stream, in one block
+ * with load() or into new cpus from every thread of a farm, in
+ * microseconds
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SnapshotBenchmark {
+
+	@State(Scope.Thread)
+	public static class Snapshot {
+		@Param({ "snapshot", "restore", "fork", "save", "read" })
+		public String operation;
+
+		Workload workload;
+
+		@Setup
+		public void setup() throws Exception {
+			workload = Workloads.create("snapshot", operation);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Load {
+		@Param({ "stream", "load" })
+		public String method;
+
+		Workload workload;
+
+		@Setup
+		public void setup() throws Exception {
+			workload = Workloads.create("load", method);
+		}
+	}
+
+	@Benchmark
+	public long snapshot(Snapshot snapshot) throws Exception {
+		return snapshot.workload.run();
+	}
+
+	@State(Scope.Thread)
+	public static class Farm {
+		Workload workload;
+
+		@Setup
+		public void setup() throws Exception {
+			workload = Workloads.create("load", "farm");
+		}
+	}
+
+	@Benchmark
+	public long load(Load load) throws Exception {
+		return load.workload.run();
+	}
+
+	//JmhWorkloads.FARM_LOADS cpus
+	@Benchmark
+	@OperationsPerInvocation(2000)
+	public long farmLoad(Farm farm) throws Exception {
+		return farm.workload.run();
+	}
+}
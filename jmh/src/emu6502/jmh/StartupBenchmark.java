@@ -0,0 +1,45 @@
+package emu6502.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Launch of Emu6502 on a program stopping at its first instruction, in
+ * milliseconds: "jvm" on the JVM of the benchmark, other values are its
+ * native image (see the native profile of the core module):
+ * -p executable=core/target/emu6502
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 20)
+public class StartupBenchmark {
+
+	@Param({ "jvm" })
+	public String executable;
+
+	private Workload launch;
+
+	@Setup
+	public void setup() throws Exception {
+		launch = Workloads.create("startup", executable);
+	}
+
+	@Benchmark
+	public long startup() throws Exception {
+		return launch.run();
+	}
+}
@@ -0,0 +1,11 @@
+package emu6502.jmh;
+
+/**
+ * Operation measured by a benchmark
+ */
+public interface Workload {
+	/**
+	 * @return a result of the operation, consumed by the benchmark
+	 */
+	long run() throws Exception;
+}
@@ -0,0 +1,26 @@
+package emu6502.jmh;
+
+import java.lang.reflect.Method;
+
+/**
+ * The emulator lives in the default package, which JMH benchmarks can't
+ * be in and other packages can't import: benchmarks get their workloads
+ * from JmhWorkloads, in the default package, looked up once by name.
+ */
+final class Workloads {
+
+	private static Method create;
+
+	private Workloads() {
+	}
+
+	/**
+	 * @param name workload of JmhWorkloads.create()
+	 * @param params core, variant, backend... depending on the workload
+	 */
+	static synchronized Workload create(String name, String... params) throws Exception {
+		if(create == null)
+			create = Class.forName("JmhWorkloads").getMethod("create", String.class, String[].class);
+		return (Workload)create.invoke(null, name, params);
+	}
+}
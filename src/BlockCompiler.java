@@ -0,0 +1,1432 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compiles blocks of 6502 code into JVM classes for the TIERED core. The
+ * run() method of the class of a block executes its instructions one after
+ * the other like runSwitch() does, with the registers in local variables
+ * and the operands, addresses, branch targets and cycle counts as
+ * constants, so that the JIT optimizes the whole block at once. It can be
+ * entered at any of the instructions, and checks the budget only on jumps
+ * inside the block: the caller enters it when the most cycles it can take
+ * fit in the slice, so the JIT sees no exit after each instruction.
+ * Classes are written in the class file format of Java 5, which needs no
+ * stack map frames, and each is defined by a class loader of its own so it
+ * can be unloaded once no cpu uses it. The code of a block doesn't depend
+ * on the cpu: it's shared by every cpu running the same bytes at the same
+ * address, forks and CpuFarm jobs included.
+ */
+final class BlockCompiler {
+
+	/*
+	 * Compiled code is kept for the most recently used blocks. No code is
+	 * generated in a native image, which can't define classes at run time.
+	 */
+	private static final int CACHE_SIZE = 4096;
+	private static volatile boolean enabled = System.getProperty("org.graalvm.nativeimage.imagecode") == null;
+
+	private static final class Key {
+		private final int variant;
+		private final int start;
+		private final byte[] code;
+
+		Key(int variant, int start, byte[] code) {
+			this.variant = variant;
+			this.start = start;
+			this.code = code;
+		}
+
+		public boolean equals(Object o) {
+			if(!(o instanceof Key))
+				return false;
+			Key key = (Key)o;
+			return variant == key.variant && start == key.start && Arrays.equals(code, key.code);
+		}
+
+		public int hashCode() {
+			return Arrays.hashCode(code)*31+start*4+variant;
+		}
+	}
+
+	//least recently used blocks
+	private static final Map<Key, Cpu6502.CompiledBlock> cache = Collections.synchronizedMap(
+			new LinkedHashMap<Key, Cpu6502.CompiledBlock>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(Map.Entry<Key, Cpu6502.CompiledBlock> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			});
+
+	/**
+	 * Defines the class of a single block
+	 */
+	private static final class BlockLoader extends ClassLoader {
+		BlockLoader() {
+			super(Cpu6502.CompiledBlock.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * @return true if the opcode can be compiled: the NMOS instruction set,
+	 * which runSwitch() executes itself
+	 */
+	static boolean isCompiled(int opcode) {
+		return Arrays.binarySearch(Cpu6502Opcodes.OPCODES, opcode) >= 0;
+	}
+
+	/**
+	 * @return false when blocks can't be compiled and run interpreted
+	 */
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Compile a block, or get it from the cache when the same code at the
+	 * same address was already compiled for the variant
+	 * @param code bytes of the instructions of the block, all compiled
+	 * opcodes, only the last one may change the control flow
+	 * @param opcodeLengths length of each opcode of the variant
+	 * @return null if the class can't be defined
+	 */
+	static Cpu6502.CompiledBlock compile(Cpu6502.Variant variant, int start, byte[] code, int[] opcodeLengths) {
+		Key key = new Key(variant.ordinal(), start, code);
+		Cpu6502.CompiledBlock block = cache.get(key);
+		if(block == null) {
+			String name = String.format("Block%04X", start);
+			BlockCompiler compiler = new BlockCompiler(start, code, opcodeLengths);
+			byte[] bytes = compiler.toClass(name);
+			try {
+				block = (Cpu6502.CompiledBlock)new BlockLoader().define(name, bytes).getConstructor().newInstance();
+				block.cycles = compiler.cycles;
+			} catch (Exception e) {
+				enabled = false;
+				return null;
+			} catch (LinkageError e) {
+				enabled = false;
+				return null;
+			}
+			cache.put(key, block);
+		}
+		return block;
+	}
+
+	/*
+	 * JVM opcodes
+	 */
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int ILOAD = 0x15;
+	private static final int ALOAD_0 = 0x2A;
+	private static final int ALOAD_1 = 0x2B;
+	private static final int ISTORE = 0x36;
+	private static final int POP = 0x57;
+	private static final int DUP = 0x59;
+	private static final int IADD = 0x60;
+	private static final int ISUB = 0x64;
+	private static final int ISHL = 0x78;
+	private static final int ISHR = 0x7A;
+	private static final int IUSHR = 0x7C;
+	private static final int IAND = 0x7E;
+	private static final int IOR = 0x80;
+	private static final int IXOR = 0x82;
+	private static final int IINC = 0x84;
+	private static final int IFEQ = 0x99;
+	private static final int IFNE = 0x9A;
+	private static final int IF_ICMPNE = 0xA0;
+	private static final int IF_ICMPLT = 0xA1;
+	private static final int GOTO = 0xA7;
+	private static final int TABLESWITCH = 0xAA;
+	private static final int IRETURN = 0xAC;
+	private static final int RETURN = 0xB1;
+	private static final int INVOKEVIRTUAL = 0xB6;
+	private static final int INVOKESPECIAL = 0xB7;
+	private static final int INVOKESTATIC = 0xB8;
+
+	/*
+	 * Local variables of run(cpu, entry, elapsed, budget): the index of the
+	 * first instruction, the cycles elapsed in the slice, the registers 
+	 * like in runSwitch(), PC of the next instruction and number of
+	 * instructions run on exit, and temporaries
+	 */
+	private static final int CPU = 1;
+	private static final int ENTRY = 2;
+	private static final int CYCLES = 3;
+	private static final int BUDGET = 4;
+	private static final int PC = 5;
+	private static final int SP = 6;
+	private static final int A = 7;
+	private static final int X = 8;
+	private static final int Y = 9;
+	private static final int CARRY = 10;
+	private static final int INTERRUPT = 11;
+	private static final int DECIMAL = 12;
+	private static final int BRK = 13;
+	private static final int OVERFLOW = 14;
+	private static final int Z = 15;
+	private static final int N = 16;
+	private static final int COUNT = 17;
+	private static final int ADDR = 18;
+	private static final int VAL = 19;
+	private static final int RES = 20;
+	private static final int MAX_LOCALS = 21;
+	private static final int MAX_STACK = 16;
+
+	/*
+	 * Addressing modes as runSwitch() decodes them
+	 */
+	private static final int IMM = 0;
+	private static final int ZP = 1;
+	private static final int ZPX = 2;
+	private static final int ABS = 3;
+	private static final int ABSX = 4;
+	private static final int ABSY = 5;
+	private static final int IZX = 6;
+	private static final int IZY = 7;
+	private static final int ACC = 8;
+
+	private static final String CPU_CLASS = "Cpu6502";
+	private static final String BASE_CLASS = "Cpu6502$CompiledBlock";
+	private static final String CPU_TYPE = "L" + CPU_CLASS + ";";
+
+	/**
+	 * Position in the code, and the branches to it: position of each branch
+	 * instruction, and of its offset when it isn't a 16 bits offset right
+	 * after it
+	 */
+	private static final class Label {
+		int position = -1;
+		final ArrayList<Integer> branches = new ArrayList<Integer>();
+		final ArrayList<int[]> switchBranches = new ArrayList<int[]>();
+	}
+
+	private final int start;
+	private final byte[] block;
+	private final int[] opcodeLengths;
+	private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(poolBytes);
+	private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+	private int poolCount = 1;
+	private byte[] code = new byte[1024];
+	private int length;
+	private final ArrayList<Label> labels = new ArrayList<Label>();
+	private final Label exit = new Label();
+	//address and label of each instruction
+	private int[] pcs;
+	private Label[] entries;
+	//most cycles of each instruction, and of the one being compiled
+	private int[] costs;
+	private int cost;
+	//most cycles run before the last instruction from each instruction
+	private int[] cycles;
+	//constants to patch with the cycles from an instruction: position, index
+	private final ArrayList<int[]> budgetChecks = new ArrayList<int[]>();
+
+	private BlockCompiler(int start, byte[] block, int[] opcodeLengths) {
+		this.start = start;
+		this.block = block;
+		this.opcodeLengths = opcodeLengths;
+		labels.add(exit);
+	}
+
+	/**
+	 * @return class file of the block
+	 */
+	private byte[] toClass(String name) {
+		compileRun();
+		try {
+			int thisClass = classRef(name);
+			int superClass = classRef(BASE_CLASS);
+			int init = methodRef(BASE_CLASS, "<init>", "()V");
+			int initName = utf8("<init>");
+			int initType = utf8("()V");
+			int runName = utf8("run");
+			int runType = utf8("(" + CPU_TYPE + "III)I");
+			int codeName = utf8("Code");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(poolCount);
+			pool.flush();
+			poolBytes.writeTo(out);
+			//public final super
+			out.writeShort(0x0031);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0);
+			out.writeShort(0);
+			out.writeShort(2);
+
+			//public constructor calling the one of CompiledBlock
+			byte[] initCode = { ALOAD_0, (byte)INVOKESPECIAL, (byte)(init>>8), (byte)init, (byte)RETURN };
+			out.writeShort(0x0001);
+			out.writeShort(initName);
+			out.writeShort(initType);
+			out.writeShort(1);
+			writeCode(out, codeName, 1, 1, initCode, initCode.length);
+
+			out.writeShort(0x0001);
+			out.writeShort(runName);
+			out.writeShort(runType);
+			out.writeShort(1);
+			writeCode(out, codeName, MAX_STACK, MAX_LOCALS, code, length);
+
+			out.writeShort(0);
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			//never thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void writeCode(DataOutputStream out, int codeName, int maxStack, int maxLocals,
+			byte[] code, int length) throws IOException {
+		out.writeShort(codeName);
+		out.writeInt(12+length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(length);
+		out.write(code, 0, length);
+		//no exception table, no attributes
+		out.writeShort(0);
+		out.writeShort(0);
+	}
+
+	/*
+	 * Constant pool
+	 */
+
+	private int constant(String key) throws IOException {
+		Integer index = poolIndex.get(key);
+		return index != null ? index : -1;
+	}
+
+	private int add(String key) {
+		int index = poolCount++;
+		poolIndex.put(key, index);
+		return index;
+	}
+
+	private int utf8(String s) throws IOException {
+		int index = constant("U" + s);
+		if(index < 0) {
+			pool.writeByte(1);
+			pool.writeUTF(s);
+			index = add("U" + s);
+		}
+		return index;
+	}
+
+	private int classRef(String name) throws IOException {
+		int index = constant("C" + name);
+		if(index < 0) {
+			int nameIndex = utf8(name);
+			pool.writeByte(7);
+			pool.writeShort(nameIndex);
+			index = add("C" + name);
+		}
+		return index;
+	}
+
+	private int methodRef(String owner, String name, String type) throws IOException {
+		String key = "M" + owner + "." + name + type;
+		int index = constant(key);
+		if(index < 0) {
+			int ownerIndex = classRef(owner);
+			int nameIndex = utf8(name);
+			int typeIndex = utf8(type);
+			pool.writeByte(12);
+			pool.writeShort(nameIndex);
+			pool.writeShort(typeIndex);
+			int nameAndType = poolCount++;
+			pool.writeByte(10);
+			pool.writeShort(ownerIndex);
+			pool.writeShort(nameAndType);
+			index = add(key);
+		}
+		return index;
+	}
+
+	private int integer(int value) throws IOException {
+		int index = constant("I" + value);
+		if(index < 0) {
+			pool.writeByte(3);
+			pool.writeInt(value);
+			index = add("I" + value);
+		}
+		return index;
+	}
+
+	/*
+	 * Bytecode
+	 */
+
+	private void u1(int b) {
+		if(length == code.length)
+			code = Arrays.copyOf(code, length*2);
+		code[length++] = (byte)b;
+	}
+
+	private void u2(int s) {
+		u1(s>>8);
+		u1(s);
+	}
+
+	private void push(int value) {
+		if(value >= -1 && value <= 5)
+			u1(ICONST_0+value);
+		else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			u1(BIPUSH);
+			u1(value);
+		}
+		else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			u1(SIPUSH);
+			u2(value);
+		}
+		else {
+			u1(LDC_W);
+			u2(poolEntry(value));
+		}
+	}
+
+	private int poolEntry(int value) {
+		try {
+			return integer(value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void load(int local) {
+		u1(ILOAD);
+		u1(local);
+	}
+
+	private void store(int local) {
+		u1(ISTORE);
+		u1(local);
+	}
+
+	private void loadCpu() {
+		u1(ALOAD_1);
+	}
+
+	private void iinc(int local, int increment) {
+		u1(IINC);
+		u1(local);
+		u1(increment);
+	}
+
+	private Label label() {
+		Label label = new Label();
+		labels.add(label);
+		return label;
+	}
+
+	private void branch(int opcode, Label label) {
+		label.branches.add(length);
+		u1(opcode);
+		u2(0);
+	}
+
+	private void place(Label label) {
+		label.position = length;
+	}
+
+	/**
+	 * tableswitch to the labels, by index from 0
+	 */
+	private void tableSwitch(Label[] targets) {
+		int base = length;
+		u1(TABLESWITCH);
+		while(length%4 != 0)
+			u1(0);
+		//default, low and high
+		targets[0].switchBranches.add(new int[] { base, length });
+		u2(0);
+		u2(0);
+		u2(0);
+		u2(0);
+		u2(0);
+		u2(targets.length-1);
+		for(Label target : targets) {
+			target.switchBranches.add(new int[] { base, length });
+			u2(0);
+			u2(0);
+		}
+	}
+
+	private void resolveBranches() {
+		for(Label label : labels) {
+			for(int branch : label.branches) {
+				int offset = label.position-branch;
+				code[branch+1] = (byte)(offset>>8);
+				code[branch+2] = (byte)offset;
+			}
+			for(int[] branch : label.switchBranches) {
+				int offset = label.position-branch[0];
+				for(int i = 0; i < 4; i++)
+					code[branch[1]+i] = (byte)(offset>>(24-8*i));
+			}
+		}
+	}
+
+	private void invoke(int opcode, String owner, String name, String type) {
+		try {
+			u1(opcode);
+			u2(methodRef(owner, name, type));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Call a static helper of CompiledBlock
+	 */
+	private void helper(String name, String type) {
+		invoke(INVOKESTATIC, BASE_CLASS, name, type);
+	}
+
+	/*
+	 * Compilation of the instructions
+	 */
+
+	private void compileRun() {
+		String getInt = "(" + CPU_TYPE + ")I";
+		String getBoolean = "(" + CPU_TYPE + ")Z";
+		String[] getters = { "getSP", "getA", "getX", "getY", "isCarry", "isInterrupt", "isDecimal",
+				"isBreak", "isOverflow", "getZeroResult", "getNegativeResult" };
+		int[] registers = { SP, A, X, Y, CARRY, INTERRUPT, DECIMAL, BRK, OVERFLOW, Z, N };
+		for(int i = 0; i < getters.length; i++) {
+			loadCpu();
+			helper(getters[i], getters[i].startsWith("is") ? getBoolean : getInt);
+			store(registers[i]);
+		}
+
+		int count = 0;
+		for(int offset = 0; offset < block.length; offset += opcodeLengths[block[offset]&0xFF])
+			count++;
+		pcs = new int[count];
+		entries = new Label[count];
+		for(int i = 0, pc = start; i < count; pc += opcodeLengths[block[pc-start]&0xFF], i++) {
+			pcs[i] = pc;
+			entries[i] = label();
+		}
+		push(0);
+		store(COUNT);
+		load(ENTRY);
+		tableSwitch(entries);
+
+		costs = new int[count];
+		for(int i = 0; i < count; i++) {
+			place(entries[i]);
+			iinc(COUNT, 1);
+			int pc = pcs[i];
+			int opcode = block[pc-start]&0xFF;
+			int instLength = opcodeLengths[opcode];
+			int op = instLength > 1 ? block[pc-start+1]&0xFF : 0;
+			int word = instLength > 2 ? op|((block[pc-start+2]&0xFF)<<8) : op;
+			int next = (pc+instLength)&0xFFFF;
+			boolean last = i == count-1;
+			cost = 0;
+			if(!compileJump(opcode, op, word, pc, next, last)) {
+				boolean writes = compileInstruction(opcode, op, word, next);
+				next(writes, next, last);
+			}
+			costs[i] = cost;
+		}
+		cycles = new int[count];
+		for(int i = count-2; i >= 0; i--)
+			cycles[i] = cycles[i+1]+costs[i];
+		for(int[] check : budgetChecks) {
+			int index = poolEntry(cycles[check[1]]);
+			code[check[0]] = (byte)(index>>8);
+			code[check[0]+1] = (byte)index;
+		}
+
+		place(exit);
+		loadCpu();
+		for(int register : new int[] { PC, SP, A, X, Y, CARRY, INTERRUPT, DECIMAL, BRK, OVERFLOW, Z, N, COUNT })
+			load(register);
+		helper("exit", "(" + CPU_TYPE + "IIIIIZZZZZIII)V");
+		load(CYCLES);
+		u1(IRETURN);
+		resolveBranches();
+	}
+
+	/**
+	 * Go on with the next instruction, or leave the block when it was the 
+	 * last one or when the instruction rewrote the code of the block
+	 * @param writes true if the instruction writes to memory
+	 */
+	private void next(boolean writes, int next, boolean last) {
+		if(last) {
+			exitTo(next);
+			return;
+		}
+		if(writes) {
+			Label resume = label();
+			loadCpu();
+			helper("isInvalidated", "(" + CPU_TYPE + ")Z");
+			branch(IFEQ, resume);
+			exitTo(next);
+			place(resume);
+		}
+	}
+
+	/**
+	 * Go on at the target of a jump or branch when it's an instruction of
+	 * the block and the rest of the block from there fits in the budget,
+	 * else leave the block. The cycles of the rest of the block are only
+	 * known at the end: the constant is patched then.
+	 */
+	private void jumpTo(int target) {
+		for(int i = 0; i < pcs.length; i++) {
+			if(pcs[i] == target) {
+				load(CYCLES);
+				load(BUDGET);
+				u1(LDC_W);
+				budgetChecks.add(new int[] { length, i });
+				u2(0);
+				u1(ISUB);
+				branch(IF_ICMPLT, entries[i]);
+			}
+		}
+		exitTo(target);
+	}
+
+	private void exitTo(int pc) {
+		push(pc);
+		store(PC);
+		branch(GOTO, exit);
+	}
+
+	/**
+	 * Let devices catching up from an I/O handler see the cycle at the
+	 * start of the instruction
+	 */
+	private void sliceCycles() {
+		loadCpu();
+		load(CYCLES);
+		helper("setSliceCycles", "(" + CPU_TYPE + "I)V");
+	}
+
+	/**
+	 * Push the effective address
+	 */
+	private void address(int mode, int op, int word) {
+		switch(mode) {
+		case ZP:
+			push(op);
+			break;
+		case ZPX:
+			push(op);
+			load(X);
+			u1(IADD);
+			push(255);
+			u1(IAND);
+			break;
+		case ABS:
+			push(word);
+			break;
+		case ABSX:
+			push(word);
+			load(X);
+			u1(IADD);
+			push(0xFFFF);
+			u1(IAND);
+			break;
+		case ABSY:
+			push(word);
+			load(Y);
+			u1(IADD);
+			push(0xFFFF);
+			u1(IAND);
+			break;
+		case IZX:
+			loadCpu();
+			push(op);
+			load(X);
+			u1(IADD);
+			push(255);
+			u1(IAND);
+			helper("readInt", "(" + CPU_TYPE + "I)I");
+			break;
+		case IZY:
+			loadCpu();
+			push(op);
+			helper("readInt", "(" + CPU_TYPE + "I)I");
+			load(Y);
+			u1(IADD);
+			push(0xFFFF);
+			u1(IAND);
+			break;
+		default:
+			throw new IllegalArgumentException("No address for mode " + mode);
+		}
+	}
+
+	private void readByte() {
+		invoke(INVOKEVIRTUAL, CPU_CLASS, "readByte", "(I)I");
+	}
+
+	private void writeByte() {
+		invoke(INVOKEVIRTUAL, CPU_CLASS, "writeByte", "(II)I");
+		u1(POP);
+	}
+
+	/**
+	 * Store the operand value in VAL
+	 */
+	private void operand(int mode, int op, int word) {
+		if(mode == IMM)
+			push(op);
+		else {
+			sliceCycles();
+			loadCpu();
+			address(mode, op, word);
+			readByte();
+		}
+		store(VAL);
+	}
+
+	/**
+	 * Add the cycles of the instruction, plus one when the operand, or the
+	 * address, ends with $FF like crossCycle() computes
+	 * @param cross VAL or ADDR, 0 for none
+	 */
+	private void cycles(int cycles, int cross) {
+		cost += cross != 0 ? cycles+1 : cycles;
+		iinc(CYCLES, cycles);
+		if(cross != 0) {
+			Label same = label();
+			load(cross);
+			push(255);
+			u1(IAND);
+			push(255);
+			branch(IF_ICMPNE, same);
+			iinc(CYCLES, 1);
+			place(same);
+		}
+	}
+
+	/**
+	 * Set Z and N from the value on the stack, popping it
+	 */
+	private void setZN() {
+		u1(DUP);
+		store(Z);
+		store(N);
+	}
+
+	/**
+	 * ORA, AND and EOR
+	 */
+	private void logical(int operation, int mode, int op, int word, int cycles, boolean cross) {
+		operand(mode, op, word);
+		load(A);
+		load(VAL);
+		u1(operation);
+		u1(DUP);
+		store(A);
+		setZN();
+		cycles(cycles, cross ? VAL : 0);
+	}
+
+	/**
+	 * LDA, LDX and LDY
+	 */
+	private void loadRegister(int register, int mode, int op, int word, int cycles, boolean cross) {
+		operand(mode, op, word);
+		load(VAL);
+		u1(DUP);
+		store(register);
+		setZN();
+		cycles(cycles, cross ? VAL : 0);
+	}
+
+	/**
+	 * CMP, CPX and CPY: carry when register >= operand, Z and N from the
+	 * difference
+	 */
+	private void compare(int register, int mode, int op, int word, int cycles, boolean cross) {
+		operand(mode, op, word);
+		load(register);
+		load(VAL);
+		u1(ISUB);
+		u1(DUP);
+		store(Z);
+		u1(DUP);
+		push(0x80);
+		u1(IXOR);
+		store(N);
+		push(31);
+		u1(IUSHR);
+		push(1);
+		u1(IXOR);
+		store(CARRY);
+		cycles(cycles, cross ? VAL : 0);
+	}
+
+	private void bit(int mode, int op, int word, int cycles) {
+		operand(mode, op, word);
+		load(VAL);
+		store(N);
+		load(VAL);
+		push(6);
+		u1(ISHR);
+		push(1);
+		u1(IAND);
+		store(OVERFLOW);
+		load(A);
+		load(VAL);
+		u1(IAND);
+		store(Z);
+		cycles(cycles, 0);
+	}
+
+	/**
+	 * ADC and SBC through the ALU tables of the cpu, then unpack the result
+	 * like runSwitch()
+	 */
+	private void arithmetic(String operation, int mode, int op, int word, int cycles, boolean cross) {
+		operand(mode, op, word);
+		cycles(cycles, cross ? VAL : 0);
+		loadCpu();
+		load(A);
+		load(VAL);
+		load(CARRY);
+		load(DECIMAL);
+		helper(operation, "(" + CPU_TYPE + "IIZZ)I");
+		store(RES);
+		load(RES);
+		push(0xFF);
+		u1(IAND);
+		store(A);
+		load(RES);
+		push(8);
+		u1(ISHR);
+		push(1);
+		u1(IAND);
+		store(CARRY);
+		load(RES);
+		push(14);
+		u1(ISHR);
+		push(1);
+		u1(IAND);
+		store(OVERFLOW);
+		load(RES);
+		push(-1);
+		u1(IXOR);
+		push(0x200);
+		u1(IAND);
+		store(Z);
+		load(RES);
+		push(8);
+		u1(ISHR);
+		store(N);
+	}
+
+	private void storeRegister(int register, int mode, int op, int word, int cycles) {
+		sliceCycles();
+		loadCpu();
+		address(mode, op, word);
+		load(register);
+		writeByte();
+		cycles(cycles, 0);
+	}
+
+	/*
+	 * Shifts and rotations, with the carry of the Instruction classes
+	 */
+	private static final int ASL = 0;
+	private static final int LSR = 1;
+	private static final int ROL = 2;
+	private static final int ROR = 3;
+
+	private void shift(int operation, int mode, int op, int word, int cycles) {
+		if(mode == ACC)
+			load(A);
+		else {
+			sliceCycles();
+			address(mode, op, word);
+			store(ADDR);
+			loadCpu();
+			load(ADDR);
+			readByte();
+		}
+		store(VAL);
+		switch(operation) {
+		case ASL:
+		case ROL:
+			//res = (val<<1)|(carry?0:1) for ROL, carry = bit 8 of res
+			load(VAL);
+			push(1);
+			u1(ISHL);
+			if(operation == ROL) {
+				load(CARRY);
+				push(1);
+				u1(IXOR);
+				u1(IOR);
+			}
+			u1(DUP);
+			push(8);
+			u1(ISHR);
+			store(CARRY);
+			push(0xFF);
+			u1(IAND);
+			break;
+		case LSR:
+			//bit 8 of val>>1 is never set
+			push(0);
+			store(CARRY);
+			load(VAL);
+			push(1);
+			u1(ISHR);
+			break;
+		case ROR:
+			//res = (val>>1)|((carry?0:1)<<7), carry = bit 0 of val
+			load(VAL);
+			push(1);
+			u1(ISHR);
+			load(CARRY);
+			push(1);
+			u1(IXOR);
+			push(7);
+			u1(ISHL);
+			u1(IOR);
+			load(VAL);
+			push(1);
+			u1(IAND);
+			store(CARRY);
+			break;
+		default:
+			throw new IllegalArgumentException("No shift " + operation);
+		}
+		store(RES);
+		if(mode == ACC) {
+			load(RES);
+			store(A);
+		}
+		else {
+			loadCpu();
+			load(ADDR);
+			load(RES);
+			writeByte();
+		}
+		load(RES);
+		setZN();
+		cycles(cycles, 0);
+	}
+
+	/**
+	 * INC and DEC
+	 * @param cross true to add a cycle when the address ends with $FF
+	 */
+	private void increment(int delta, int mode, int op, int word, int cycles, boolean cross) {
+		sliceCycles();
+		address(mode, op, word);
+		store(ADDR);
+		loadCpu();
+		load(ADDR);
+		readByte();
+		push(delta);
+		u1(IADD);
+		push(0xFF);
+		u1(IAND);
+		store(RES);
+		loadCpu();
+		load(ADDR);
+		load(RES);
+		writeByte();
+		load(RES);
+		setZN();
+		cycles(cycles, cross ? ADDR : 0);
+	}
+
+	/**
+	 * INX, INY, DEX and DEY
+	 */
+	private void incrementRegister(int register, int delta) {
+		load(register);
+		push(delta);
+		u1(IADD);
+		push(0xFF);
+		u1(IAND);
+		u1(DUP);
+		store(register);
+		setZN();
+		cycles(2, 0);
+	}
+
+	/**
+	 * TAX, TXA, TYA, TSX and TXS
+	 * @param flags true to set Z and N
+	 */
+	private void transfer(int from, int to, boolean flags) {
+		load(from);
+		if(flags)
+			u1(DUP);
+		store(to);
+		if(flags)
+			setZN();
+		cycles(2, 0);
+	}
+
+	private void setFlag(int flag, int value) {
+		push(value);
+		store(flag);
+		cycles(2, 0);
+	}
+
+	/**
+	 * Push the stack address of SP
+	 */
+	private void stackAddress() {
+		push(0x100);
+		load(SP);
+		u1(IADD);
+	}
+
+	private void decrementSP() {
+		load(SP);
+		push(1);
+		u1(ISUB);
+		push(0xFF);
+		u1(IAND);
+		store(SP);
+	}
+
+	private void incrementSP() {
+		load(SP);
+		push(1);
+		u1(IADD);
+		push(0xFF);
+		u1(IAND);
+		store(SP);
+	}
+
+	/**
+	 * Push a byte to the stack
+	 * @param value byte pushed, or -1 for the packed flags
+	 */
+	private void pushStack(int value) {
+		loadCpu();
+		stackAddress();
+		if(value >= 0)
+			push(value);
+		else
+			packFlags();
+		writeByte();
+		decrementSP();
+	}
+
+	private void packFlags() {
+		for(int flag : new int[] { CARRY, Z, INTERRUPT, DECIMAL, BRK, OVERFLOW, N })
+			load(flag);
+		helper("packFlags", "(ZIZZZZI)I");
+	}
+
+	/**
+	 * Read the byte at the top of the stack, popping it
+	 */
+	private void pullStack() {
+		incrementSP();
+		loadCpu();
+		stackAddress();
+		readByte();
+	}
+
+	/**
+	 * Set the flags from VAL like Registers.setFlags(), in the encoding of
+	 * zeroResult and negativeResult
+	 */
+	private void unpackFlags() {
+		int[] flags = { CARRY, INTERRUPT, DECIMAL, BRK, OVERFLOW };
+		int[] bits = { 0, 2, 3, 4, 6 };
+		for(int i = 0; i < flags.length; i++) {
+			load(VAL);
+			push(bits[i]);
+			u1(ISHR);
+			push(1);
+			u1(IAND);
+			store(flags[i]);
+		}
+		load(VAL);
+		push(1);
+		u1(ISHR);
+		push(1);
+		u1(IAND);
+		push(1);
+		u1(IXOR);
+		store(Z);
+		load(VAL);
+		push(0x80);
+		u1(IAND);
+		store(N);
+	}
+
+	/**
+	 * Halt the cpu, or let it wait for an interrupt, when the instruction at
+	 * pc jumped to itself (PC holds the new address)
+	 */
+	private void checkTrap(int pc) {
+		Label moved = label();
+		load(PC);
+		push(pc);
+		branch(IF_ICMPNE, moved);
+		loadCpu();
+		helper("trapped", "(" + CPU_TYPE + ")V");
+		place(moved);
+	}
+
+	/**
+	 * Tell the profiler the block left through a JSR or RTS
+	 */
+	private void exitOpcode(int opcode) {
+		loadCpu();
+		push(opcode);
+		helper("setExitOpcode", "(" + CPU_TYPE + "I)V");
+	}
+
+	/**
+	 * Compile an instruction changing the control flow. JMP abs and the 
+	 * branches go on in the block when they target one of its instructions,
+	 * the others leave the new address in PC and exit.
+	 * @param last true for the last instruction of the block
+	 * @return false for other instructions
+	 */
+	private boolean compileJump(int opcode, int op, int word, int pc, int next, boolean last) {
+		switch(opcode) {
+		case 0x00: //BRK
+			sliceCycles();
+			push(1);
+			store(BRK);
+			pushStack((next>>8)&0xFF);
+			pushStack(next&0xFF);
+			pushStack(-1);
+			loadCpu();
+			push(0xFFFE);
+			helper("readInt", "(" + CPU_TYPE + "I)I");
+			store(PC);
+			cycles(7, 0);
+			checkTrap(pc);
+			branch(GOTO, exit);
+			return true;
+		case 0x20: //JSR abs
+			sliceCycles();
+			pushStack(((next-1)>>8)&0xFF);
+			pushStack((next-1)&0xFF);
+			push(word);
+			store(PC);
+			cycles(6, 0);
+			checkTrap(pc);
+			exitOpcode(opcode);
+			branch(GOTO, exit);
+			return true;
+		case 0x40: //RTI
+			sliceCycles();
+			pullStack();
+			store(VAL);
+			unpackFlags();
+			pullStack();
+			store(RES);
+			pullStack();
+			push(8);
+			u1(ISHL);
+			load(RES);
+			u1(IOR);
+			store(PC);
+			cycles(6, 0);
+			checkTrap(pc);
+			branch(GOTO, exit);
+			return true;
+		case 0x4C: //JMP abs
+			cycles(3, 0);
+			if(word == pc) {
+				push(pc);
+				store(PC);
+				loadCpu();
+				helper("trapped", "(" + CPU_TYPE + ")V");
+				branch(GOTO, exit);
+			} else
+				jumpTo(word);
+			return true;
+		case 0x60: //RTS
+			sliceCycles();
+			pullStack();
+			store(RES);
+			pullStack();
+			push(8);
+			u1(ISHL);
+			load(RES);
+			u1(IOR);
+			push(1);
+			u1(IADD);
+			push(0xFFFF);
+			u1(IAND);
+			store(PC);
+			cycles(6, 0);
+			checkTrap(pc);
+			exitOpcode(opcode);
+			branch(GOTO, exit);
+			return true;
+		case 0x6C: //JMP (abs)
+			sliceCycles();
+			loadCpu();
+			push(word);
+			helper("readIntJmpBug", "(" + CPU_TYPE + "I)I");
+			store(PC);
+			load(CYCLES);
+			loadCpu();
+			helper("jmpIndirectCycles", "(" + CPU_TYPE + ")I");
+			u1(IADD);
+			store(CYCLES);
+			checkTrap(pc);
+			branch(GOTO, exit);
+			return true;
+		case 0x10: //BPL
+			return branchIf(N, 0x80, IFNE, next, op, last);
+		case 0x30: //BMI
+			return branchIf(N, 0x80, IFEQ, next, op, last);
+		case 0x50: //BVC
+			return branchIf(OVERFLOW, 1, IFNE, next, op, last);
+		case 0x70: //BVS
+			return branchIf(OVERFLOW, 1, IFEQ, next, op, last);
+		case 0x90: //BCC
+			return branchIf(CARRY, 1, IFNE, next, op, last);
+		case 0xB0: //BCS
+			return branchIf(CARRY, 1, IFEQ, next, op, last);
+		case 0xD0: //BNE
+			return branchIf(Z, -1, IFEQ, next, op, last);
+		case 0xF0: //BEQ
+			return branchIf(Z, -1, IFNE, next, op, last);
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Conditional branch, to next+op as runSwitch() computes it. It can't
+	 * go back to itself.
+	 * @param mask bits of the flag tested
+	 * @param notTaken test of the masked flag skipping the branch
+	 */
+	private boolean branchIf(int flag, int mask, int notTaken, int next, int op, boolean last) {
+		Label skip = label();
+		cycles(2, 0);
+		load(flag);
+		push(mask);
+		u1(IAND);
+		branch(notTaken, skip);
+		cost++;
+		iinc(CYCLES, 1);
+		jumpTo((next+op)&0xFFFF);
+		place(skip);
+		next(false, next, last);
+		return true;
+	}
+
+	/**
+	 * Compile an instruction that doesn't change the control flow, the same
+	 * way as its case in runSwitch()
+	 * @return true if it writes to memory
+	 */
+	private boolean compileInstruction(int opcode, int op, int word, int next) {
+		switch(opcode) {
+		case 0x01: logical(IOR, IZX, op, word, 6, false); return false;
+		case 0x05: logical(IOR, ZP, op, word, 3, false); return false;
+		case 0x09: logical(IOR, IMM, op, word, 2, false); return false;
+		case 0x0D: logical(IOR, ABS, op, word, 4, false); return false;
+		case 0x11: logical(IOR, IZY, op, word, 5, true); return false;
+		case 0x15: logical(IOR, ZPX, op, word, 4, false); return false;
+		case 0x19: logical(IOR, ABSY, op, word, 4, true); return false;
+		case 0x1D: logical(IOR, ABSX, op, word, 4, true); return false;
+		case 0x21: logical(IAND, IZX, op, word, 6, false); return false;
+		case 0x25: logical(IAND, ZP, op, word, 3, false); return false;
+		case 0x29: logical(IAND, IMM, op, word, 2, false); return false;
+		case 0x2D: logical(IAND, ABS, op, word, 4, false); return false;
+		case 0x31: logical(IAND, IZY, op, word, 5, true); return false;
+		case 0x35: logical(IAND, ZPX, op, word, 4, false); return false;
+		case 0x39: logical(IAND, ABSY, op, word, 4, true); return false;
+		case 0x3D: logical(IAND, ABSX, op, word, 4, true); return false;
+		case 0x41: logical(IXOR, IZX, op, word, 6, false); return false;
+		case 0x45: logical(IXOR, ZP, op, word, 3, false); return false;
+		case 0x49: logical(IXOR, IMM, op, word, 2, false); return false;
+		case 0x4D: logical(IXOR, ABS, op, word, 4, false); return false;
+		case 0x51: logical(IXOR, IZY, op, word, 5, true); return false;
+		case 0x55: logical(IXOR, ZPX, op, word, 4, false); return false;
+		case 0x59: logical(IXOR, ABSY, op, word, 4, true); return false;
+		case 0x5D: logical(IXOR, ABSX, op, word, 4, true); return false;
+
+		case 0x24: bit(ZP, op, word, 3); return false;
+		case 0x2C: bit(ABS, op, word, 4); return false;
+
+		case 0x61: arithmetic("adc", IZX, op, word, 6, false); return false;
+		case 0x65: arithmetic("adc", ZP, op, word, 3, false); return false;
+		case 0x69: arithmetic("adc", IMM, op, word, 2, false); return false;
+		case 0x6D: arithmetic("adc", ABS, op, word, 4, false); return false;
+		case 0x71: arithmetic("adc", IZY, op, word, 5, true); return false;
+		case 0x75: arithmetic("adc", ZPX, op, word, 4, false); return false;
+		case 0x79: arithmetic("adc", ABSY, op, word, 4, true); return false;
+		case 0x7D: arithmetic("adc", ABSX, op, word, 4, true); return false;
+		case 0xE1: arithmetic("sbc", IZX, op, word, 6, false); return false;
+		case 0xE5: arithmetic("sbc", ZP, op, word, 3, false); return false;
+		case 0xE9: arithmetic("sbc", IMM, op, word, 2, false); return false;
+		case 0xED: arithmetic("sbc", ABS, op, word, 4, false); return false;
+		case 0xF1: arithmetic("sbc", IZY, op, word, 5, true); return false;
+		case 0xF5: arithmetic("sbc", ZPX, op, word, 4, false); return false;
+		case 0xF9: arithmetic("sbc", ABSY, op, word, 4, true); return false;
+		case 0xFD: arithmetic("sbc", ABSX, op, word, 4, true); return false;
+
+		case 0xC0: compare(Y, IMM, op, word, 2, false); return false;
+		case 0xC4: compare(Y, ZP, op, word, 3, false); return false;
+		case 0xCC: compare(Y, ABS, op, word, 4, false); return false;
+		case 0xE0: compare(X, IMM, op, word, 2, false); return false;
+		case 0xE4: compare(X, ZP, op, word, 3, false); return false;
+		case 0xEC: compare(X, ABS, op, word, 4, false); return false;
+		case 0xC1: compare(A, IZX, op, word, 6, false); return false;
+		case 0xC5: compare(A, ZP, op, word, 3, false); return false;
+		case 0xC9: compare(A, IMM, op, word, 2, false); return false;
+		case 0xCD: compare(A, ABS, op, word, 4, false); return false;
+		case 0xD1: compare(A, IZY, op, word, 5, true); return false;
+		case 0xD5: compare(A, ZPX, op, word, 4, false); return false;
+		case 0xD9: compare(A, ABSY, op, word, 4, true); return false;
+		case 0xDD: compare(A, ABSX, op, word, 4, true); return false;
+
+		case 0xA1: loadRegister(A, IZX, op, word, 6, false); return false;
+		case 0xA5: loadRegister(A, ZP, op, word, 3, false); return false;
+		case 0xA9: loadRegister(A, IMM, op, word, 2, false); return false;
+		case 0xAD: loadRegister(A, ABS, op, word, 4, false); return false;
+		case 0xB1: loadRegister(A, IZY, op, word, 5, true); return false;
+		case 0xB5: loadRegister(A, ZPX, op, word, 4, false); return false;
+		case 0xB9: loadRegister(A, ABSY, op, word, 4, true); return false;
+		case 0xBD: loadRegister(A, ABSX, op, word, 4, true); return false;
+		case 0xA2: loadRegister(X, IMM, op, word, 2, false); return false;
+		case 0xA6: loadRegister(X, ZP, op, word, 3, false); return false;
+		case 0xAE: loadRegister(X, ABS, op, word, 4, false); return false;
+		//LDX zp,y and STX zp,y are addressed like computeAddressingMode does
+		case 0xB6: loadRegister(X, ZPX, op, word, 4, false); return false;
+		case 0xBE: loadRegister(X, ABSY, op, word, 4, true); return false;
+		case 0xA0: loadRegister(Y, IMM, op, word, 2, false); return false;
+		case 0xA4: loadRegister(Y, ZP, op, word, 3, false); return false;
+		case 0xAC: loadRegister(Y, ABS, op, word, 4, false); return false;
+		case 0xB4: loadRegister(Y, ZPX, op, word, 4, false); return false;
+		case 0xBC: loadRegister(Y, ABSX, op, word, 4, true); return false;
+
+		case 0x81: storeRegister(A, IZX, op, word, 6); return true;
+		case 0x85: storeRegister(A, ZP, op, word, 3); return true;
+		case 0x8D: storeRegister(A, ABS, op, word, 4); return true;
+		case 0x91: storeRegister(A, IZY, op, word, 5); return true;
+		case 0x95: storeRegister(A, ZPX, op, word, 4); return true;
+		case 0x99: storeRegister(A, ABSY, op, word, 5); return true;
+		case 0x9D: storeRegister(A, ABSX, op, word, 5); return true;
+		case 0x86: storeRegister(X, ZP, op, word, 3); return true;
+		case 0x8E: storeRegister(X, ABS, op, word, 4); return true;
+		case 0x96: storeRegister(X, ZPX, op, word, 4); return true;
+		case 0x84: storeRegister(Y, ZP, op, word, 3); return true;
+		case 0x8C: storeRegister(Y, ABS, op, word, 4); return true;
+		case 0x94: storeRegister(Y, ZPX, op, word, 4); return true;
+
+		case 0x06: shift(ASL, ZP, op, word, 5); return true;
+		case 0x0A: shift(ASL, ACC, op, word, 2); return false;
+		case 0x0E: shift(ASL, ABS, op, word, 6); return true;
+		case 0x16: shift(ASL, ZPX, op, word, 6); return true;
+		case 0x1E: shift(ASL, ABSX, op, word, 7); return true;
+		case 0x46: shift(LSR, ZP, op, word, 5); return true;
+		case 0x4A: shift(LSR, ACC, op, word, 2); return false;
+		case 0x4E: shift(LSR, ABS, op, word, 6); return true;
+		case 0x56: shift(LSR, ZPX, op, word, 6); return true;
+		case 0x5E: shift(LSR, ABSX, op, word, 7); return true;
+		case 0x26: shift(ROL, ZP, op, word, 5); return true;
+		case 0x2A: shift(ROL, ACC, op, word, 2); return false;
+		case 0x2E: shift(ROL, ABS, op, word, 6); return true;
+		case 0x36: shift(ROL, ZPX, op, word, 6); return true;
+		case 0x3E: shift(ROL, ABSX, op, word, 7); return true;
+		case 0x66: shift(ROR, ZP, op, word, 5); return true;
+		case 0x6A: shift(ROR, ACC, op, word, 2); return false;
+		case 0x6E: shift(ROR, ABS, op, word, 6); return true;
+		case 0x76: shift(ROR, ZPX, op, word, 6); return true;
+		case 0x7E: shift(ROR, ABSX, op, word, 7); return true;
+
+		case 0xC6: increment(-1, ZP, op, word, 5, false); return true;
+		case 0xCE: increment(-1, ABS, op, word, 6, false); return true;
+		case 0xD6: increment(-1, ZPX, op, word, 6, false); return true;
+		case 0xDE: increment(-1, ABSX, op, word, 7, true); return true;
+		case 0xE6: increment(1, ZP, op, word, 5, false); return true;
+		case 0xEE: increment(1, ABS, op, word, 6, false); return true;
+		case 0xF6: increment(1, ZPX, op, word, 6, false); return true;
+		case 0xFE: increment(1, ABSX, op, word, 7, true); return true;
+
+		case 0xCA: incrementRegister(X, -1); return false;
+		case 0x88: incrementRegister(Y, -1); return false;
+		case 0xE8: incrementRegister(X, 1); return false;
+		case 0xC8: incrementRegister(Y, 1); return false;
+
+		case 0xAA: transfer(A, X, true); return false;
+		case 0x8A: transfer(X, A, true); return false;
+		case 0x98: transfer(Y, A, true); return false;
+		case 0xBA: transfer(SP, X, true); return false;
+		case 0x9A: transfer(X, SP, false); return false;
+
+		case 0x18: setFlag(CARRY, 0); return false;
+		case 0x38: setFlag(CARRY, 1); return false;
+		case 0x58: setFlag(INTERRUPT, 0); return false;
+		case 0x78: setFlag(INTERRUPT, 1); return false;
+		case 0xB8: setFlag(OVERFLOW, 0); return false;
+		case 0xD8: setFlag(DECIMAL, 0); return false;
+		case 0xF8: setFlag(DECIMAL, 1); return false;
+		case 0xEA: cycles(2, 0); return false;
+
+		case 0x48: //PHA
+			sliceCycles();
+			loadCpu();
+			stackAddress();
+			load(A);
+			writeByte();
+			decrementSP();
+			cycles(3, 0);
+			return true;
+		case 0x08: //PHP
+			sliceCycles();
+			pushStack(-1);
+			cycles(3, 0);
+			return true;
+		case 0x68: //PLA
+			sliceCycles();
+			pullStack();
+			u1(DUP);
+			store(A);
+			setZN();
+			cycles(4, 0);
+			return false;
+		case 0x28: //PLP
+			sliceCycles();
+			pullStack();
+			store(VAL);
+			unpackFlags();
+			cycles(4, 0);
+			return false;
+		default:
+			throw new IllegalArgumentException("Opcode " + Integer.toHexString(opcode) + " can't be compiled");
+		}
+	}
+}
@@ -0,0 +1,114 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Execution breakpoints and read/write watchpoints of a cpu (see
+ * Cpu6502.setBreakpoints()), one bit per address and kind. While none is
+ * armed the cpu runs its own core without any check. Once one is armed it
+ * runs the INSTRUCTION core and stops with StopReason.BREAKPOINT before
+ * executing an instruction at a breakpoint, or an instruction reading or
+ * writing a watched address or one of its mirrors.
+ */
+public final class Breakpoints {
+
+	public enum Kind { EXECUTE, READ, WRITE };
+
+	/**
+	 * Extra condition of a breakpoint, tested after its address matched
+	 */
+	public interface Condition {
+		/**
+		 * @param addr address executed, read or written
+		 */
+		boolean test(Cpu6502 cpu, int addr);
+	}
+
+	private final long[][] bits = new long[3][1024];
+	private final int[] counts = new int[3];
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private final Map<Integer, Condition>[] conditions = new Map[] {
+		new HashMap<Integer, Condition>(), new HashMap<Integer, Condition>(), new HashMap<Integer, Condition>()
+	};
+	private Kind hitKind;
+	private int hitAddress = -1;
+
+	public void add(Kind kind, int addr) {
+		add(kind, addr, null);
+	}
+
+	/**
+	 * @param condition null to stop every time the address matches
+	 */
+	public void add(Kind kind, int addr, Condition condition) {
+		addr &= 0xFFFF;
+		long[] set = bits[kind.ordinal()];
+		if((set[addr>>6]&1L<<addr) == 0) {
+			set[addr>>6] |= 1L<<addr;
+			counts[kind.ordinal()]++;
+		}
+		if(condition != null)
+			conditions[kind.ordinal()].put(addr, condition);
+		else
+			conditions[kind.ordinal()].remove(addr);
+	}
+
+	/**
+	 * Watch every address from first to last included
+	 */
+	public void addRange(Kind kind, int first, int last, Condition condition) {
+		for(int addr = first; addr <= last; addr++)
+			add(kind, addr, condition);
+	}
+
+	public void remove(Kind kind, int addr) {
+		addr &= 0xFFFF;
+		long[] set = bits[kind.ordinal()];
+		if((set[addr>>6]&1L<<addr) != 0) {
+			set[addr>>6] &= ~(1L<<addr);
+			counts[kind.ordinal()]--;
+		}
+		conditions[kind.ordinal()].remove(addr);
+	}
+
+	public void clear() {
+		for(int kind = 0; kind < bits.length; kind++) {
+			Arrays.fill(bits[kind], 0);
+			counts[kind] = 0;
+			conditions[kind].clear();
+		}
+	}
+
+	public boolean isArmed() {
+		return counts[0]+counts[1]+counts[2] != 0;
+	}
+
+	boolean isWatching() {
+		return counts[Kind.READ.ordinal()]+counts[Kind.WRITE.ordinal()] != 0;
+	}
+
+	/**
+	 * @return kind of the last breakpoint hit, null if none was
+	 */
+	public Kind getHitKind() {
+		return hitKind;
+	}
+
+	/**
+	 * @return address of the last breakpoint hit, -1 if none was
+	 */
+	public int getHitAddress() {
+		return hitAddress;
+	}
+
+	boolean hit(Kind kind, int addr, Cpu6502 cpu) {
+		if((bits[kind.ordinal()][addr>>6]&1L<<addr) == 0)
+			return false;
+		Condition condition = conditions[kind.ordinal()].get(addr);
+		if(condition != null && !condition.test(cpu, addr))
+			return false;
+		hitKind = kind;
+		hitAddress = addr;
+		return true;
+	}
+}
@@ -0,0 +1,358 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * iNES cartridge (see doc/everynes.htm). PRG-ROM is mapped at $8000-$FFFF
+ * and the cpu starts from the reset vector. Bank switches of the NROM,
+ * MMC1, UxROM and CNROM mappers remap pages of the ROM, they never copy
+ * it. There is no PPU yet, so CHR banks and mirroring are only tracked.
+ */
+public final class Cartridge {
+
+	public static final int NROM = 0;
+	public static final int MMC1 = 1;
+	public static final int UXROM = 2;
+	public static final int CNROM = 3;
+
+	public enum Mirroring {
+		HORIZONTAL, VERTICAL, SINGLE_LOWER, SINGLE_UPPER, FOUR_SCREEN
+	}
+
+	private static final byte[] MAGIC = { 'N', 'E', 'S', 0x1A };
+	private static final int HEADER_SIZE = 16;
+	private static final int TRAINER_SIZE = 512;
+	private static final int TRAINER_ADDRESS = 0x7000;
+	private static final int PRG_BANK_SIZE = 0x4000;
+	private static final int PRG_BANK_PAGES = PRG_BANK_SIZE>>8;
+	private static final int CHR_BANK_SIZE = 0x2000;
+	private static final int FIRST_PRG_PAGE = 0x80;
+
+	//PRG-ROM cut in pages, ready to be mapped
+	private final byte[][] prg;
+	private final int prgBanks;
+	private final byte[] chr;
+	private final byte[] trainer;
+	private final int mapper;
+	private final Mirroring mirroring;
+	private final boolean battery;
+
+	private Cartridge(byte[][] prg, byte[] chr, byte[] trainer, int mapper, Mirroring mirroring, boolean battery) {
+		this.prg = prg;
+		this.prgBanks = prg.length/PRG_BANK_PAGES;
+		this.chr = chr;
+		this.trainer = trainer;
+		this.mapper = mapper;
+		this.mirroring = mirroring;
+		this.battery = battery;
+	}
+
+	/**
+	 * @return true if the file starts with the iNES header
+	 */
+	public static boolean isINes(ByteBuffer file) {
+		if(file.remaining() < HEADER_SIZE)
+			return false;
+		for(int i = 0; i < MAGIC.length; i++)
+			if(file.get(file.position()+i) != MAGIC[i])
+				return false;
+		return true;
+	}
+
+	public static Cartridge read(File file) throws IOException {
+		return read(Cpu6502.readImage(file, Integer.MAX_VALUE));
+	}
+
+	public static Cartridge read(ByteBuffer file) {
+		if(!isINes(file))
+			throw new IllegalArgumentException("Not an iNES file");
+		ByteBuffer in = file.duplicate();
+		byte[] header = new byte[HEADER_SIZE];
+		in.get(header);
+		int prgBanks = header[4]&0xFF;
+		int chrBanks = header[5]&0xFF;
+		int flags6 = header[6]&0xFF;
+		int flags7 = header[7]&0xFF;
+		int mapper = flags6>>4;
+		//NES 2.0, or iNES unless old dumping tools wrote their name in bytes 7-15
+		if((flags7&0x0C) == 0x08 || ((flags7&0x0C) == 0 && (header[12]|header[13]|header[14]|header[15]) == 0))
+			mapper |= flags7&0xF0;
+		if(mapper != NROM && mapper != MMC1 && mapper != UXROM && mapper != CNROM)
+			throw new IllegalArgumentException("Unsupported mapper " + mapper);
+		if(prgBanks == 0)
+			throw new IllegalArgumentException("No PRG-ROM");
+		int size = ((flags6&0x04) != 0 ? TRAINER_SIZE : 0)+prgBanks*PRG_BANK_SIZE+chrBanks*CHR_BANK_SIZE;
+		if(in.remaining() < size)
+			throw new IllegalArgumentException("Truncated iNES file");
+		byte[] trainer = null;
+		if((flags6&0x04) != 0) {
+			trainer = new byte[TRAINER_SIZE];
+			in.get(trainer);
+		}
+		byte[][] prg = new byte[prgBanks*PRG_BANK_PAGES][256];
+		for(byte[] page : prg)
+			in.get(page);
+		//8KB of CHR-RAM without CHR-ROM
+		byte[] chr = new byte[Math.max(1, chrBanks)*CHR_BANK_SIZE];
+		if(chrBanks > 0)
+			in.get(chr);
+		Mirroring mirroring = (flags6&0x08) != 0 ? Mirroring.FOUR_SCREEN
+				: (flags6&0x01) != 0 ? Mirroring.VERTICAL : Mirroring.HORIZONTAL;
+		return new Cartridge(prg, chr, trainer, mapper, mirroring, (flags6&0x02) != 0);
+	}
+
+	public int getMapper() {
+		return mapper;
+	}
+
+	/**
+	 * @return number of 16KB PRG-ROM banks
+	 */
+	public int getPrgBanks() {
+		return prgBanks;
+	}
+
+	/**
+	 * @return CHR-ROM, or CHR-RAM when the cartridge has no CHR-ROM
+	 */
+	public ByteBuffer getChr() {
+		return ByteBuffer.wrap(chr);
+	}
+
+	/**
+	 * @return true if $6000-$7FFF is battery backed
+	 */
+	public boolean hasBattery() {
+		return battery;
+	}
+
+	/**
+	 * Map the cartridge in a cpu and reset it to the reset vector. The
+	 * ROM is shared by every cpu it is inserted in, each one getting its
+	 * own mapper. A fork of the cpu gets a copy of the mapper of its parent,
+	 * so bank switches in one of them don't remap the other.
+	 * @return mapper state of this cpu
+	 */
+	public Mapper insert(Cpu6502 cpu) {
+		Mapper m;
+		switch(mapper) {
+		case MMC1:
+			m = new Mmc1(cpu);
+			break;
+		case UXROM:
+			m = new UxRom(cpu);
+			break;
+		case CNROM:
+			m = new CnRom(cpu);
+			break;
+		default:
+			m = new Mapper(cpu);
+		}
+		if(trainer != null)
+			cpu.load(TRAINER_ADDRESS, ByteBuffer.wrap(trainer));
+		cpu.reset(cpu.readByte(0xFFFC)|cpu.readByte(0xFFFD)<<8);
+		return m;
+	}
+
+	/**
+	 * Bank registers of a cartridge inserted in a cpu, written through
+	 * $8000-$FFFF. The base class is NROM: 16KB mirrored or 32KB of PRG-ROM
+	 * and 8KB of CHR, without any register.
+	 */
+	public class Mapper implements Cpu6502.ForkableIoHandler {
+		protected final Cpu6502 cpu;
+		//4KB CHR banks seen by the PPU at $0000 and $1000
+		protected int chrBank0 = 0;
+		protected int chrBank1 = 1;
+		protected Mirroring mirroring = Cartridge.this.mirroring;
+
+		Mapper(Cpu6502 cpu) {
+			this.cpu = cpu;
+			mapPrg(0, 0);
+			mapPrg(1, prgBanks-1);
+		}
+
+		/**
+		 * Copy of the registers of a mapper, for a fork of its cpu
+		 */
+		Mapper(Mapper parent, Cpu6502 cpu) {
+			this.cpu = cpu;
+			chrBank0 = parent.chrBank0;
+			chrBank1 = parent.chrBank1;
+			mirroring = parent.mirroring;
+		}
+
+		public Mapper fork(Cpu6502 fork) {
+			return new Mapper(this, fork);
+		}
+
+		/**
+		 * Map a 16KB PRG bank at $8000 (slot 0) or $C000 (slot 1)
+		 */
+		protected final void mapPrg(int slot, int bank) {
+			cpu.mapRom(FIRST_PRG_PAGE+slot*PRG_BANK_PAGES, PRG_BANK_PAGES, prg, (bank%prgBanks)*PRG_BANK_PAGES, this);
+		}
+
+		/**
+		 * Map a 32KB PRG bank at $8000
+		 */
+		protected final void mapPrg32(int bank) {
+			if(prgBanks < 2) {
+				mapPrg(0, 0);
+				mapPrg(1, 0);
+			}
+			else
+				cpu.mapRom(FIRST_PRG_PAGE, 2*PRG_BANK_PAGES, prg, (bank%(prgBanks>>1))*2*PRG_BANK_PAGES, this);
+		}
+
+		/**
+		 * @param ppuAddr $0000 or $1000
+		 * @return offset in getChr() of the 4KB bank mapped at ppuAddr
+		 */
+		public int getChrOffset(int ppuAddr) {
+			int bank = (ppuAddr&0x1000) == 0 ? chrBank0 : chrBank1;
+			return (bank%(chr.length>>12))<<12;
+		}
+
+		public Mirroring getMirroring() {
+			return mirroring;
+		}
+
+		//PRG-ROM reads don't go through the handler
+		public int read(int addr) {
+			return 0;
+		}
+
+		public void write(int addr, int val) {
+		}
+	}
+
+	/**
+	 * Registers loaded one bit per write through a 5 bits shift register
+	 */
+	private final class Mmc1 extends Mapper {
+		private int shift;
+		private int count;
+		private int control = 0x0C;
+		private int prgBank;
+
+		//starts in mode 3, as the base mapper: first bank at $8000, last one at $C000
+		Mmc1(Cpu6502 cpu) {
+			super(cpu);
+		}
+
+		Mmc1(Mmc1 parent, Cpu6502 cpu) {
+			super(parent, cpu);
+			shift = parent.shift;
+			count = parent.count;
+			control = parent.control;
+			prgBank = parent.prgBank;
+		}
+
+		public Mapper fork(Cpu6502 fork) {
+			return new Mmc1(this, fork);
+		}
+
+		public void write(int addr, int val) {
+			if((val&0x80) != 0) {
+				shift = 0;
+				count = 0;
+				control |= 0x0C;
+				updatePrg();
+				return;
+			}
+			shift |= (val&1)<<count;
+			if(++count < 5)
+				return;
+			switch((addr>>13)&3) {
+			case 0:
+				control = shift;
+				updatePrg();
+				break;
+			case 1:
+				chrBank0 = shift;
+				break;
+			case 2:
+				chrBank1 = shift;
+				break;
+			default:
+				prgBank = shift&0x0F;
+				updatePrg();
+			}
+			shift = 0;
+			count = 0;
+			mirroring = MMC1_MIRRORING[control&3];
+		}
+
+		private void updatePrg() {
+			switch((control>>2)&3) {
+			case 0:
+			case 1:
+				mapPrg32(prgBank>>1);
+				break;
+			case 2:
+				mapPrg(0, 0);
+				mapPrg(1, prgBank);
+				break;
+			default:
+				mapPrg(0, prgBank);
+				mapPrg(1, prgBanks-1);
+			}
+		}
+
+		public int getChrOffset(int ppuAddr) {
+			if((control&0x10) != 0)
+				return super.getChrOffset(ppuAddr);
+			//8KB mode ignores the low bit and chrBank1
+			int bank = (chrBank0&~1)|((ppuAddr>>12)&1);
+			return (bank%(chr.length>>12))<<12;
+		}
+	}
+
+	private static final Mirroring[] MMC1_MIRRORING = {
+		Mirroring.SINGLE_LOWER, Mirroring.SINGLE_UPPER, Mirroring.VERTICAL, Mirroring.HORIZONTAL
+	};
+
+	/**
+	 * 16KB bank switched at $8000, last bank fixed at $C000
+	 */
+	private final class UxRom extends Mapper {
+		UxRom(Cpu6502 cpu) {
+			super(cpu);
+		}
+
+		UxRom(UxRom parent, Cpu6502 cpu) {
+			super(parent, cpu);
+		}
+
+		public Mapper fork(Cpu6502 fork) {
+			return new UxRom(this, fork);
+		}
+
+		public void write(int addr, int val) {
+			mapPrg(0, val);
+		}
+	}
+
+	/**
+	 * 8KB CHR bank switch, PRG as NROM
+	 */
+	private final class CnRom extends Mapper {
+		CnRom(Cpu6502 cpu) {
+			super(cpu);
+		}
+
+		CnRom(CnRom parent, Cpu6502 cpu) {
+			super(parent, cpu);
+		}
+
+		public Mapper fork(Cpu6502 fork) {
+			return new CnRom(this, fork);
+		}
+
+		public void write(int addr, int val) {
+			chrBank0 = (val&3)<<1;
+			chrBank1 = chrBank0+1;
+		}
+	}
+}
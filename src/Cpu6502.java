@@ -1,13 +1,29 @@
 import java.lang.String;
 import java.lang.annotation.*;
-import java.lang.reflect.Constructor;
+import java.lang.management.ManagementFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class Cpu6502 {
 	@Retention(RetentionPolicy.RUNTIME)
 	@Target(value=ElementType.TYPE)
 	public @interface InstructionClass {}
 	
-	private enum AddressingMode { IMM, ZP, ZPX, ZPY, IZX, IZY, ABS, ABSX, ABSY, IND, REL, ACC, NONE };
+	private enum AddressingMode { IMM, ZP, ZPX, ZPY, IZX, IZY, ABS, ABSX, ABSY, IND, REL, ACC, NONE, ZPI, IAX };
 	private enum ProcessorFlags {
 	  NEGATIVE(128),
 	  OVERFLOW(64),
@@ -21,18 +37,214 @@ public class Cpu6502 {
 	  ProcessorFlags(int val) { value = val;}
 	};		
 	private static final int STACK_MEMORY = 0x100;
+	private static final int NMI_VECTOR = 0xFFFA;
+	private static final int IRQ_VECTOR = 0xFFFE;
+	private static final int INTERRUPT_CYCLES = 7;
+
+	/**
+	 * INSTRUCTION dispatches each opcode to its Instruction object, SWITCH 
+	 * decodes and executes everything in a single switch with registers 
+	 * kept in local variables, TIERED is INSTRUCTION with a decoded 
+	 * instruction cache plus compilation of hot blocks into JVM classes 
+	 * (see BlockCompiler)
+	 */
+	public enum Core { INSTRUCTION, SWITCH, TIERED };
+
+	/**
+	 * NMOS is the original 6502, RICOH_2A03 the NES cpu which ignores the
+	 * decimal flag, CMOS_65C02 adds the 65C02 opcodes and (zp) and (abs,x) 
+	 * addressing, and reads the high byte of JMP (ind) from the next page
+	 */
+	public enum Variant { NMOS, RICOH_2A03, CMOS_65C02 };
+
+	/**
+	 * BYTE_ARRAY keeps memory in byte arrays on the heap, DIRECT_BUFFER in
+	 * a direct buffer outside of it. Direct buffer pages are accessed 
+	 * through the I/O path and never cached by the TIERED core.
+	 */
+	public enum MemoryBackend { BYTE_ARRAY, DIRECT_BUFFER };
+
+	public enum StopReason { CYCLE_LIMIT, TIME_LIMIT, STOPPED, TRAPPED, UNKNOWN_OPCODE, BREAKPOINT };
+
+	/**
+	 * Memory mapped device, receives the accesses to the pages mapped to it
+	 */
+	public interface IoHandler {
+		/**
+		 * @param addr address read
+		 * @return byte value
+		 */
+		int read(int addr);
+
+		/**
+		 * @param addr address written
+		 * @param val byte value
+		 */
+		void write(int addr, int val);
+	}
+
+	/**
+	 * I/O handler with a state of its own in each fork of a cpu, like the
+	 * bank registers of a mapper
+	 */
+	public interface ForkableIoHandler extends IoHandler {
+		/**
+		 * Called while forking, once every page of the fork is mapped as in
+		 * the parent and before the fork runs. Pages still mapped to the
+		 * handler are then mapped to its copy.
+		 * @param fork cpu being forked
+		 * @return copy of the handler for the fork
+		 */
+		IoHandler fork(Cpu6502 fork);
+	}
+
+	/**
+	 * Outcome of a run: number of cycles executed and why it stopped
+	 */
+	public static final class RunStatus {
+		private final long cycles;
+		private final StopReason reason;
+
+		RunStatus(long cycles, StopReason reason) {
+			this.cycles = cycles;
+			this.reason = reason;
+		}
+
+		public long getCycles() {
+			return cycles;
+		}
+
+		public StopReason getReason() {
+			return reason;
+		}
+
+		/**
+		 * @return true if the cpu can't go further (unknown opcode, or 
+		 * jump to itself that no interrupt can leave)
+		 */
+		public boolean isHalted() {
+			return reason == StopReason.TRAPPED || reason == StopReason.UNKNOWN_OPCODE;
+		}
+
+		public String toString() {
+			return reason+" after "+cycles+" cycles";
+		}
+	}
 	
+	/**
+	 * Saved state of a cpu: registers, interrupt lines, ticks, clock speed 
+	 * and the content of every memory page, in a versioned binary format
+	 */
+	public static final class Snapshot {
+		private static final int MAGIC = 0x36353032; //"6502"
+		private static final int VERSION = 2;
+		//magic, version and length
+		private static final int HEADER_SIZE = 10;
+
+		private final ByteBuffer data;
+
+		Snapshot(ByteBuffer data) {
+			this.data = data;
+		}
+
+		/**
+		 * @return size of the snapshot in bytes
+		 */
+		public int size() {
+			return data.capacity();
+		}
+
+		/**
+		 * Put the snapshot at the position of the buffer
+		 */
+		public void writeTo(ByteBuffer out) {
+			out.put(data.duplicate());
+		}
+
+		/**
+		 * Write the snapshot to a channel, like a FileChannel
+		 */
+		public void writeTo(WritableByteChannel out) throws IOException {
+			ByteBuffer buffer = data.duplicate();
+			while(buffer.hasRemaining())
+				out.write(buffer);
+		}
+
+		/**
+		 * Read a snapshot at the position of the buffer
+		 */
+		public static Snapshot readFrom(ByteBuffer in) {
+			int length = checkHeader(in.duplicate());
+			byte[] data = new byte[length];
+			in.get(data);
+			return new Snapshot(ByteBuffer.wrap(data));
+		}
+
+		/**
+		 * Read a snapshot from a channel, like a FileChannel
+		 */
+		public static Snapshot readFrom(ReadableByteChannel in) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(in, header);
+			header.flip();
+			ByteBuffer data = ByteBuffer.allocate(checkHeader(header.duplicate()));
+			data.put(header);
+			readFully(in, data);
+			data.flip();
+			return new Snapshot(data);
+		}
+
+		private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+			while(buffer.hasRemaining()) {
+				if(in.read(buffer) < 0)
+					throw new IOException("Truncated snapshot");
+			}
+		}
+
+		/**
+		 * @return snapshot length
+		 */
+		private static int checkHeader(ByteBuffer in) {
+			if(in.remaining() < HEADER_SIZE || in.getInt() != MAGIC)
+				throw new IllegalArgumentException("Not a snapshot");
+			int version = in.getShort();
+			if(version != VERSION)
+				throw new IllegalArgumentException("Unsupported snapshot version " + version);
+			int length = in.getInt();
+			if(length < HEADER_SIZE)
+				throw new IllegalArgumentException("Bad snapshot length " + length);
+			return length;
+		}
+	}
+
 	private static final double NTSC_CLOCK_NS = mhzToNanoSecond(1.7897725);
 	//private static final double PAL_CLOCK_NS = mhzToNanoSecond(1.7734474);
 	private static double mhzToNanoSecond(double mhz) {
 		return 1000/mhz;
 	}
 
+	public static final int SCANLINE_CYCLES = 114;
+	public static final int FRAME_CYCLES = 29781;
+	private static final long MAX_LAG_NS = 100000000L;
+
 	private double clockSpeed = NTSC_CLOCK_NS;
 	public void setClockSpeed(double clockSpeed) {
 		this.clockSpeed = clockSpeed;
 	}
 
+	public double getClockSpeed() {
+		return clockSpeed;
+	}
+
+	private int throttleQuantum = FRAME_CYCLES;
+	/**
+	 * @param cycles number of cycles run freely before sleeping until
+	 * the wall-clock deadline (see SCANLINE_CYCLES, FRAME_CYCLES)
+	 */
+	public void setThrottleQuantum(int cycles) {
+		this.throttleQuantum = Math.max(1, cycles);
+	}
+
 	private class Registers {
 		int PC;
 		int SP;
@@ -40,38 +252,149 @@ public class Cpu6502 {
 		int X;
 		int Y;
 		boolean carry;
-		boolean zero;
 		boolean interrupt;
 		boolean decimal;
 		boolean brk;
 		boolean overflow;
-		boolean negative;
+		/*
+		 * Zero and negative are computed from the last result only when read:
+		 * zero is set when zeroResult == 0, negative when bit 7 of 
+		 * negativeResult is set
+		 */
+		int zeroResult;
+		int negativeResult;
+
+		public boolean isZero() {
+			return zeroResult == 0;
+		}
+
+		public void setZero(boolean zero) {
+			zeroResult = zero?0:1;
+		}
+
+		public boolean isNegative() {
+			return (negativeResult&0x80) != 0;
+		}
+
+		public void setNegative(boolean negative) {
+			negativeResult = negative?0x80:0;
+		}
 			
 		/**
 		 * @return all status flags in a single byte 
 		 */
 		public int getFlags() {
-			return (carry?1:0)|((zero?1:0)<<1)|((interrupt?1:0)<<2)|((decimal?1:0)<<3)|((brk?1:0)<<4)|((overflow?1:0)<<6)|((negative?1:0)<<7);			  
+			return packFlags(carry, isZero(), interrupt, decimal, brk, overflow, isNegative());			  
 		}
 
 		/**
 		 * @param flag set processor control flags
 		 */
 		public void setFlags(int flag) {
-			carry = (flag&ProcessorFlags.CARRY.value)==1;
-			zero = (flag&ProcessorFlags.ZERO.value)==1;
-			interrupt = (flag&ProcessorFlags.INTERRUPT.value)==1;
-			decimal = (flag&ProcessorFlags.DECIMAL.value)==1;
-			brk = (flag&ProcessorFlags.BREAK.value)==1;
-			overflow = (flag&ProcessorFlags.OVERFLOW.value)==1;
-			negative = (flag&ProcessorFlags.NEGATIVE.value)==1;						  
+			carry = (flag&ProcessorFlags.CARRY.value) != 0;
+			setZero((flag&ProcessorFlags.ZERO.value) != 0);
+			interrupt = (flag&ProcessorFlags.INTERRUPT.value) != 0;
+			decimal = (flag&ProcessorFlags.DECIMAL.value) != 0;
+			brk = (flag&ProcessorFlags.BREAK.value) != 0;
+			overflow = (flag&ProcessorFlags.OVERFLOW.value) != 0;
+			setNegative((flag&ProcessorFlags.NEGATIVE.value) != 0);
+		}
+
+		public void copyFrom(Registers other) {
+			PC = other.PC;
+			SP = other.SP;
+			A = other.A;
+			X = other.X;
+			Y = other.Y;
+			carry = other.carry;
+			interrupt = other.interrupt;
+			decimal = other.decimal;
+			brk = other.brk;
+			overflow = other.overflow;
+			zeroResult = other.zeroResult;
+			negativeResult = other.negativeResult;
 		}
 	};
+	private static int packFlags(boolean carry, boolean zero, boolean interrupt, boolean decimal, 
+			boolean brk, boolean overflow, boolean negative) {
+		return (carry?1:0)|((zero?1:0)<<1)|((interrupt?1:0)<<2)|((decimal?1:0)<<3)|((brk?1:0)<<4)|((overflow?1:0)<<6)|((negative?1:0)<<7);			  
+	}
+
 	private Registers regs = new Registers();		
-	private Instruction[] instList = initInstructionList();
-	private static AddressingMode[] opcodeAddressingMode = initOpcodeAddressingMode();
-	private int[] memory = new int[65536];
-	private int ticks;
+	private final Core core;
+	private final Variant variant;
+	private static final AddressingMode[] opcodeAddressingMode = initOpcodeAddressingMode();
+	private static final int[] opcodeLength = initOpcodeLength(opcodeAddressingMode);
+	private static final AddressingMode[] cmosAddressingMode = initCmosAddressingMode();
+	private static final int[] cmosOpcodeLength = initOpcodeLength(cmosAddressingMode);
+	/*
+	 * Dispatch tables of the variant, set once at construction so that no
+	 * core ever tests the variant: instructions, addressing mode and length
+	 * of each opcode, page wrap of JMP (ind) and decimal ADC/SBC tables
+	 */
+	private Instruction[] instList;
+	private AddressingMode[] addressingModes;
+	private int[] opcodeLengths;
+	private int indirectPageMask;
+	private int jmpIndirectCycles;
+	private char[] adcDecimalTable;
+	private char[] sbcDecimalTable;
+	/*
+	 * Page table: each page is backed by a 256 bytes array, shared by the
+	 * pages mirroring it, or by an I/O handler when the array is null.
+	 * writePages is the fast path for writes, a page is missing from it 
+	 * when writes to it need more work (see writeTargets).
+	 */
+	private final byte[][] readPages = new byte[256][];
+	private final byte[][] writePages = new byte[256][];
+	private final byte[][] writeTargets = new byte[256][];
+	private final IoHandler[] ioHandlers = new IoHandler[256];
+	//pages shared with a fork, copied on their first write
+	private final boolean[] copyOnWrite = new boolean[256];
+	//$2000-$3FFF registers
+	private final int[] registers = new int[8];
+	private long ticks;
+	private StopReason haltReason;
+	//jumped to itself waiting for an interrupt, ends the slice
+	private boolean idle;
+	private volatile boolean stopRequested;
+	/*
+	 * Interrupt lines: NMI is latched on its rising edge, IRQ is asserted
+	 * as long as one of its sources (one bit each) asserts it
+	 */
+	private boolean nmiLine;
+	private boolean nmiPending;
+	private int irqSources;
+	//cycles elapsed in the current slice before the current instruction
+	private int sliceCycles;
+	private Scheduler scheduler;
+	private Trace trace;
+	private Profiler profiler;
+	private Breakpoints breakpoints;
+	//PC of the last breakpoint hit, not checked again when resuming from it
+	private int resumePC = -1;
+	//READ and WRITE bits of the memory accessed by each opcode, built on demand
+	private byte[] opcodeAccesses;
+	private static final int ACCESS_READ = 1;
+	private static final int ACCESS_WRITE = 2;
+
+	/*
+	 * Runtime metrics (see Metrics): plain counters of the emulating
+	 * thread, read racily by monitoring tools, and the rates of the last
+	 * sample window
+	 */
+	private static final int SAMPLE_CYCLES = 1<<20;
+	private long instructions;
+	private long unknownOpcodes;
+	private long throttleSleep;
+	private long lagResets;
+	private long drift;
+	private int cyclesToSample = SAMPLE_CYCLES;
+	private long sampleTime = System.nanoTime();
+	private long sampleTicks;
+	private long sampleInstructions;
+	private volatile double instructionRate;
+	private volatile double cycleRate;
 
 	abstract class Instruction {
 		protected final String name;
@@ -126,8 +449,8 @@ public class Cpu6502 {
 		}
 		
 		protected void updateNZ(int res) {
-			regs.zero = (res == 0);
-			regs.negative = (res&0x80) != 0;
+			regs.zeroResult = res;
+			regs.negativeResult = res;
 		}
 		
 		protected int convertOperand(int operand) {
@@ -155,34 +478,9 @@ public class Cpu6502 {
 			super(name, opcode, length, mode, numCycles, extraCycle);
 		}
 
-		private void bcdAdd(int operand) {
-			int carry = regs.carry?1:0;
-			int a = Utils6502.unpackBcd(operand);
-			int b = Utils6502.unpackBcd(regs.A);			
-			int res = a+b+carry;
-			regs.A = res%100;
-			regs.carry = res>99	;
-			regs.zero = (regs.A == 0);	
-			regs.overflow = (res>99);
-			regs.negative = (regs.A&0x80) != 0;
-			regs.A = Utils6502.packBcd(res);		 
-		}
-		private void binaryAdd(int operand) {
-			int carry = regs.carry?1:0;
-			int res = regs.A+operand+carry;
-			regs.A = res&255;
-			regs.carry = res>255;
-			regs.zero = (regs.A == 0);	
-			regs.overflow = (res>127 || res<-128);
-			regs.negative = (regs.A&0x80) != 0;
-		}
-		
 		public int execute(int operand) {
 			operand = convertOperand(operand);
-			if(regs.decimal)
-				bcdAdd(operand);				
-			else
-				binaryAdd(operand);
+			setAluResult(adc(regs.A, operand, regs.carry, regs.decimal));
 			return getExecCycles(operand);
 		}
 	}
@@ -378,7 +676,7 @@ public class Cpu6502 {
 			operand = convertOperand(operand);
 			int extraCycle = 0;
 			if(mustBranch()) {
-				regs.PC += operand; //If operand==0, infinite loop?
+				regs.PC = (regs.PC+operand)&0xFFFF; //If operand==0, infinite loop?
 				extraCycle++;
 			}
 			return numCycles+extraCycle;
@@ -404,28 +702,28 @@ public class Cpu6502 {
 		public InstrBEQ() {
 			super("BEQ", 0xF0, 2, AddressingMode.REL, 2, true);			
 		}
-		protected boolean mustBranch() { return regs.zero; }
+		protected boolean mustBranch() { return regs.isZero(); }
 	}
 	
 	@InstructionClass class InstrBNE extends InstrBXX {
 		public InstrBNE() {
 			super("BNE", 0xD0, 2, AddressingMode.REL, 2, true);			
 		}
-		protected boolean mustBranch() { return !regs.zero; }
+		protected boolean mustBranch() { return !regs.isZero(); }
 	}
 
 	@InstructionClass class InstrBPL extends InstrBXX {
 		public InstrBPL() {
 			super("BPL", 0x10, 2, AddressingMode.REL, 2, true);			
 		}
-		protected boolean mustBranch() { return !regs.negative; }
+		protected boolean mustBranch() { return !regs.isNegative(); }
 	}
 
 	@InstructionClass class InstrBMI extends InstrBXX {
 		public InstrBMI() {
 			super("BMI", 0x30, 2, AddressingMode.REL, 2, true);			
 		}
-		protected boolean mustBranch() { return regs.negative; }
+		protected boolean mustBranch() { return regs.isNegative(); }
 	}
 
 	@InstructionClass class InstrBVC extends InstrBXX {
@@ -450,10 +748,10 @@ public class Cpu6502 {
 		
 		public int execute(int operand) {
 			operand = convertOperand(operand);
-			regs.negative = (operand&0x80) != 0;
+			regs.negativeResult = operand;
 			regs.overflow = (operand&0x40) != 0;
 			int res = regs.A&operand;
-			regs.zero = (res == 0);			
+			regs.zeroResult = res;			
 			return getExecCycles(operand);
 		}
 	}
@@ -573,8 +871,8 @@ public class Cpu6502 {
 			operand = convertOperand(operand);
 			int res = regs.A-operand;
 			regs.carry = (regs.A >= operand);
-			regs.zero = (regs.A == operand);
-			regs.negative = (res&0x80) == 0;
+			regs.zeroResult = res;
+			regs.negativeResult = res^0x80;
 			return getExecCycles(operand);
 		}
 	}
@@ -645,8 +943,8 @@ public class Cpu6502 {
 			operand = convertOperand(operand);
 			int res = regs.X-operand;
 			regs.carry = (regs.X >= operand);
-			regs.zero = (regs.X == operand);
-			regs.negative = (res&0x80) == 0;
+			regs.zeroResult = res;
+			regs.negativeResult = res^0x80;
 			return numCycles;
 		}
 	}
@@ -682,8 +980,8 @@ public class Cpu6502 {
 			operand = convertOperand(operand);
 			int res = regs.Y-operand;
 			regs.carry = (regs.Y >= operand);
-			regs.zero = (regs.Y == operand);
-			regs.negative = (res&0x80) == 0;
+			regs.zeroResult = res;
+			regs.negativeResult = res^0x80;
 			return numCycles;
 		}
 	}
@@ -954,7 +1252,7 @@ public class Cpu6502 {
 		}
 				
 		public int execute(int operand) {
-			int newPC = popInt()+1;			
+			int newPC = (popInt()+1)&0xFFFF;			
 			regs.PC = newPC;
 			return numCycles;
 		}
@@ -1431,35 +1729,9 @@ public class Cpu6502 {
 			super(name, opcode, length, mode, numCycles, extraCycle);
 		}
 
-		private void bcdSub(int operand) {
-			int carry = 1-(regs.carry?1:0);
-			int a = Utils6502.unpackBcd(operand);
-			int b = Utils6502.unpackBcd(regs.A);			
-			int res = a-b-carry;			
-			regs.A = res%100;
-			regs.carry = (res==0||res>0);
-			regs.zero = (regs.A == 0);	
-			regs.overflow = false;
-			regs.negative = (res<0);
-			regs.A = Utils6502.packBcd(res);		 
-		}
-		
-		private void binarySub(int operand) {
-			int carry = 1-(regs.carry?1:0);
-			int res = regs.A-operand-carry;
-			regs.A = res&255;
-			regs.carry = (res&0x100)==0;
-			regs.zero = (regs.A == 0);	
-			regs.overflow = (res>127 || res<-128);
-			regs.negative = (regs.A&0x80) != 0;
-		}
-		
 		public int execute(int operand) {
 			operand = convertOperand(operand);
-			if(regs.decimal)
-				bcdSub(operand);				
-			else
-				binarySub(operand);
+			setAluResult(sbc(regs.A, operand, regs.carry, regs.decimal));
 			return getExecCycles(operand);
 		}
 	}
@@ -1706,27 +1978,326 @@ public class Cpu6502 {
 		}
 	}
 	
+	/*
+	 * Variant instructions, not registered with @InstructionClass: see 
+	 * initVariant()
+	 */
+	class InstrADCBinary extends InstrADC {
+		public InstrADCBinary(Instruction adc) {
+			super(adc.name, adc.opcode, adc.length, adc.mode, adc.numCycles, adc.extraCycle);
+		}
+
+		public int execute(int operand) {
+			operand = convertOperand(operand);
+			setAluResult(ADC_BINARY[aluIndex(regs.A, operand, regs.carry)]);
+			return getExecCycles(operand);
+		}
+	}
+
+	class InstrSBCBinary extends InstrSBC {
+		public InstrSBCBinary(Instruction sbc) {
+			super(sbc.name, sbc.opcode, sbc.length, sbc.mode, sbc.numCycles, sbc.extraCycle);
+		}
+
+		public int execute(int operand) {
+			operand = convertOperand(operand);
+			setAluResult(SBC_BINARY[aluIndex(regs.A, operand, regs.carry)]);
+			return getExecCycles(operand);
+		}
+	}
+
+	class InstrBRA extends InstrBXX {
+		public InstrBRA() {
+			super("BRA", 0x80, 2, AddressingMode.REL, 2, true);
+		}
+		protected boolean mustBranch() { return true; }
+	}
+
+	class InstrPHX extends Instruction {
+		public InstrPHX() {			
+			super("PHX", 0xDA, 1, AddressingMode.NONE, 3, false);
+		}
+		
+		public int execute(int operand) {
+			pushByte(regs.X);
+			return numCycles;
+		}
+	}
+
+	class InstrPLX extends Instruction {
+		public InstrPLX() {			
+			super("PLX", 0xFA, 1, AddressingMode.NONE, 4, false);
+		}
+		
+		public int execute(int operand) {
+			regs.X = popByte();
+			updateNZ(regs.X);
+			return numCycles;
+		}
+	}
+
+	class InstrPHY extends Instruction {
+		public InstrPHY() {			
+			super("PHY", 0x5A, 1, AddressingMode.NONE, 3, false);
+		}
+		
+		public int execute(int operand) {
+			pushByte(regs.Y);
+			return numCycles;
+		}
+	}
+
+	class InstrPLY extends Instruction {
+		public InstrPLY() {			
+			super("PLY", 0x7A, 1, AddressingMode.NONE, 4, false);
+		}
+		
+		public int execute(int operand) {
+			regs.Y = popByte();
+			updateNZ(regs.Y);
+			return numCycles;
+		}
+	}
+
+	class InstrSTZ extends Instruction {
+		public InstrSTZ(int opcode, int length, AddressingMode mode, 
+				int numCycles) {
+			super("STZ", opcode, length, mode, numCycles, false);
+		}
+	
+		public int execute(int operand) {
+			writeByte(operand, 0);			
+			return numCycles;
+		}
+	}
+
+	class InstrTSB extends Instruction {
+		public InstrTSB(int opcode, int length, AddressingMode mode, 
+				int numCycles) {
+			super("TSB", opcode, length, mode, numCycles, false);
+		}
+	
+		public int execute(int operand) {
+			int val = readByte(operand);
+			regs.zeroResult = val&regs.A;
+			writeByte(operand, val|regs.A);
+			return numCycles;
+		}
+	}
+
+	class InstrTRB extends Instruction {
+		public InstrTRB(int opcode, int length, AddressingMode mode, 
+				int numCycles) {
+			super("TRB", opcode, length, mode, numCycles, false);
+		}
+	
+		public int execute(int operand) {
+			int val = readByte(operand);
+			regs.zeroResult = val&regs.A;
+			writeByte(operand, val&~regs.A);
+			return numCycles;
+		}
+	}
+
+	class InstrINA extends Instruction {
+		public InstrINA() {			
+			super("INC", 0x1A, 1, AddressingMode.ACC, 2, false);
+		}
+		
+		public int execute(int operand) {
+			regs.A = (regs.A+1)&0xFF;
+			updateNZ(regs.A);
+			return numCycles;
+		}
+	}
+
+	class InstrDEA extends Instruction {
+		public InstrDEA() {			
+			super("DEC", 0x3A, 1, AddressingMode.ACC, 2, false);
+		}
+		
+		public int execute(int operand) {
+			regs.A = (regs.A-1)&0xFF;
+			updateNZ(regs.A);
+			return numCycles;
+		}
+	}
+
+	//BIT #imm only sets the zero flag
+	class InstrBITImm extends Instruction {
+		public InstrBITImm() {			
+			super("BIT", 0x89, 2, AddressingMode.IMM, 2, false);
+		}
+		
+		public int execute(int operand) {
+			regs.zeroResult = regs.A&operand;
+			return numCycles;
+		}
+	}
+
+	/*
+	 * The instructions of each cpu are bound to its registers: they are
+	 * built with plain constructor calls from Cpu6502Opcodes, generated from
+	 * the @InstructionClass classes by tools/GenOpcodes.java
+	 */
 	private final Instruction[] initInstructionList() {
-		Instruction[] instList = new Instruction[255];		
-		try {			
-			for(Class<?> c : Cpu6502.class.getDeclaredClasses()) {
-				if(c.isAnnotationPresent(InstructionClass.class)) {					
-					System.out.println(c);
-					Instruction inst;					
-					Constructor<?> ctor = c.getConstructor(Cpu6502.class);					
-					inst = (Instruction)(ctor.newInstance(this));
-					instList[inst.getOpcode()] = inst;
-				}
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		} 
+		Instruction[] instList = new Instruction[256];
+		for(int opcode : Cpu6502Opcodes.OPCODES)
+			instList[opcode] = Cpu6502Opcodes.create(this, opcode);
 		return instList;
 	}
+
+	private void initVariant() {
+		instList = initInstructionList();
+		addressingModes = opcodeAddressingMode;
+		opcodeLengths = opcodeLength;
+		indirectPageMask = 0xFF00;
+		jmpIndirectCycles = 5;
+		adcDecimalTable = ADC_DECIMAL;
+		sbcDecimalTable = SBC_DECIMAL;
+		switch(variant) {
+		case RICOH_2A03:
+			//ADC and SBC without the decimal mode test
+			for(int opcode = 0; opcode < 256; opcode++) {
+				if(instList[opcode] instanceof InstrADC)
+					instList[opcode] = new InstrADCBinary(instList[opcode]);
+				else if(instList[opcode] instanceof InstrSBC)
+					instList[opcode] = new InstrSBCBinary(instList[opcode]);
+			}
+			adcDecimalTable = ADC_BINARY;
+			sbcDecimalTable = SBC_BINARY;
+			break;
+		case CMOS_65C02:
+			addCmosInstructions(instList);
+			addressingModes = cmosAddressingMode;
+			opcodeLengths = cmosOpcodeLength;
+			indirectPageMask = 0;
+			jmpIndirectCycles = 6;
+			break;
+		default:
+		}
+	}
+
+	/**
+	 * Opcodes added by the 65C02, the Rockwell and WDC bit instructions
+	 * excepted
+	 */
+	private void addCmosInstructions(Instruction[] instList) {
+		Instruction[] added = {
+			new InstrBRA(),
+			new InstrPHX(), new InstrPLX(), new InstrPHY(), new InstrPLY(),
+			new InstrSTZ(0x64, 2, AddressingMode.ZP, 3),
+			new InstrSTZ(0x74, 2, AddressingMode.ZPX, 4),
+			new InstrSTZ(0x9C, 3, AddressingMode.ABS, 4),
+			new InstrSTZ(0x9E, 3, AddressingMode.ABSX, 5),
+			new InstrTSB(0x04, 2, AddressingMode.ZP, 5),
+			new InstrTSB(0x0C, 3, AddressingMode.ABS, 6),
+			new InstrTRB(0x14, 2, AddressingMode.ZP, 5),
+			new InstrTRB(0x1C, 3, AddressingMode.ABS, 6),
+			new InstrINA(), new InstrDEA(),
+			new InstrBITImm(),
+			new InstrBIT("BIT", 0x34, 2, AddressingMode.ZPX, 4, false),
+			new InstrBIT("BIT", 0x3C, 3, AddressingMode.ABSX, 4, true),
+			new InstrORA("ORA", 0x12, 2, AddressingMode.ZPI, 5, false),
+			new InstrAND("AND", 0x32, 2, AddressingMode.ZPI, 5, false),
+			new InstrEOR("EOR", 0x52, 2, AddressingMode.ZPI, 5, false),
+			new InstrADC("ADC", 0x72, 2, AddressingMode.ZPI, 5, false),
+			new InstrSTA(0x92, 2, AddressingMode.ZPI, 5),
+			new InstrLDA(0xB2, 2, AddressingMode.ZPI, 5, false),
+			new InstrCMP("CMP", 0xD2, 2, AddressingMode.ZPI, 5, false),
+			new InstrSBC("SBC", 0xF2, 2, AddressingMode.ZPI, 5, false),
+			new InstrJMP(0x6C, 3, AddressingMode.IND, 6),
+			new InstrJMP(0x7C, 3, AddressingMode.IAX, 6)
+		};
+		for(Instruction inst : added)
+			instList[inst.getOpcode()] = inst;
+	}
 	
 	public Cpu6502(int startAddress) {
+		this(startAddress, Core.INSTRUCTION);
+	}
+
+	public Cpu6502(int startAddress, Core core) {
+		this(startAddress, core, MemoryBackend.BYTE_ARRAY);
+	}
+
+	public Cpu6502(int startAddress, Core core, MemoryBackend backend) {
+		this(startAddress, core, backend, Variant.NMOS);
+	}
+
+	public Cpu6502(int startAddress, Core core, MemoryBackend backend, Variant variant) {
+		this.core = core;
+		this.variant = variant;
+		initVariant();
+		initMemoryMap(backend);
+		initTieredCore();
 		reset(startAddress);
 	}
+
+	/**
+	 * Copy of a cpu, sharing its memory pages until one of them writes
+	 * to them (see fork())
+	 */
+	private Cpu6502(Cpu6502 parent) {
+		this.core = parent.core;
+		this.variant = parent.variant;
+		initVariant();
+		regs.copyFrom(parent.regs);
+		ticks = parent.ticks;
+		clockSpeed = parent.clockSpeed;
+		throttleQuantum = parent.throttleQuantum;
+		nmiLine = parent.nmiLine;
+		nmiPending = parent.nmiPending;
+		irqSources = parent.irqSources;
+		System.arraycopy(parent.registers, 0, registers, 0, registers.length);
+		Map<IoHandler, IoHandler> handlers = new IdentityHashMap<IoHandler, IoHandler>();
+		Map<ByteBuffer, ByteBuffer> buffers = new IdentityHashMap<ByteBuffer, ByteBuffer>();
+		handlers.put(parent.registerMirror, registerMirror);
+		for(int page = 0; page < 256; page++) {
+			readPages[page] = parent.readPages[page];
+			writeTargets[page] = parent.writeTargets[page];
+			if(writeTargets[page] != null) {
+				//writePages stays empty on both sides until the page is copied
+				copyOnWrite[page] = true;
+				parent.copyOnWrite[page] = true;
+				parent.writePages[page] = null;
+			}
+			IoHandler handler = parent.ioHandlers[page];
+			if(handler instanceof BufferPages && !handlers.containsKey(handler))
+				handlers.put(handler, ((BufferPages)handler).copy(buffers));
+			ioHandlers[page] = handlers.containsKey(handler) ? handlers.get(handler) : handler;
+		}
+		//Fork the handlers once every page is mapped
+		Map<IoHandler, IoHandler> forks = new IdentityHashMap<IoHandler, IoHandler>();
+		for(int page = 0; page < 256; page++)
+			if(ioHandlers[page] instanceof ForkableIoHandler)
+				forks.put(ioHandlers[page], null);
+		for(Map.Entry<IoHandler, IoHandler> fork : forks.entrySet())
+			fork.setValue(((ForkableIoHandler)fork.getKey()).fork(this));
+		for(int page = 0; page < 256; page++)
+			if(forks.containsKey(ioHandlers[page]))
+				ioHandlers[page] = forks.get(ioHandlers[page]);
+		initTieredCore();
+	}
+
+	/**
+	 * @return a copy of the cpu, registers and memory. Memory pages are
+	 * shared until the parent or the fork first writes to one, which then 
+	 * gets its own copy of the page and its mirrors. Memory mapped to a
+	 * buffer is copied right away, forkable I/O handlers are forked and 
+	 * other ones are shared.
+	 */
+	public Cpu6502 fork() {
+		return new Cpu6502(this);
+	}
+
+	private void initTieredCore() {
+		if(core == Core.TIERED) {
+			codePages = new CodePage[256];
+			pageAliases = new int[256][];
+			pageWriters = new int[256][];
+		}
+	}
 	
 	public void reset(int startAddress) {
 		regs.PC = startAddress;
@@ -1735,42 +2306,302 @@ public class Cpu6502 {
 		regs.X = 0;
 		regs.Y = 0;
 		regs.carry = false;
-		regs.zero = false;
+		regs.setZero(false);
 		regs.interrupt = false;
 		regs.decimal = false;
 		regs.brk = false;
 		regs.overflow = false;
-		regs.negative = false;
+		regs.setNegative(false);
 	}
 
-	private int mirrorMemory(int addr) {
-		if(addr <= 0x1FFF)
-			return addr&0x7FF;
-		if(addr>=0x2000 && addr<=0x3FFF)
-			return addr&0x2007;
-		return addr;
+	/**
+	 * Default handler of $2000-$3FFF: 8 registers mirrored every 8 bytes
+	 */
+	private final IoHandler registerMirror = new IoHandler() {
+		public int read(int addr) {
+			return registers[addr&7];
+		}
+
+		public void write(int addr, int val) {
+			registers[addr&7] = val;
+		}
+	};
+
+	private void initMemoryMap(MemoryBackend backend) {
+		//2KB of RAM mirrored up to $1FFF
+		if(backend == MemoryBackend.DIRECT_BUFFER) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(0x800+0xC000);
+			for(int page = 0; page < 0x20; page++)
+				mapBuffer(page, 1, buffer, (page&7)<<8);
+			mapBuffer(0x40, 0xC0, buffer, 0x800);
+		}
+		else {
+			byte[][] ram = new byte[8][256];
+			for(int page = 0; page < 0x20; page++)
+				mapPage(page, ram[page&7]);
+			for(int page = 0x40; page < 0x100; page++)
+				mapPage(page, new byte[256]);
+		}
+		mapIo(0x20, 0x20, registerMirror);
 	}
-	
-	private int readByte(int addr) {
-		return memory[mirrorMemory(addr)]&0xFF;
+
+	/**
+	 * Map a page to a 256 bytes array, read and written by the cpu. Mirrors
+	 * are made by mapping several pages to the same array.
+	 */
+	public void mapPage(int page, byte[] data) {
+		mapPages(page, 1, data, data, null);
+	}
+
+	/**
+	 * Map pages to a buffer, direct or mapped from a file, page firstPage+i
+	 * being read and written at offset+i*256
+	 */
+	public void mapBuffer(int firstPage, int numPages, ByteBuffer buffer, int offset) {
+		mapIo(firstPage, numPages, new BufferPages(buffer, offset-(firstPage<<8)));
+	}
+
+	private static final class BufferPages implements IoHandler {
+		private final ByteBuffer buffer;
+		private final int base;
+
+		BufferPages(ByteBuffer buffer, int base) {
+			this.buffer = buffer;
+			this.base = base;
+		}
+
+		public int read(int addr) {
+			return buffer.get(base+addr);
+		}
+
+		public void write(int addr, int val) {
+			buffer.put(base+addr, (byte)val);
+		}
+
+		/**
+		 * @return true if other reads and writes the byte of addr at
+		 * otherAddr
+		 */
+		boolean isMirror(int addr, IoHandler other, int otherAddr) {
+			return other instanceof BufferPages && ((BufferPages)other).buffer == buffer
+					&& ((BufferPages)other).base+otherAddr == base+addr;
+		}
+
+		/**
+		 * @param copies buffers already copied, pages mapping the same 
+		 * buffer keep sharing its copy
+		 */
+		BufferPages copy(Map<ByteBuffer, ByteBuffer> copies) {
+			ByteBuffer copy = copies.get(buffer);
+			if(copy == null) {
+				ByteBuffer from = buffer.duplicate();
+				from.clear();
+				copy = buffer.isDirect() ? ByteBuffer.allocateDirect(from.capacity()) : ByteBuffer.allocate(from.capacity());
+				copy.put(from);
+				copies.put(buffer, copy);
+			}
+			return new BufferPages(copy, base);
+		}
+	}
+
+	/**
+	 * Send every read and write of the given pages to an I/O handler
+	 */
+	public void mapIo(int firstPage, int numPages, IoHandler handler) {
+		mapPages(firstPage, numPages, null, null, handler);
+	}
+
+	/**
+	 * Map pages to read only memory, page firstPage+i reading 
+	 * rom[romPage+i]. Bank switching is done by mapping other pages of
+	 * the rom, the arrays are not copied.
+	 * @param writes handler of the writes to the pages, mapper registers 
+	 * for instance, null to ignore them
+	 */
+	public void mapRom(int firstPage, int numPages, byte[][] rom, int romPage, IoHandler writes) {
+		for(int i = 0; i < numPages; i++)
+			setPage(firstPage+i, rom[romPage+i], null, writes != null ? writes : ignoreWrites);
+		pagesMapped();
+	}
+
+	private static final IoHandler ignoreWrites = new IoHandler() {
+		public int read(int addr) {
+			return 0;
+		}
+
+		public void write(int addr, int val) {
+		}
+	};
+
+	private void mapPages(int firstPage, int numPages, byte[] read, byte[] write, IoHandler handler) {
+		for(int page = firstPage; page < firstPage+numPages; page++)
+			setPage(page, read, write, handler);
+		pagesMapped();
+	}
+
+	private void setPage(int page, byte[] read, byte[] write, IoHandler handler) {
+		readPages[page] = read;
+		writePages[page] = write;
+		writeTargets[page] = write;
+		ioHandlers[page] = handler;
+		copyOnWrite[page] = false;
+		if(codePages != null && codePages[page] != null)
+			invalidateCode(codePages[page]);
+	}
+
+	/**
+	 * Update the tiered core once a batch of pages is mapped
+	 */
+	private void pagesMapped() {
+		if(codePages != null)
+			updatePageAliases();
+	}
+
+	/**
+	 * Copy an image to memory at addr, a page at a time. Writes to I/O 
+	 * pages go to their handler byte by byte.
+	 * @return number of bytes loaded, the remaining bytes of the image
+	 */
+	public int load(int addr, ByteBuffer image) {
+		int length = image.remaining();
+		if(addr < 0 || addr+length > 0x10000)
+			throw new IllegalArgumentException("Image of " + length + " bytes doesn't fit at " + Integer.toHexString(addr));
+		ByteBuffer in = image.duplicate();
+		int end = in.limit();
+		while(in.hasRemaining()) {
+			int page = addr>>8;
+			int offset = addr&0xFF;
+			int count = Math.min(in.remaining(), 256-offset);
+			if(writeTargets[page] != null) {
+				if(copyOnWrite[page])
+					copyPage(page);
+				if(codePages != null)
+					codeWritten(addr);
+				in.get(writeTargets[page], offset, count);
+			}
+			else if(ioHandlers[page] instanceof BufferPages) {
+				BufferPages bufferPages = (BufferPages)ioHandlers[page];
+				ByteBuffer out = bufferPages.buffer.duplicate();
+				out.position(bufferPages.base+addr);
+				in.limit(in.position()+count);
+				out.put(in);
+				in.limit(end);
+			}
+			else {
+				for(int i = 0; i < count; i++)
+					ioHandlers[page].write(addr+i, in.get()&0xFF);
+			}
+			addr += count;
+		}
+		return length;
+	}
+
+	/**
+	 * Read a file in one block and copy it to memory at addr. Loading into
+	 * different cpus from several threads is safe.
+	 * @return number of bytes loaded
+	 */
+	public int load(int addr, File file) throws IOException {
+		return load(addr, readImage(file, 0x10000));
+	}
+
+	/**
+	 * Read a whole file with a single channel
+	 * @param maxSize size of the largest file accepted
+	 */
+	public static ByteBuffer readImage(File file, int maxSize) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if(size > maxSize)
+				throw new IllegalArgumentException(file + " is larger than " + maxSize + " bytes");
+			ByteBuffer image = ByteBuffer.allocate((int)size);
+			while(image.hasRemaining()) {
+				if(channel.read(image) < 0)
+					throw new IOException("Truncated " + file);
+			}
+			image.flip();
+			return image;
+		} finally {
+			in.close();
+		}
+	}
+
+	public int readByte(int addr) {
+		byte[] page = readPages[addr>>8];
+		if(page != null)
+			return page[addr&0xFF]&0xFF;
+		return readIo(addr);
+	}
+
+	private int readIo(int addr) {
+		return ioHandlers[addr>>8].read(addr)&0xFF;
 	}
 
 	private int readInt(int addr)
 	{
-		return (readByte(addr+1)<<8)|readByte(addr);			
+		return (readByte((addr+1)&0xFFFF)<<8)|readByte(addr);			
 	}
 
 	public int writeByte(int addr, int val)
 	{
-		return memory[mirrorMemory(addr)] = val&0xFF;
+		byte[] page = writePages[addr>>8];
+		if(page == null)
+			return writeSlow(addr, val);
+		page[addr&0xFF] = (byte)val;
+		return val&0xFF;
+	}
+
+	/**
+	 * Write to an I/O page or to a page whose memory holds decoded code
+	 */
+	private int writeSlow(int addr, int val) {
+		int page = addr>>8;
+		val &= 0xFF;
+		if(writeTargets[page] == null) {
+			ioHandlers[page].write(addr, val);
+			return val;
+		}
+		if(copyOnWrite[page])
+			copyPage(page);
+		if(codePages != null)
+			codeWritten(addr);
+		writeTargets[page][addr&0xFF] = (byte)val;
+		return val;
+	}
+
+	/**
+	 * Give the page, and the pages mirroring it, their own copy of the 
+	 * array shared with a fork
+	 */
+	private void copyPage(int page) {
+		byte[] shared = writeTargets[page];
+		byte[] copy = shared.clone();
+		for(int other = 0; other < 256; other++) {
+			if(readPages[other] == shared)
+				readPages[other] = copy;
+			if(writeTargets[other] == shared) {
+				writeTargets[other] = copy;
+				writePages[other] = copy;
+				copyOnWrite[other] = false;
+			}
+		}
+		//protect the pages of the copy holding code again
+		if(codePages != null)
+			updatePageAliases();
 	}
 
+	/**
+	 * Read the pointer of JMP (ind). The NMOS cpus read its high byte from
+	 * the start of the page when the low byte is at its end.
+	 */
 	private int readIntJmpBug(int addr)
 	{
 		if((addr&0xFF) != 0xFF)
 			return readInt(addr);
 		int low = readByte(addr);
-		int high = readByte(addr&0xFF00);
+		int high = readByte((addr&indirectPageMask)|((addr+1)&~indirectPageMask&0xFFFF));
 		return (high<<8)|low;			
 	}
 
@@ -1791,11 +2622,11 @@ public class Cpu6502 {
 	}
 
 	private int absAddressingX(int addr) {		
-		return addr+regs.X;
+		return (addr+regs.X)&0xFFFF;
 	}
 
 	private int absAddressingY(int addr) {		
-		return addr+regs.Y;
+		return (addr+regs.Y)&0xFFFF;
 	}
 
 	private int indAddressingX(int addr) {		
@@ -1804,7 +2635,7 @@ public class Cpu6502 {
 	}
 
 	private int indAddressingY(int addr) {		
-		int absAddr = readInt(addr)+regs.Y;	
+		int absAddr = (readInt(addr)+regs.Y)&0xFFFF;	
 		return absAddr;
 	}
 	
@@ -1824,13 +2655,13 @@ public class Cpu6502 {
 	private void pushByte(int val) {
 		int addr = regs.SP+STACK_MEMORY;
 		regs.SP = (regs.SP-1)&0xFF;
-		memory[addr] = val;
+		writeByte(addr, val);
 	}
 
 	private int popByte() {		
 		regs.SP = (regs.SP+1)&0xFF;
 		int addr = regs.SP+STACK_MEMORY;
-		return memory[addr];		
+		return readByte(addr);		
 	}
 	
 	static private AddressingMode computeAddressingMode(int opcode) {
@@ -1879,84 +2710,2612 @@ public class Cpu6502 {
 	}
 
 	private static AddressingMode[] initOpcodeAddressingMode() {
-		AddressingMode[] array = new AddressingMode[0xFF];
-		for(int i = 0; i < 255; i++) {
+		AddressingMode[] array = new AddressingMode[256];
+		for(int i = 0; i < 256; i++) {
 			array[i] = computeAddressingMode(i);
 		}
 		return array;
 	}
 	
-	private static AddressingMode getAddressingMode(int opcode) {
-		return opcodeAddressingMode[opcode];
+	private static AddressingMode[] initCmosAddressingMode() {
+		AddressingMode[] array = initOpcodeAddressingMode();
+		int[] zp = { 0x04, 0x14, 0x64 };
+		int[] zpx = { 0x34, 0x74 };
+		int[] abs = { 0x0C, 0x1C, 0x9C };
+		int[] absx = { 0x3C, 0x9E };
+		int[] zpi = { 0x12, 0x32, 0x52, 0x72, 0x92, 0xB2, 0xD2, 0xF2 };
+		int[] none = { 0x5A, 0x7A, 0xDA, 0xFA };
+		for(int opcode : zp)
+			array[opcode] = AddressingMode.ZP;
+		for(int opcode : zpx)
+			array[opcode] = AddressingMode.ZPX;
+		for(int opcode : abs)
+			array[opcode] = AddressingMode.ABS;
+		for(int opcode : absx)
+			array[opcode] = AddressingMode.ABSX;
+		for(int opcode : zpi)
+			array[opcode] = AddressingMode.ZPI;
+		for(int opcode : none)
+			array[opcode] = AddressingMode.NONE;
+		array[0x1A] = AddressingMode.ACC;
+		array[0x3A] = AddressingMode.ACC;
+		array[0x80] = AddressingMode.REL;
+		array[0x89] = AddressingMode.IMM;
+		array[0x7C] = AddressingMode.IAX;
+		return array;
 	}
 	
-	private int getOperand(AddressingMode mode, boolean emulAddressingBug) {
-		if(mode == AddressingMode.NONE)
+	private static int[] initOpcodeLength(AddressingMode[] modes) {
+		int[] array = new int[256];
+		for(int i = 0; i < 256; i++) {
+			array[i] = 1+operandLength(modes[i]);
+		}
+		return array;
+	}
+
+	private AddressingMode getAddressingMode(int opcode) {
+		return addressingModes[opcode];
+	}
+	
+	/**
+	 * @return number of operand bytes following the opcode
+	 */
+	private static int operandLength(AddressingMode mode) {
+		switch(mode) {
+		case ABS:
+		case ABSX:
+		case ABSY:
+		case IND:
+		case IAX:
+			return 2;
+		case NONE:
+		case ACC:
 			return 0;
-		
+		default:
+			return 1;
+		}
+	}
+
+	private int getOperand(AddressingMode mode, boolean emulAddressingBug) {
 		int operand;
+		switch(operandLength(mode)) {
+		case 1:
+			operand = readByte(regs.PC);
+			regs.PC = (regs.PC+1)&0xFFFF;
+			break;
+		case 2:
+			operand = readInt(regs.PC);
+			regs.PC = (regs.PC+2)&0xFFFF;
+			break;
+		default:
+			return 0;
+		}
+		return resolveOperand(mode, operand, emulAddressingBug);
+	}
+
+	/**
+	 * @param operand operand bytes following the opcode
+	 * @return the operand given to Instruction.execute
+	 */
+	private int resolveOperand(AddressingMode mode, int operand, boolean emulAddressingBug) {
 		switch(mode) {
-		case IMM:
-			operand = memory[regs.PC++];
-			return operand;
 		case ZP:
-			operand = memory[regs.PC++];
 			return zeroPageAddressing(operand);
 		case ZPX:
-			operand = memory[regs.PC++];
 			return zeroPageAddressingX(operand);
 		case ZPY:
-			operand = memory[regs.PC++];
 			return zeroPageAddressingY(operand);
 		case IZX:
-			operand = memory[regs.PC++];
 			return indAddressingX(operand);
 		case IZY:
-			operand = memory[regs.PC++];
 			return indAddressingY(operand);
 		case ABS:
-			operand = readInt(regs.PC);
-			regs.PC += 2;
 			return absAddressing(operand);
 		case ABSX:
-			operand = readInt(regs.PC);
-			regs.PC += 2;
 			return absAddressingX(operand);
 		case ABSY:
-			operand = readInt(regs.PC);
-			regs.PC += 2;
 			return absAddressingY(operand);
 		case IND:
-			operand = readInt(regs.PC);
-			regs.PC += 2;
 			if(emulAddressingBug) 
 				return readIntJmpBug(operand);
 			return readInt(operand);
-		case REL:
-			operand = memory[regs.PC++];
-			return operand;
+		case ZPI:
+			return readByte(operand)|readByte((operand+1)&255)<<8;
+		case IAX:
+			return readInt((operand+regs.X)&0xFFFF);
 		default:
-			return 0;
+			return operand;
 		}
 	}
 	
-	public void run() {
-		for(;;) {
-			long startTime = System.nanoTime();
-			int opcode = memory[regs.PC++];
+	/**
+	 * Execute a single instruction
+	 * @return number of cycles elapsed
+	 */
+	private int step() {
+		int pc = regs.PC;
+		int opcode = readByte(pc);
+		regs.PC = (pc+1)&0xFFFF;
+		instructions++;
+		Instruction inst = instList[opcode];
+		if(inst == null) {
+			haltReason = StopReason.UNKNOWN_OPCODE;
+			return 0;
+		}
+		AddressingMode mode = getAddressingMode(opcode);
+		boolean emulAddressingBug = (inst.name == "JMP");
+		int operand = getOperand(mode, emulAddressingBug);
+		int execCycles = inst.execute(operand);				
+		if(regs.PC == pc)
+			trapped();
+		return execCycles;
+	}
+
+	/**
+	 * Record each instruction in the trace and the profiler, and check the
+	 * breakpoints, whatever the core: the INSTRUCTION core is the reference
+	 * of the others
+	 */
+	private int runObserved(int cycles) {
+		int elapsed = 0;
+		while(elapsed < cycles && haltReason == null && !idle) {
+			int pc = regs.PC;
+			int opcode = peek(pc);
+			if(breakpoints != null && pc != resumePC && breakpoints.isArmed() && isBreakpoint(pc, opcode)) {
+				resumePC = pc;
+				haltReason = StopReason.BREAKPOINT;
+				break;
+			}
+			resumePC = -1;
+			sliceCycles = elapsed;
+			if(trace != null)
+				traceInstruction(pc, elapsed);
+			int executed = step();
+			if(profiler != null)
+				profiler.record(pc, opcode, executed, regs.PC);
+			elapsed += executed;
+		}
+		return elapsed;
+	}
+
+	/**
+	 * Record the instruction at pc in the trace, with the registers before
+	 * it
+	 * @param elapsed cycles elapsed in the slice
+	 */
+	private void traceInstruction(int pc, int elapsed) {
+		trace.record(pc, peek(pc), peek(pc+1)|peek(pc+2)<<8, regs.A, regs.X, regs.Y, regs.SP,
+				regs.getFlags(), ticks+elapsed);
+	}
+
+	/**
+	 * Watchpoints match the address of the operand an instruction reads or
+	 * writes, or one of its mirrors, resolved before it runs, so that readByte() and writeByte()
+	 * never check them. Stack, vector and indirect pointer accesses are not
+	 * watched.
+	 */
+	private boolean isBreakpoint(int pc, int opcode) {
+		if(breakpoints.hit(Breakpoints.Kind.EXECUTE, pc, this))
+			return true;
+		if(!breakpoints.isWatching())
+			return false;
+		if(opcodeAccesses == null)
+			opcodeAccesses = initOpcodeAccesses();
+		int access = opcodeAccesses[opcode];
+		if(access == 0)
+			return false;
+		int addr = effectiveAddress(pc, getAddressingMode(opcode));
+		return ((access&ACCESS_READ) != 0 && isWatched(Breakpoints.Kind.READ, addr))
+				|| ((access&ACCESS_WRITE) != 0 && isWatched(Breakpoints.Kind.WRITE, addr));
+	}
+
+	/**
+	 * @return true if addr or one of its mirrors, in a page mapped to the
+	 * same memory, is watched
+	 */
+	private boolean isWatched(Breakpoints.Kind kind, int addr) {
+		if(breakpoints.hit(kind, addr, this))
+			return true;
+		int page = addr>>8;
+		for(int other = 0; other < 256; other++) {
+			int mirror = other<<8|(addr&0xFF);
+			if(other == page)
+				continue;
+			if(readPages[page] != null ? readPages[other] == readPages[page]
+					: ioHandlers[page] instanceof BufferPages && ((BufferPages)ioHandlers[page]).isMirror(addr, ioHandlers[other], mirror))
+				if(breakpoints.hit(kind, mirror, this))
+					return true;
+		}
+		return false;
+	}
+
+	private byte[] initOpcodeAccesses() {
+		byte[] accesses = new byte[256];
+		for(int opcode = 0; opcode < 256; opcode++) {
 			Instruction inst = instList[opcode];
 			AddressingMode mode = getAddressingMode(opcode);
-			boolean emulAddressingBug = (inst.name == "JMP");
-			int operand = getOperand(mode, emulAddressingBug);
-			int execCycles = 0;
-			if(inst != null) {
-				execCycles = inst.execute(operand);				
+			if(inst == null || mode == AddressingMode.IMM || mode == AddressingMode.ACC
+					|| mode == AddressingMode.REL || mode == AddressingMode.IND || mode == AddressingMode.NONE
+					|| inst.name == "JMP" || inst.name == "JSR")
+				continue;
+			if(inst.name.startsWith("ST"))
+				accesses[opcode] = ACCESS_WRITE;
+			else if(inst.name == "ASL" || inst.name == "LSR" || inst.name == "ROL" || inst.name == "ROR"
+					|| inst.name == "INC" || inst.name == "DEC" || inst.name == "TSB" || inst.name == "TRB")
+				accesses[opcode] = ACCESS_READ|ACCESS_WRITE;
+			else
+				accesses[opcode] = ACCESS_READ;
+		}
+		return accesses;
+	}
+
+	/**
+	 * Same address as resolveOperand(), without side effects
+	 */
+	private int effectiveAddress(int pc, AddressingMode mode) {
+		int lo = peek(pc+1);
+		int operand = lo|peek(pc+2)<<8;
+		switch(mode) {
+		case ZP:
+			return lo;
+		case ZPX:
+			return (lo+regs.X)&255;
+		case ZPY:
+			return (lo+regs.Y)&255;
+		case IZX:
+			return peek((lo+regs.X)&255)|peek(((lo+regs.X)&255)+1)<<8;
+		case IZY:
+			return ((peek(lo)|peek(lo+1)<<8)+regs.Y)&0xFFFF;
+		case ZPI:
+			return peek(lo)|peek((lo+1)&255)<<8;
+		case ABSX:
+			return (operand+regs.X)&0xFFFF;
+		case ABSY:
+			return (operand+regs.Y)&0xFFFF;
+		default:
+			return operand;
+		}
+	}
+
+	/**
+	 * @return memory at addr, without reading I/O handlers which could have
+	 * side effects
+	 */
+	public int peek(int addr) {
+		int page = (addr>>8)&0xFF;
+		if(readPages[page] != null)
+			return readPages[page][addr&0xFF]&0xFF;
+		if(ioHandlers[page] instanceof BufferPages)
+			return ioHandlers[page].read(addr&0xFFFF)&0xFF;
+		return 0;
+	}
+
+	/**
+	 * Record every instruction executed from now on in a trace, in the core
+	 * of the cpu. The TIERED core records each run of a compiled block as
+	 * one entry (see Trace.getCount()).
+	 * @param trace null to stop tracing
+	 */
+	public void setTrace(Trace trace) {
+		this.trace = trace;
+	}
+
+	public Trace getTrace() {
+		return trace;
+	}
+
+	/**
+	 * Profile every instruction executed from now on, in the core of the
+	 * cpu. The TIERED core counts each run of a compiled block at its entry
+	 * address (see Profiler.recordBlock()).
+	 * @param profiler null to stop profiling
+	 */
+	public void setProfiler(Profiler profiler) {
+		this.profiler = profiler;
+	}
+
+	public Profiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Stop before the breakpoints and watchpoints from now on. The cpu
+	 * runs its own core as long as none is armed.
+	 * @param breakpoints null to remove them all
+	 */
+	public void setBreakpoints(Breakpoints breakpoints) {
+		this.breakpoints = breakpoints;
+		resumePC = -1;
+	}
+
+	public Breakpoints getBreakpoints() {
+		return breakpoints;
+	}
+
+	private void sampleRates() {
+		long now = System.nanoTime();
+		double seconds = (now-sampleTime)/1e9;
+		if(seconds > 0) {
+			instructionRate = (instructions-sampleInstructions)/seconds;
+			cycleRate = (ticks-sampleTicks)/seconds;
+		}
+		sampleTime = now;
+		sampleTicks = ticks;
+		sampleInstructions = instructions;
+		cyclesToSample = SAMPLE_CYCLES;
+		JfrEvents.rates(getMBeanName(), metrics);
+	}
+
+	/**
+	 * Runtime metrics of a cpu, readable from JMX clients such as jconsole
+	 * once registered with registerMBean(), and recorded as JFR events (see
+	 * JfrEvents). Rates are measured over the last million cycles or so.
+	 */
+	public interface MetricsMXBean {
+		long getTicks();
+		long getInstructions();
+		long getUnknownOpcodes();
+		double getInstructionsPerSecond();
+		double getEffectiveMHz();
+		double getTargetMHz();
+		/**
+		 * @return time slept by run() to throttle the cpu, in nanoseconds
+		 */
+		long getThrottleSleepNanos();
+		/**
+		 * @return delay of the last quantum of run() to its deadline, in
+		 * nanoseconds, negative when ahead
+		 */
+		long getThrottleDriftNanos();
+		/**
+		 * @return number of times run() was too late and gave up catching up
+		 */
+		long getThrottleLagResets();
+	}
+
+	private final class Metrics implements MetricsMXBean {
+		public long getTicks() {
+			return ticks;
+		}
+
+		public long getInstructions() {
+			return instructions;
+		}
+
+		public long getUnknownOpcodes() {
+			return unknownOpcodes;
+		}
+
+		public double getInstructionsPerSecond() {
+			return instructionRate;
+		}
+
+		public double getEffectiveMHz() {
+			return cycleRate/1e6;
+		}
+
+		public double getTargetMHz() {
+			return 1000/clockSpeed;
+		}
+
+		public long getThrottleSleepNanos() {
+			return throttleSleep;
+		}
+
+		public long getThrottleDriftNanos() {
+			return drift;
+		}
+
+		public long getThrottleLagResets() {
+			return lagResets;
+		}
+	}
+
+	private final MetricsMXBean metrics = new Metrics();
+	private volatile ObjectName metricsName;
+
+	public MetricsMXBean getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Publish the metrics of this cpu in the platform MBean server, as
+	 * emu6502:type=Cpu6502,name=&lt;name&gt;
+	 * @throws JMException if the name is invalid or already registered
+	 */
+	public synchronized void registerMBean(String name) throws JMException {
+		ObjectName objectName = new ObjectName("emu6502:type=Cpu6502,name=" + ObjectName.quote(name));
+		unregisterMBean();
+		ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+		metricsName = objectName;
+	}
+
+	/**
+	 * @return name of the registered metrics MBean, null if not registered
+	 */
+	private String getMBeanName() {
+		ObjectName name = metricsName;
+		return name != null ? name.toString() : null;
+	}
+
+	public synchronized void unregisterMBean() throws JMException {
+		if(metricsName == null)
+			return;
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+		metricsName = null;
+	}
+
+	int instructionLength(int opcode) {
+		return opcodeLengths[opcode];
+	}
+
+	/**
+	 * @param operand the two bytes following the opcode
+	 * @return instruction in assembler syntax
+	 */
+	String disassemble(int pc, int opcode, int operand) {
+		Instruction inst = instList[opcode];
+		if(inst == null)
+			return String.format(".byte $%02X", opcode);
+		int lo = operand&0xFF;
+		switch(getAddressingMode(opcode)) {
+		case IMM:
+			return String.format("%s #$%02X", inst.name, lo);
+		case ZP:
+			return String.format("%s $%02X", inst.name, lo);
+		case ZPX:
+			return String.format("%s $%02X,X", inst.name, lo);
+		case ZPY:
+			return String.format("%s $%02X,Y", inst.name, lo);
+		case IZX:
+			return String.format("%s ($%02X,X)", inst.name, lo);
+		case IZY:
+			return String.format("%s ($%02X),Y", inst.name, lo);
+		case ABS:
+			return String.format("%s $%04X", inst.name, operand);
+		case ABSX:
+			return String.format("%s $%04X,X", inst.name, operand);
+		case ABSY:
+			return String.format("%s $%04X,Y", inst.name, operand);
+		case IND:
+			return String.format("%s ($%04X)", inst.name, operand);
+		case ZPI:
+			return String.format("%s ($%02X)", inst.name, lo);
+		case IAX:
+			return String.format("%s ($%04X,X)", inst.name, operand);
+		case REL:
+			return String.format("%s $%04X", inst.name, (pc+2+(byte)lo)&0xFFFF);
+		case ACC:
+			return inst.name + " A";
+		default:
+			return inst.name;
+		}
+	}
+
+	/**
+	 * Run instructions until at least the given number of cycles elapsed
+	 * or the cpu halts
+	 * @param cycles cycle budget
+	 * @return number of cycles really elapsed
+	 */
+	private int emulate(int cycles) {
+		if(scheduler != null) {
+			scheduler.fireDue(ticks);
+			cycles = (int)Math.max(1, Math.min(cycles, scheduler.nextDeadline()-ticks));
+		}
+		int interrupt = 0;
+		if(nmiPending || irqSources != 0) {
+			interrupt = serviceInterrupt();
+			ticks += interrupt;
+		}
+		int elapsed;
+		sliceCycles = 0;
+		if((breakpoints != null && breakpoints.isArmed())
+				|| (core == Core.INSTRUCTION && (trace != null || profiler != null)))
+			elapsed = runObserved(cycles-interrupt);
+		else if(core == Core.SWITCH)
+			elapsed = runSwitch(cycles-interrupt);
+		else if(core == Core.TIERED)
+			elapsed = runTiered(cycles-interrupt);
+		else {
+			elapsed = 0;
+			while(elapsed < cycles-interrupt && haltReason == null && !idle) {
+				sliceCycles = elapsed;
+				elapsed += step();
 			}
+		}
+		if(idle) {
+			idle = false;
+			elapsed = Math.max(elapsed, cycles-interrupt);
+		}
+		ticks += elapsed;
+		sliceCycles = 0;
+		elapsed += interrupt;
+		if((cyclesToSample -= elapsed) <= 0)
+			sampleRates();
+		return elapsed;
+	}
+
+	/**
+	 * @return cycle at the start of the instruction being executed, for
+	 * devices catching up from an I/O handler, or getTicks() between
+	 * instructions
+	 */
+	public long getCycle() {
+		return ticks+sliceCycles;
+	}
+
+	/**
+	 * Run each slice up to the next event of the scheduler, firing the
+	 * events due before it starts, so that the interrupts they raise are
+	 * taken right away
+	 * @param scheduler null to run fixed slices again
+	 */
+	public void setScheduler(Scheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	public Scheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Raise or release the NMI line. An NMI is taken once per rising edge.
+	 * Lines are sampled between the slices run by run() and its variants,
+	 * a scanline at most, or up to the next event of the scheduler, never
+	 * in the middle of one: devices set them from I/O handlers or from the
+	 * code scheduling the slices, on the emulating thread.
+	 */
+	public void setNmi(boolean level) {
+		if(level && !nmiLine)
+			nmiPending = true;
+		nmiLine = level;
+	}
+
+	/**
+	 * Assert or release the IRQ line for one of its sources. The IRQ is
+	 * taken at each slice boundary while a source asserts it and the
+	 * interrupt flag is clear.
+	 * @param source bit of the device sharing the line, 0 to 31
+	 */
+	public void setIrq(int source, boolean level) {
+		if(level)
+			irqSources |= 1<<source;
+		else
+			irqSources &= ~(1<<source);
+	}
+
+	public boolean isIrqAsserted() {
+		return irqSources != 0;
+	}
+
+	/**
+	 * An instruction jumped to itself: wait for the interrupt that can still
+	 * take the cpu out of the loop until the end of the slice, which is the
+	 * next deadline of the scheduler if any, or halt
+	 */
+	private void trapped() {
+		if(scheduler != null || nmiPending || (irqSources != 0 && !regs.interrupt))
+			idle = true;
+		else
+			haltReason = StopReason.TRAPPED;
+	}
+
+	/**
+	 * Take the pending NMI or IRQ: push PC and P, with B clear and bit 5
+	 * set, mask IRQs, leave decimal mode on the 65C02 and jump through the
+	 * vector
+	 * @return cycles used, 0 when no interrupt is taken
+	 */
+	private int serviceInterrupt() {
+		int vector;
+		if(nmiPending) {
+			nmiPending = false;
+			vector = NMI_VECTOR;
+		}
+		else if(irqSources != 0 && !regs.interrupt)
+			vector = IRQ_VECTOR;
+		else
+			return 0;
+		pushInt(regs.PC);
+		pushByte((regs.getFlags()&~ProcessorFlags.BREAK.value)|0x20);
+		regs.interrupt = true;
+		if(variant == Variant.CMOS_65C02)
+			regs.decimal = false;
+		regs.PC = readInt(vector);
+		return INTERRUPT_CYCLES;
+	}
+
+	private static final int HOT_BLOCK_THRESHOLD = 64;
+	//short enough for a block to fit in a scanline slice most of the time
+	private static final int MAX_BLOCK_LENGTH = 16;
+
+	/*
+	 * TIERED core only: code pages, allocated when code first runs from the
+	 * page, and the pages reading the memory written by each page and the
+	 * pages writing the memory read by each page, computed when needed
+	 */
+	private CodePage[] codePages;
+	private int codePageCount;
+	private int[][] pageAliases;
+	private int[][] pageWriters;
+	//block run by the TIERED core
+	private Block runningBlock;
+	//JSR or RTS if the last instruction of the running block was run, for the profiler
+	private int exitOpcode;
+
+	/**
+	 * Decoded instruction cache of a page: instruction, addressing mode 
+	 * (null when the operand is resolved), operand, length and the 
+	 * generation of the page when decoded. The generation of a page is 
+	 * bumped by each write to it or to a page it mirrors, and when it is
+	 * mapped again. Also execution counts by address, the compiled block
+	 * holding the instruction at each address with its index in the block,
+	 * and the blocks compiled from code of the page.
+	 */
+	private static final class CodePage {
+		int generation;
+		//writes to the memory of the page go to codeWritten()
+		boolean protectedCode;
+		final Instruction[] insts = new Instruction[256];
+		final AddressingMode[] modes = new AddressingMode[256];
+		final int[] operands = new int[256];
+		final byte[] lengths = new byte[256];
+		final int[] generations = new int[256];
+		final int[] hotness = new int[256];
+		final Block[] blocks = new Block[256];
+		final byte[] entries = new byte[256];
+		ArrayList<Block> compiledBlocks;
+	}
+
+	/**
+	 * Compiled block of a cpu, valid until one of the pages its code was 
+	 * read from is written
+	 */
+	private static final class Block {
+		//address of each instruction
+		final int[] pcs;
+		final CompiledBlock code;
+		boolean valid = true;
+
+		Block(int[] pcs, CompiledBlock code) {
+			this.pcs = pcs;
+			this.code = code;
+		}
+	}
+
+	/**
+	 * Class generated by BlockCompiler for a block, shared by the cpus 
+	 * running the same code. It's public, with its helpers, only so that
+	 * generated classes, which have class loaders of their own, can extend
+	 * it.
+	 */
+	public static abstract class CompiledBlock {
+		//most cycles run before the last instruction, from each instruction
+		int[] cycles;
+
+		protected CompiledBlock() {
+		}
+
+		/**
+		 * Same as runSwitch() over the instructions of the block: stop after
+		 * the last one, when a jump inside the block would overrun the budget
+		 * or when the block rewrote its own code, and write the registers 
+		 * back. The caller checks the block can be entered.
+		 * @param entry index of the instruction to start from
+		 * @param elapsed cycles elapsed in the slice
+		 * @param budget cycle budget of the slice
+		 * @return cycles elapsed in the slice after the block
+		 */
+		protected abstract int run(Cpu6502 cpu, int entry, int elapsed, int budget);
+
+		protected static int getSP(Cpu6502 cpu) {
+			return cpu.regs.SP;
+		}
+
+		protected static int getA(Cpu6502 cpu) {
+			return cpu.regs.A;
+		}
+
+		protected static int getX(Cpu6502 cpu) {
+			return cpu.regs.X;
+		}
+
+		protected static int getY(Cpu6502 cpu) {
+			return cpu.regs.Y;
+		}
+
+		protected static boolean isCarry(Cpu6502 cpu) {
+			return cpu.regs.carry;
+		}
+
+		protected static boolean isInterrupt(Cpu6502 cpu) {
+			return cpu.regs.interrupt;
+		}
+
+		protected static boolean isDecimal(Cpu6502 cpu) {
+			return cpu.regs.decimal;
+		}
+
+		protected static boolean isBreak(Cpu6502 cpu) {
+			return cpu.regs.brk;
+		}
+
+		protected static boolean isOverflow(Cpu6502 cpu) {
+			return cpu.regs.overflow;
+		}
+
+		protected static int getZeroResult(Cpu6502 cpu) {
+			return cpu.regs.zeroResult;
+		}
+
+		protected static int getNegativeResult(Cpu6502 cpu) {
+			return cpu.regs.negativeResult;
+		}
+
+		/**
+		 * Write the registers back and count the instructions run
+		 */
+		protected static void exit(Cpu6502 cpu, int pc, int sp, int a, int x, int y, boolean carry,
+				boolean interrupt, boolean decimal, boolean brk, boolean overflow, int z, int n, int count) {
+			Registers regs = cpu.regs;
+			regs.PC = pc;
+			regs.SP = sp;
+			regs.A = a;
+			regs.X = x;
+			regs.Y = y;
+			regs.carry = carry;
+			regs.interrupt = interrupt;
+			regs.decimal = decimal;
+			regs.brk = brk;
+			regs.overflow = overflow;
+			regs.zeroResult = z;
+			regs.negativeResult = n;
+			cpu.instructions += count;
+		}
+
+		protected static void setSliceCycles(Cpu6502 cpu, int cycles) {
+			cpu.sliceCycles = cycles;
+		}
+
+		protected static void setExitOpcode(Cpu6502 cpu, int opcode) {
+			cpu.exitOpcode = opcode;
+		}
+
+		/**
+		 * @return true if the running block was invalidated by a write
+		 */
+		protected static boolean isInvalidated(Cpu6502 cpu) {
+			return !cpu.runningBlock.valid;
+		}
+
+		protected static void trapped(Cpu6502 cpu) {
+			cpu.trapped();
+		}
+
+		protected static int readInt(Cpu6502 cpu, int addr) {
+			return cpu.readInt(addr);
+		}
+
+		protected static int readIntJmpBug(Cpu6502 cpu, int addr) {
+			return cpu.readIntJmpBug(addr);
+		}
+
+		protected static int jmpIndirectCycles(Cpu6502 cpu) {
+			return cpu.jmpIndirectCycles;
+		}
+
+		protected static int adc(Cpu6502 cpu, int a, int operand, boolean carry, boolean decimal) {
+			return cpu.adc(a, operand, carry, decimal);
+		}
+
+		protected static int sbc(Cpu6502 cpu, int a, int operand, boolean carry, boolean decimal) {
+			return cpu.sbc(a, operand, carry, decimal);
+		}
+
+		/**
+		 * @param z zeroResult
+		 * @param n negativeResult
+		 */
+		protected static int packFlags(boolean carry, int z, boolean interrupt, boolean decimal, 
+				boolean brk, boolean overflow, int n) {
+			return Cpu6502.packFlags(carry, z == 0, interrupt, decimal, brk, overflow, (n&0x80) != 0);
+		}
+	}
+
+	/**
+	 * @return true if resolveOperand doesn't depend on registers or memory
+	 */
+	private static boolean isConstantOperand(AddressingMode mode) {
+		return mode == AddressingMode.IMM || mode == AddressingMode.ZP || 
+			mode == AddressingMode.ABS || mode == AddressingMode.REL || mode == AddressingMode.NONE;
+	}
+
+	/**
+	 * @return true if the code after the instruction isn't run next, the
+	 * branches go on in the block when not taken
+	 */
+	private static boolean endsBlock(Instruction inst) {
+		String name = inst.name;
+		return name == "JMP" || name == "JSR" || name == "RTS" || name == "RTI" || name == "BRK";
+	}
+
+	private CodePage codePage(int page) {
+		CodePage code = codePages[page];
+		if(code == null) {
+			code = new CodePage();
+			codePages[page] = code;
+			codePageCount++;
+		}
+		return code;
+	}
+
+	/**
+	 * Decode the instruction at pc into the decoded instruction cache
+	 * @return false if the instruction can't be cached: unknown opcode, 
+	 * bytes read from more than one page or from an I/O page
+	 */
+	private boolean decode(int pc) {
+		int page = pc>>8;
+		if(readPages[page] == null)
+			return false;
+		int opcode = readByte(pc);
+		Instruction inst = instList[opcode];
+		if(inst == null)
+			return false;
+		AddressingMode mode = getAddressingMode(opcode);
+		int length = 1+operandLength(mode);
+		if(((pc+length-1)>>8) != page)
+			return false;
+		int operand = 0;
+		//Read the operand like getOperand does
+		if(length == 2)
+			operand = readByte(pc+1);
+		else if(length == 3)
+			operand = readInt(pc+1);
+		CodePage code = codePage(page);
+		int i = pc&0xFF;
+		code.insts[i] = inst;
+		code.modes[i] = isConstantOperand(mode) ? null : mode;
+		code.operands[i] = operand;
+		code.lengths[i] = (byte)length;
+		code.generations[i] = code.generation;
+		if(!code.protectedCode)
+			protectCode(page);
+		return true;
+	}
+
+	private boolean isDecoded(int pc) {
+		CodePage code = codePages[pc>>8];
+		int i = pc&0xFF;
+		return code != null && code.insts[i] != null && code.generations[i] == code.generation;
+	}
+
+	/**
+	 * Same as step(), without decoding when the instruction at PC is in 
+	 * the decoded instruction cache
+	 * @return number of cycles elapsed
+	 */
+	private int stepDecoded() {
+		int pc = regs.PC;
+		if(!isDecoded(pc) && !decode(pc))
+			return step();
+		instructions++;
+		CodePage code = codePages[pc>>8];
+		int i = pc&0xFF;
+		Instruction inst = code.insts[i];
+		AddressingMode mode = code.modes[i];
+		int operand = code.operands[i];
+		regs.PC = (pc+code.lengths[i])&0xFFFF;
+		if(mode != null)
+			operand = resolveOperand(mode, operand, inst.name == "JMP");
+		int execCycles = inst.execute(operand);
+		if(regs.PC == pc)
+			trapped();
+		return execCycles;
+	}
+
+	/**
+	 * Compile the block starting at pc: the instructions of the decoded
+	 * instruction cache up to the first one that changes the control flow
+	 * or can't be compiled. The block is run for each of its instructions
+	 * not in another block yet.
+	 * @return the compiled block, null if the instruction at pc can't be 
+	 * compiled or no code can be generated
+	 */
+	private Block compileBlock(int pc) {
+		if(!BlockCompiler.isEnabled())
+			return null;
+		int start = pc;
+		int[] pcs = new int[MAX_BLOCK_LENGTH];
+		byte[] bytes = new byte[MAX_BLOCK_LENGTH*3];
+		int size = 0;
+		int length = 0;
+		while(length < MAX_BLOCK_LENGTH && pc <= 0xFFFF) {
+			if(!isDecoded(pc) && !decode(pc))
+				break;
+			int opcode = readByte(pc);
+			if(!BlockCompiler.isCompiled(opcode))
+				break;
+			pcs[length++] = pc;
+			int end = pc+opcodeLengths[opcode];
+			while(pc < end)
+				bytes[size++] = (byte)readByte(pc++);
+			if(endsBlock(instList[opcode]))
+				break;
+		}
+		if(length == 0)
+			return null;
+		CompiledBlock code = BlockCompiler.compile(variant, start, Arrays.copyOf(bytes, size), opcodeLengths);
+		if(code == null)
+			return null;
+		Block block = new Block(Arrays.copyOf(pcs, length), code);
+		for(int i = 0; i < length; i++) {
+			CodePage codePage = codePages[pcs[i]>>8];
+			if(codePage.blocks[pcs[i]&0xFF] == null) {
+				codePage.blocks[pcs[i]&0xFF] = block;
+				codePage.entries[pcs[i]&0xFF] = (byte)i;
+			}
+		}
+		for(int page = start>>8; page <= (pc-1)>>8; page++)
+			addPageBlock(page, block);
+		return block;
+	}
+
+	private void addPageBlock(int page, Block block) {
+		CodePage code = codePages[page];
+		ArrayList<Block> list = code.compiledBlocks;
+		if(list == null) {
+			list = new ArrayList<Block>();
+			code.compiledBlocks = list;
+		}
+		else if(list.size() >= 32) {
+			//Forget blocks already invalidated through another page
+			for(Iterator<Block> it = list.iterator(); it.hasNext();)
+				if(!it.next().valid)
+					it.remove();
+		}
+		list.add(block);
+	}
+
+	/**
+	 * Invalidate decoded instructions and blocks read from the memory written
+	 * at addr
+	 */
+	private void codeWritten(int addr) {
+		if(codePageCount == 0)
+			return;
+		int written = addr>>8;
+		if(pageAliases[written] == null)
+			pageAliases[written] = pagesMapping(readPages, writeTargets[written]);
+		for(int page : pageAliases[written]) {
+			CodePage code = codePages[page];
+			if(code != null)
+				invalidateCode(code);
+		}
+		writePages[written] = writeTargets[written];
+	}
+
+	/**
+	 * Send the writes to the memory read by the page to writeSlow(), until
+	 * its decoded code is invalidated
+	 */
+	private void protectCode(int page) {
+		codePages[page].protectedCode = true;
+		if(pageWriters[page] == null)
+			pageWriters[page] = pagesMapping(writeTargets, readPages[page]);
+		for(int writer : pageWriters[page])
+			writePages[writer] = null;
+	}
+
+	/**
+	 * Forget the aliases of the pages once they are mapped again, and 
+	 * protect the code pages from their new writers
+	 */
+	private void updatePageAliases() {
+		Arrays.fill(pageAliases, null);
+		Arrays.fill(pageWriters, null);
+		for(int page = 0; page < 256; page++)
+			if(codePages[page] != null && codePages[page].protectedCode)
+				protectCode(page);
+	}
+
+	/**
+	 * @return the pages mapped to data in the given page table 
+	 */
+	private static int[] pagesMapping(byte[][] pageTable, byte[] data) {
+		if(data == null)
+			return new int[0];
+		int count = 0;
+		for(int page = 0; page < 256; page++)
+			if(pageTable[page] == data)
+				count++;
+		int[] pages = new int[count];
+		count = 0;
+		for(int page = 0; page < 256; page++)
+			if(pageTable[page] == data)
+				pages[count++] = page;
+		return pages;
+	}
+
+	/**
+	 * Drop the decoded instructions of the page and every block compiled 
+	 * from it
+	 */
+	private void invalidateCode(CodePage code) {
+		code.generation++;
+		code.protectedCode = false;
+		if(code.compiledBlocks == null)
+			return;
+		for(Block block : code.compiledBlocks) {
+			for(int pc : block.pcs) {
+				CodePage blockPage = codePages[pc>>8];
+				if(blockPage.blocks[pc&0xFF] == block) {
+					blockPage.blocks[pc&0xFF] = null;
+					blockPage.hotness[pc&0xFF] = 0;
+				}
+			}
+			block.valid = false;
+		}
+		code.compiledBlocks = null;
+	}
+
+	/**
+	 * Tiered core: interpret instructions while counting how many times each
+	 * address is executed, and run compiled blocks for hot addresses 
+	 * @param budget cycle budget
+	 * @return number of cycles really elapsed
+	 */
+	private int runTiered(int budget) {
+		int elapsed = 0;
+		while(elapsed < budget && haltReason == null && !idle) {
+			int pc = regs.PC;
+			CodePage code = codePage(pc>>8);
+			int i = pc&0xFF;
+			Block block = code.blocks[i];
+			if(block == null && ++code.hotness[i] >= HOT_BLOCK_THRESHOLD) {
+				block = compileBlock(pc);
+				//Count again before the next try at an address that can't be compiled
+				if(block == null)
+					code.hotness[i] = 0;
+			}
+			sliceCycles = elapsed;
+			//Blocks only check the budget on their jumps: the instructions
+			//that may not fit in the rest of the slice run one at a time
+			if(block != null && elapsed+block.code.cycles[code.entries[i]] < budget) {
+				runningBlock = block;
+				if(trace != null || profiler != null)
+					elapsed = runObservedBlock(block, code.entries[i], pc, elapsed, budget);
+				else
+					elapsed = block.code.run(this, code.entries[i], elapsed, budget);
+			}
+			else {
+				if(trace != null)
+					traceInstruction(pc, elapsed);
+				if(profiler != null) {
+					int opcode = peek(pc);
+					int executed = stepDecoded();
+					profiler.record(pc, opcode, executed, regs.PC);
+					elapsed += executed;
+				}
+				else
+					elapsed += stepDecoded();
+			}
+		}
+		runningBlock = null;
+		return elapsed;
+	}
+
+	/**
+	 * Run a compiled block as one entry of the trace and one execution at
+	 * its entry address in the profiler
+	 */
+	private int runObservedBlock(Block block, int entry, int pc, int elapsed, int budget) {
+		if(trace != null)
+			traceInstruction(pc, elapsed);
+		long count = instructions;
+		exitOpcode = -1;
+		int executed = block.code.run(this, entry, elapsed, budget)-elapsed;
+		if(trace != null)
+			trace.setLastCount((int)(instructions-count));
+		if(profiler != null)
+			profiler.recordBlock(pc, executed, exitOpcode, regs.PC);
+		return elapsed+executed;
+	}
+
+	/*
+	 * ALU results are packed as the result byte followed by the processor 
+	 * flags, in the same layout as getFlags()
+	 */
+	private static final int ALU_CARRY = ProcessorFlags.CARRY.value<<8;
+	private static final int ALU_ZERO = ProcessorFlags.ZERO.value<<8;
+	private static final int ALU_OVERFLOW = ProcessorFlags.OVERFLOW.value<<8;
+	private static final int ALU_NEGATIVE = ProcessorFlags.NEGATIVE.value<<8;
+
+	private static int aluResult(int res, boolean carry, boolean zero, boolean overflow, boolean negative) {
+		return res|(carry?ALU_CARRY:0)|(zero?ALU_ZERO:0)|(overflow?ALU_OVERFLOW:0)|(negative?ALU_NEGATIVE:0);
+	}
+
+	/** ADC in binary mode */
+	private static int adcBinary(int a, int operand, boolean carry) {
+		int res = a+operand+(carry?1:0);
+		int a2 = res&255;
+		return aluResult(a2, res>255, a2 == 0, res>127 || res<-128, (a2&0x80) != 0);
+	}
+
+	/** ADC in decimal mode */
+	private static int adcDecimal(int a, int operand, boolean carry) {
+		if(!isBcdComputable(a, operand, carry, false))
+			return adcDigits(a, operand, carry);
+		int res = Utils6502.unpackBcd(operand)+Utils6502.unpackBcd(a)+(carry?1:0);
+		int a2 = res%100;
+		return aluResult(Utils6502.packBcd(res), res>99, a2 == 0, res>99, (a2&0x80) != 0);
+	}
+
+	/** SBC in binary mode */
+	private static int sbcBinary(int a, int operand, boolean carry) {
+		int res = a-operand-(1-(carry?1:0));
+		int a2 = res&255;
+		return aluResult(a2, (res&0x100) == 0, a2 == 0, res>127 || res<-128, (a2&0x80) != 0);
+	}
+
+	/** SBC in decimal mode */
+	private static int sbcDecimal(int a, int operand, boolean carry) {
+		if(!isBcdComputable(a, operand, carry, true))
+			return sbcDigits(a, operand, carry);
+		int res = Utils6502.unpackBcd(operand)-Utils6502.unpackBcd(a)-(1-(carry?1:0));
+		int a2 = res%100;
+		return aluResult(Utils6502.packBcd(res), res >= 0, a2 == 0, false, res<0);
+	}
+
+	/*
+	 * Decimal mode operands the BCD tables can't compute are added or
+	 * subtracted digit by digit, the way an NMOS 6502 does
+	 */
+	private static int adcDigits(int a, int operand, boolean carry) {
+		int lo = (a&0x0F)+(operand&0x0F)+(carry?1:0);
+		if(lo > 9)
+			lo = ((lo+6)&0x0F)+0x10;
+		int res = (a&0xF0)+(operand&0xF0)+lo;
+		if(res >= 0xA0)
+			res += 0x60;
+		int a2 = res&255;
+		return aluResult(a2, res>255, a2 == 0, res>255, false);
+	}
+
+	private static int sbcDigits(int a, int operand, boolean carry) {
+		int lo = (a&0x0F)-(operand&0x0F)-(carry?0:1);
+		if(lo < 0)
+			lo = ((lo-6)&0x0F)-0x10;
+		int res = (a&0xF0)-(operand&0xF0)+lo;
+		if(res < 0)
+			res -= 0x60;
+		int a2 = res&255;
+		boolean borrow = a-operand-(carry?0:1) < 0;
+		return aluResult(a2, !borrow, a2 == 0, false, borrow);
+	}
+
+	/*
+	 * ADC and SBC results, indexed by carry<<16|A<<8|operand and shared by
+	 * every cpu
+	 */
+	private static final char[] ADC_BINARY = initAluTable(false, false);
+	private static final char[] ADC_DECIMAL = initAluTable(false, true);
+	private static final char[] SBC_BINARY = initAluTable(true, false);
+	private static final char[] SBC_DECIMAL = initAluTable(true, true);
+
+	private static char[] initAluTable(boolean subtract, boolean decimal) {
+		char[] table = new char[0x20000];
+		for(int i = 0; i < table.length; i++) {
+			int a = (i>>8)&0xFF;
+			int operand = i&0xFF;
+			boolean carry = i >= 0x10000;
+			if(subtract)
+				table[i] = (char)(decimal ? sbcDecimal(a, operand, carry) : sbcBinary(a, operand, carry));
 			else
-				System.err.printf("Unknown opcode %x\n", opcode);
-			ticks += execCycles;	
-			long neededTime = (long)(execCycles*clockSpeed);
-			while(System.nanoTime()-startTime < neededTime);
+				table[i] = (char)(decimal ? adcDecimal(a, operand, carry) : adcBinary(a, operand, carry));
+		}
+		return table;
+	}
+
+	private static boolean isBcdComputable(int a, int operand, boolean carry, boolean subtract) {
+		if(!Utils6502.isPackedBcd(a) || !Utils6502.isPackedBcd(operand))
+			return false;
+		int c = carry?1:0;
+		int res = subtract ? Utils6502.unpackBcd(operand)-Utils6502.unpackBcd(a)-(1-c)
+				: Utils6502.unpackBcd(operand)+Utils6502.unpackBcd(a)+c;
+		return Utils6502.isUnpackedBcd(res);
+	}
+
+	private static int aluIndex(int a, int operand, boolean carry) {
+		return (carry?0x10000:0)|a<<8|operand;
+	}
+
+	/**
+	 * @param decimal decimal flag, ignored by the 2A03 whose decimal
+	 * tables are the binary ones
+	 * @return result byte, followed by the flags in the layout of
+	 * getFlags()
+	 */
+	int adc(int a, int operand, boolean carry, boolean decimal) {
+		return (decimal ? adcDecimalTable : ADC_BINARY)[aluIndex(a, operand, carry)];
+	}
+
+	int sbc(int a, int operand, boolean carry, boolean decimal) {
+		return (decimal ? sbcDecimalTable : SBC_BINARY)[aluIndex(a, operand, carry)];
+	}
+
+	/**
+	 * Set A and the flags from an ALU result of adc() or sbc()
+	 */
+	private void setAluResult(int res) {
+		regs.A = res&0xFF;
+		regs.carry = (res&ALU_CARRY) != 0;
+		regs.overflow = (res&ALU_OVERFLOW) != 0;
+		regs.setZero((res&ALU_ZERO) != 0);
+		regs.setNegative((res&ALU_NEGATIVE) != 0);
+	}
+
+	/** Same as Instruction.getExecCycles for instructions with an extra cycle */
+	private static int crossCycle(int addr) {
+		return (addr&0xFF) == 0xFF ? 1 : 0;
+	}
+
+	private final byte[] fetchBuffer = new byte[3];
+
+	/**
+	 * Read the instruction at pc like step() does, for the switch core
+	 * @return fetchBuffer holding the opcode and its operand bytes
+	 */
+	private byte[] fetchInstruction(int pc) {
+		int opcode = readByte(pc);
+		fetchBuffer[0] = (byte)opcode;
+		if(instList[opcode] != null) {
+			for(int i = 1; i < opcodeLengths[opcode]; i++)
+				fetchBuffer[i] = (byte)readByte((pc+i)&0xFFFF);
+		}
+		return fetchBuffer;
+	}
+
+	/**
+	 * Switch core: decode and execute instructions until at least the given
+	 * number of cycles elapsed or the cpu halts. It follows the Instruction
+	 * classes opcode for opcode (operands are decoded according to 
+	 * computeAddressingMode) so both cores give the same results.
+	 * Registers are kept in locals and written back on exit.
+	 * @param budget cycle budget
+	 * @return number of cycles really elapsed
+	 */
+	private int runSwitch(int budget) {
+		int pc = regs.PC, sp = regs.SP, a = regs.A, x = regs.X, y = regs.Y;
+		boolean carry = regs.carry, interrupt = regs.interrupt, decimal = regs.decimal;
+		boolean brk = regs.brk, overflow = regs.overflow;
+		//Same as Registers.zeroResult and negativeResult
+		int z = regs.zeroResult;
+		int n = regs.negativeResult;
+		int cycles = 0;
+		int count = 0;
+		int addr, val, res;
+		int start = -1;
+		Trace trace = this.trace;
+		Profiler profiler = this.profiler;
+		//instruction the profiler records once it ran
+		int profiled = -1, profiledOpcode = 0, profiledCycles = 0;
+		loop:
+		while(cycles < budget) {
+			if(profiled >= 0) {
+				profiler.record(profiled, profiledOpcode, cycles-profiledCycles, pc);
+				profiled = -1;
+			}
+			if(pc == start) {
+				trapped();
+				break;
+			}
+			start = pc;
+			count++;
+			sliceCycles = cycles;
+			//Read the instruction from its page unless it's an I/O page or
+			//the instruction may cross the page
+			byte[] code = readPages[pc>>8];
+			int i = pc&0xFF;
+			if(code == null || i > 0xFD) {
+				code = fetchInstruction(pc);
+				i = 0;
+			}
+			int opcode = code[i]&0xFF;
+			int op = code[i+1]&0xFF;
+			int word = op|((code[i+2]&0xFF)<<8);
+			if(trace != null)
+				trace.record(pc, opcode, word, a, x, y, sp, packFlags(carry, z == 0, interrupt, decimal, brk,
+						overflow, (n&0x80) != 0), ticks+cycles);
+			if(profiler != null) {
+				profiled = pc;
+				profiledOpcode = opcode;
+				profiledCycles = cycles;
+			}
+			pc = (pc+opcodeLengths[opcode])&0xFFFF;
+			alu: {
+				switch(opcode) {
+				case 0x00: //BRK
+					brk = true;
+					writeByte(STACK_MEMORY+sp, (pc>>8)&0xFF);
+					sp = (sp-1)&0xFF;
+					writeByte(STACK_MEMORY+sp, pc&0xFF);
+					sp = (sp-1)&0xFF;
+					writeByte(STACK_MEMORY+sp, packFlags(carry, z == 0, interrupt, decimal, brk, overflow, (n&0x80) != 0));
+					sp = (sp-1)&0xFF;
+					pc = readInt(0xFFFE);
+					cycles += 7;
+					continue;
+				case 0x01: //ORA (zp,x)
+					val = readByte(readInt((op+x)&255));
+					a |= val;
+					z = n = a;
+					cycles += 6;
+					continue;
+				case 0x05: //ORA zp
+					val = readByte(op);
+					a |= val;
+					z = n = a;
+					cycles += 3;
+					continue;
+				case 0x06: //ASL zp
+					addr = op;
+					val = readByte(addr);
+					res = val<<1;
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 5;
+					continue;
+				case 0x08: //PHP
+					writeByte(STACK_MEMORY+sp, packFlags(carry, z == 0, interrupt, decimal, brk, overflow, (n&0x80) != 0));
+					sp = (sp-1)&0xFF;
+					cycles += 3;
+					continue;
+				case 0x09: //ORA #imm
+					val = op;
+					a |= val;
+					z = n = a;
+					cycles += 2;
+					continue;
+				case 0x0A: //ASL a
+					val = a;
+					res = val<<1;
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					a = res;
+					z = n = res;
+					cycles += 2;
+					continue;
+				case 0x0D: //ORA abs
+					val = readByte(word);
+					a |= val;
+					z = n = a;
+					cycles += 4;
+					continue;
+				case 0x0E: //ASL abs
+					addr = word;
+					val = readByte(addr);
+					res = val<<1;
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 6;
+					continue;
+				case 0x10: //BPL rel
+					val = op;
+					if((n&0x80) == 0) {
+						pc = (pc+val)&0xFFFF;
+						cycles++;
+					}
+					cycles += 2;
+					continue;
+				case 0x11: //ORA (zp),y
+					val = readByte((readInt(op)+y)&0xFFFF);
+					a |= val;
+					z = n = a;
+					cycles += 5 + crossCycle(val);
+					continue;
+				case 0x15: //ORA zp,x
+					val = readByte((op+x)&255);
+					a |= val;
+					z = n = a;
+					cycles += 4;
+					continue;
+				case 0x16: //ASL zp,x
+					addr = (op+x)&255;
+					val = readByte(addr);
+					res = val<<1;
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 6;
+					continue;
+				case 0x18: //CLC
+					carry = false;
+					cycles += 2;
+					continue;
+				case 0x19: //ORA abs,y
+					val = readByte((word+y)&0xFFFF);
+					a |= val;
+					z = n = a;
+					cycles += 4 + crossCycle(val);
+					continue;
+				case 0x1D: //ORA abs,x
+					val = readByte((word+x)&0xFFFF);
+					a |= val;
+					z = n = a;
+					cycles += 4 + crossCycle(val);
+					continue;
+				case 0x1E: //ASL abs,x
+					addr = (word+x)&0xFFFF;
+					val = readByte(addr);
+					res = val<<1;
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 7;
+					continue;
+				case 0x20: //JSR abs
+					addr = word;
+					res = (pc-1)&0xFFFF;
+					writeByte(STACK_MEMORY+sp, (res>>8)&0xFF);
+					sp = (sp-1)&0xFF;
+					writeByte(STACK_MEMORY+sp, res&0xFF);
+					sp = (sp-1)&0xFF;
+					pc = addr;
+					cycles += 6;
+					continue;
+				case 0x21: //AND (zp,x)
+					val = readByte(readInt((op+x)&255));
+					a &= val;
+					z = n = a;
+					cycles += 6;
+					continue;
+				case 0x24: //BIT zp
+					val = readByte(op);
+					n = val;
+					overflow = (val&0x40) != 0;
+					z = a&val;
+					cycles += 3;
+					continue;
+				case 0x25: //AND zp
+					val = readByte(op);
+					a &= val;
+					z = n = a;
+					cycles += 3;
+					continue;
+				case 0x26: //ROL zp
+					addr = op;
+					val = readByte(addr);
+					res = (val<<1)|(carry?0:1);
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 5;
+					continue;
+				case 0x28: //PLP
+					sp = (sp+1)&0xFF;
+					regs.setFlags(readByte(STACK_MEMORY+sp));
+					carry = regs.carry;
+					z = regs.zeroResult;
+					interrupt = regs.interrupt;
+					decimal = regs.decimal;
+					brk = regs.brk;
+					overflow = regs.overflow;
+					n = regs.negativeResult;
+					cycles += 4;
+					continue;
+				case 0x29: //AND #imm
+					val = op;
+					a &= val;
+					z = n = a;
+					cycles += 2;
+					continue;
+				case 0x2A: //ROL a
+					val = a;
+					res = (val<<1)|(carry?0:1);
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					a = res;
+					z = n = res;
+					cycles += 2;
+					continue;
+				case 0x2C: //BIT abs
+					val = readByte(word);
+					n = val;
+					overflow = (val&0x40) != 0;
+					z = a&val;
+					cycles += 4;
+					continue;
+				case 0x2D: //AND abs
+					val = readByte(word);
+					a &= val;
+					z = n = a;
+					cycles += 4;
+					continue;
+				case 0x2E: //ROL abs
+					addr = word;
+					val = readByte(addr);
+					res = (val<<1)|(carry?0:1);
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 6;
+					continue;
+				case 0x30: //BMI rel
+					val = op;
+					if((n&0x80) != 0) {
+						pc = (pc+val)&0xFFFF;
+						cycles++;
+					}
+					cycles += 2;
+					continue;
+				case 0x31: //AND (zp),y
+					val = readByte((readInt(op)+y)&0xFFFF);
+					a &= val;
+					z = n = a;
+					cycles += 5 + crossCycle(val);
+					continue;
+				case 0x35: //AND zp,x
+					val = readByte((op+x)&255);
+					a &= val;
+					z = n = a;
+					cycles += 4;
+					continue;
+				case 0x36: //ROL zp,x
+					addr = (op+x)&255;
+					val = readByte(addr);
+					res = (val<<1)|(carry?0:1);
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 6;
+					continue;
+				case 0x38: //SEC
+					carry = true;
+					cycles += 2;
+					continue;
+				case 0x39: //AND abs,y
+					val = readByte((word+y)&0xFFFF);
+					a &= val;
+					z = n = a;
+					cycles += 4 + crossCycle(val);
+					continue;
+				case 0x3D: //AND abs,x
+					val = readByte((word+x)&0xFFFF);
+					a &= val;
+					z = n = a;
+					cycles += 4 + crossCycle(val);
+					continue;
+				case 0x3E: //ROL abs,x
+					addr = (word+x)&0xFFFF;
+					val = readByte(addr);
+					res = (val<<1)|(carry?0:1);
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 7;
+					continue;
+				case 0x40: //RTI
+					sp = (sp+1)&0xFF;
+					regs.setFlags(readByte(STACK_MEMORY+sp));
+					carry = regs.carry;
+					z = regs.zeroResult;
+					interrupt = regs.interrupt;
+					decimal = regs.decimal;
+					brk = regs.brk;
+					overflow = regs.overflow;
+					n = regs.negativeResult;
+					sp = (sp+1)&0xFF;
+					res = readByte(STACK_MEMORY+sp);
+					sp = (sp+1)&0xFF;
+					pc = (readByte(STACK_MEMORY+sp)<<8)|res;
+					cycles += 6;
+					continue;
+				case 0x41: //EOR (zp,x)
+					val = readByte(readInt((op+x)&255));
+					a ^= val;
+					z = n = a;
+					cycles += 6;
+					continue;
+				case 0x45: //EOR zp
+					val = readByte(op);
+					a ^= val;
+					z = n = a;
+					cycles += 3;
+					continue;
+				case 0x46: //LSR zp
+					addr = op;
+					val = readByte(addr);
+					res = val>>1;
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 5;
+					continue;
+				case 0x48: //PHA
+					writeByte(STACK_MEMORY+sp, a);
+					sp = (sp-1)&0xFF;
+					cycles += 3;
+					continue;
+				case 0x49: //EOR #imm
+					val = op;
+					a ^= val;
+					z = n = a;
+					cycles += 2;
+					continue;
+				case 0x4A: //LSR a
+					val = a;
+					res = val>>1;
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					a = res;
+					z = n = res;
+					cycles += 2;
+					continue;
+				case 0x4C: //JMP abs
+					pc = word;
+					cycles += 3;
+					continue;
+				case 0x4D: //EOR abs
+					val = readByte(word);
+					a ^= val;
+					z = n = a;
+					cycles += 4;
+					continue;
+				case 0x4E: //LSR abs
+					addr = word;
+					val = readByte(addr);
+					res = val>>1;
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 6;
+					continue;
+				case 0x50: //BVC rel
+					val = op;
+					if(!overflow) {
+						pc = (pc+val)&0xFFFF;
+						cycles++;
+					}
+					cycles += 2;
+					continue;
+				case 0x51: //EOR (zp),y
+					val = readByte((readInt(op)+y)&0xFFFF);
+					a ^= val;
+					z = n = a;
+					cycles += 5 + crossCycle(val);
+					continue;
+				case 0x55: //EOR zp,x
+					val = readByte((op+x)&255);
+					a ^= val;
+					z = n = a;
+					cycles += 4;
+					continue;
+				case 0x56: //LSR zp,x
+					addr = (op+x)&255;
+					val = readByte(addr);
+					res = val>>1;
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 6;
+					continue;
+				case 0x58: //CLI
+					interrupt = false;
+					cycles += 2;
+					continue;
+				case 0x59: //EOR abs,y
+					val = readByte((word+y)&0xFFFF);
+					a ^= val;
+					z = n = a;
+					cycles += 4 + crossCycle(val);
+					continue;
+				case 0x5D: //EOR abs,x
+					val = readByte((word+x)&0xFFFF);
+					a ^= val;
+					z = n = a;
+					cycles += 4 + crossCycle(val);
+					continue;
+				case 0x5E: //LSR abs,x
+					addr = (word+x)&0xFFFF;
+					val = readByte(addr);
+					res = val>>1;
+					carry = (res&0x100) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 7;
+					continue;
+				case 0x60: //RTS
+					sp = (sp+1)&0xFF;
+					res = readByte(STACK_MEMORY+sp);
+					sp = (sp+1)&0xFF;
+					pc = (((readByte(STACK_MEMORY+sp)<<8)|res)+1)&0xFFFF;
+					cycles += 6;
+					continue;
+				case 0x61: //ADC (zp,x)
+					val = readByte(readInt((op+x)&255));
+					cycles += 6;
+					res = adc(a, val, carry, decimal);
+					break alu;
+				case 0x65: //ADC zp
+					val = readByte(op);
+					cycles += 3;
+					res = adc(a, val, carry, decimal);
+					break alu;
+				case 0x66: //ROR zp
+					addr = op;
+					val = readByte(addr);
+					res = (val>>1)|((carry?0:1)<<7);
+					carry = (val&1) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 5;
+					continue;
+				case 0x68: //PLA
+					sp = (sp+1)&0xFF;
+					a = readByte(STACK_MEMORY+sp);
+					z = n = a;
+					cycles += 4;
+					continue;
+				case 0x69: //ADC #imm
+					val = op;
+					cycles += 2;
+					res = adc(a, val, carry, decimal);
+					break alu;
+				case 0x6A: //ROR a
+					val = a;
+					res = (val>>1)|((carry?0:1)<<7);
+					carry = (val&1) != 0;
+					res &= 0xFF;
+					a = res;
+					z = n = res;
+					cycles += 2;
+					continue;
+				case 0x6C: //JMP (abs)
+					pc = readIntJmpBug(word);
+					cycles += jmpIndirectCycles;
+					continue;
+				case 0x6D: //ADC abs
+					val = readByte(word);
+					cycles += 4;
+					res = adc(a, val, carry, decimal);
+					break alu;
+				case 0x6E: //ROR abs
+					addr = word;
+					val = readByte(addr);
+					res = (val>>1)|((carry?0:1)<<7);
+					carry = (val&1) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 6;
+					continue;
+				case 0x70: //BVS rel
+					val = op;
+					if(overflow) {
+						pc = (pc+val)&0xFFFF;
+						cycles++;
+					}
+					cycles += 2;
+					continue;
+				case 0x71: //ADC (zp),y
+					val = readByte((readInt(op)+y)&0xFFFF);
+					cycles += 5 + crossCycle(val);
+					res = adc(a, val, carry, decimal);
+					break alu;
+				case 0x75: //ADC zp,x
+					val = readByte((op+x)&255);
+					cycles += 4;
+					res = adc(a, val, carry, decimal);
+					break alu;
+				case 0x76: //ROR zp,x
+					addr = (op+x)&255;
+					val = readByte(addr);
+					res = (val>>1)|((carry?0:1)<<7);
+					carry = (val&1) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 6;
+					continue;
+				case 0x78: //SEI
+					interrupt = true;
+					cycles += 2;
+					continue;
+				case 0x79: //ADC abs,y
+					val = readByte((word+y)&0xFFFF);
+					cycles += 4 + crossCycle(val);
+					res = adc(a, val, carry, decimal);
+					break alu;
+				case 0x7D: //ADC abs,x
+					val = readByte((word+x)&0xFFFF);
+					cycles += 4 + crossCycle(val);
+					res = adc(a, val, carry, decimal);
+					break alu;
+				case 0x7E: //ROR abs,x
+					addr = (word+x)&0xFFFF;
+					val = readByte(addr);
+					res = (val>>1)|((carry?0:1)<<7);
+					carry = (val&1) != 0;
+					res &= 0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 7;
+					continue;
+				case 0x81: //STA (zp,x)
+					addr = readInt((op+x)&255);
+					writeByte(addr, a);
+					cycles += 6;
+					continue;
+				case 0x84: //STY zp
+					addr = op;
+					writeByte(addr, y);
+					cycles += 3;
+					continue;
+				case 0x85: //STA zp
+					addr = op;
+					writeByte(addr, a);
+					cycles += 3;
+					continue;
+				case 0x86: //STX zp
+					addr = op;
+					writeByte(addr, x);
+					cycles += 3;
+					continue;
+				case 0x88: //DEY
+					y = (y-1)&0xFF;
+					z = n = y;
+					cycles += 2;
+					continue;
+				case 0x8A: //TXA
+					a = x;
+					z = n = a;
+					cycles += 2;
+					continue;
+				case 0x8C: //STY abs
+					addr = word;
+					writeByte(addr, y);
+					cycles += 4;
+					continue;
+				case 0x8D: //STA abs
+					addr = word;
+					writeByte(addr, a);
+					cycles += 4;
+					continue;
+				case 0x8E: //STX abs
+					addr = word;
+					writeByte(addr, x);
+					cycles += 4;
+					continue;
+				case 0x90: //BCC rel
+					val = op;
+					if(!carry) {
+						pc = (pc+val)&0xFFFF;
+						cycles++;
+					}
+					cycles += 2;
+					continue;
+				case 0x91: //STA (zp),y
+					addr = (readInt(op)+y)&0xFFFF;
+					writeByte(addr, a);
+					cycles += 5;
+					continue;
+				case 0x94: //STY zp,x
+					addr = (op+x)&255;
+					writeByte(addr, y);
+					cycles += 4;
+					continue;
+				case 0x95: //STA zp,x
+					addr = (op+x)&255;
+					writeByte(addr, a);
+					cycles += 4;
+					continue;
+				case 0x96: //STX zp,x  (addressing from computeAddressingMode)
+					addr = (op+x)&255;
+					writeByte(addr, x);
+					cycles += 4;
+					continue;
+				case 0x98: //TYA
+					a = y;
+					z = n = a;
+					cycles += 2;
+					continue;
+				case 0x99: //STA abs,y
+					addr = (word+y)&0xFFFF;
+					writeByte(addr, a);
+					cycles += 5;
+					continue;
+				case 0x9A: //TXS
+					sp = x;
+					cycles += 2;
+					continue;
+				case 0x9D: //STA abs,x
+					addr = (word+x)&0xFFFF;
+					writeByte(addr, a);
+					cycles += 5;
+					continue;
+				case 0xA0: //LDY #imm
+					val = op;
+					y = val;
+					z = n = y;
+					cycles += 2;
+					continue;
+				case 0xA1: //LDA (zp,x)
+					val = readByte(readInt((op+x)&255));
+					a = val;
+					z = n = a;
+					cycles += 6;
+					continue;
+				case 0xA2: //LDX #imm
+					val = op;
+					x = val;
+					z = n = x;
+					cycles += 2;
+					continue;
+				case 0xA4: //LDY zp
+					val = readByte(op);
+					y = val;
+					z = n = y;
+					cycles += 3;
+					continue;
+				case 0xA5: //LDA zp
+					val = readByte(op);
+					a = val;
+					z = n = a;
+					cycles += 3;
+					continue;
+				case 0xA6: //LDX zp
+					val = readByte(op);
+					x = val;
+					z = n = x;
+					cycles += 3;
+					continue;
+				case 0xA9: //LDA #imm
+					val = op;
+					a = val;
+					z = n = a;
+					cycles += 2;
+					continue;
+				case 0xAA: //TAX
+					x = a;
+					z = n = x;
+					cycles += 2;
+					continue;
+				case 0xAC: //LDY abs
+					val = readByte(word);
+					y = val;
+					z = n = y;
+					cycles += 4;
+					continue;
+				case 0xAD: //LDA abs
+					val = readByte(word);
+					a = val;
+					z = n = a;
+					cycles += 4;
+					continue;
+				case 0xAE: //LDX abs
+					val = readByte(word);
+					x = val;
+					z = n = x;
+					cycles += 4;
+					continue;
+				case 0xB0: //BCS rel
+					val = op;
+					if(carry) {
+						pc = (pc+val)&0xFFFF;
+						cycles++;
+					}
+					cycles += 2;
+					continue;
+				case 0xB1: //LDA (zp),y
+					val = readByte((readInt(op)+y)&0xFFFF);
+					a = val;
+					z = n = a;
+					cycles += 5 + crossCycle(val);
+					continue;
+				case 0xB4: //LDY zp,x
+					val = readByte((op+x)&255);
+					y = val;
+					z = n = y;
+					cycles += 4;
+					continue;
+				case 0xB5: //LDA zp,x
+					val = readByte((op+x)&255);
+					a = val;
+					z = n = a;
+					cycles += 4;
+					continue;
+				case 0xB6: //LDX zp,x  (addressing from computeAddressingMode)
+					val = readByte((op+x)&255);
+					x = val;
+					z = n = x;
+					cycles += 4;
+					continue;
+				case 0xB8: //CLV
+					overflow = false;
+					cycles += 2;
+					continue;
+				case 0xB9: //LDA abs,y
+					val = readByte((word+y)&0xFFFF);
+					a = val;
+					z = n = a;
+					cycles += 4 + crossCycle(val);
+					continue;
+				case 0xBA: //TSX
+					x = sp;
+					z = n = x;
+					cycles += 2;
+					continue;
+				case 0xBC: //LDY abs,x  (addressing from computeAddressingMode)
+					val = readByte((word+x)&0xFFFF);
+					y = val;
+					z = n = y;
+					cycles += 4 + crossCycle(val);
+					continue;
+				case 0xBD: //LDA abs,x
+					val = readByte((word+x)&0xFFFF);
+					a = val;
+					z = n = a;
+					cycles += 4 + crossCycle(val);
+					continue;
+				case 0xBE: //LDX abs,y
+					val = readByte((word+y)&0xFFFF);
+					x = val;
+					z = n = x;
+					cycles += 4 + crossCycle(val);
+					continue;
+				case 0xC0: //CPY #imm
+					val = op;
+					res = y-val;
+					carry = (y >= val);
+					z = res;
+					n = res^0x80;
+					cycles += 2;
+					continue;
+				case 0xC1: //CMP (zp,x)
+					val = readByte(readInt((op+x)&255));
+					res = a-val;
+					carry = (a >= val);
+					z = res;
+					n = res^0x80;
+					cycles += 6;
+					continue;
+				case 0xC4: //CPY zp
+					val = readByte(op);
+					res = y-val;
+					carry = (y >= val);
+					z = res;
+					n = res^0x80;
+					cycles += 3;
+					continue;
+				case 0xC5: //CMP zp
+					val = readByte(op);
+					res = a-val;
+					carry = (a >= val);
+					z = res;
+					n = res^0x80;
+					cycles += 3;
+					continue;
+				case 0xC6: //DEC zp
+					addr = op;
+					res = (readByte(addr)-1)&0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 5;
+					continue;
+				case 0xC8: //INY
+					y = (y+1)&0xFF;
+					z = n = y;
+					cycles += 2;
+					continue;
+				case 0xC9: //CMP #imm
+					val = op;
+					res = a-val;
+					carry = (a >= val);
+					z = res;
+					n = res^0x80;
+					cycles += 2;
+					continue;
+				case 0xCA: //DEX
+					x = (x-1)&0xFF;
+					z = n = x;
+					cycles += 2;
+					continue;
+				case 0xCC: //CPY abs
+					val = readByte(word);
+					res = y-val;
+					carry = (y >= val);
+					z = res;
+					n = res^0x80;
+					cycles += 4;
+					continue;
+				case 0xCD: //CMP abs
+					val = readByte(word);
+					res = a-val;
+					carry = (a >= val);
+					z = res;
+					n = res^0x80;
+					cycles += 4;
+					continue;
+				case 0xCE: //DEC abs
+					addr = word;
+					res = (readByte(addr)-1)&0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 6;
+					continue;
+				case 0xD0: //BNE rel
+					val = op;
+					if(z != 0) {
+						pc = (pc+val)&0xFFFF;
+						cycles++;
+					}
+					cycles += 2;
+					continue;
+				case 0xD1: //CMP (zp),y
+					val = readByte((readInt(op)+y)&0xFFFF);
+					res = a-val;
+					carry = (a >= val);
+					z = res;
+					n = res^0x80;
+					cycles += 5 + crossCycle(val);
+					continue;
+				case 0xD5: //CMP zp,x
+					val = readByte((op+x)&255);
+					res = a-val;
+					carry = (a >= val);
+					z = res;
+					n = res^0x80;
+					cycles += 4;
+					continue;
+				case 0xD6: //DEC zp,x
+					addr = (op+x)&255;
+					res = (readByte(addr)-1)&0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 6;
+					continue;
+				case 0xD8: //CLD
+					decimal = false;
+					cycles += 2;
+					continue;
+				case 0xD9: //CMP abs,y
+					val = readByte((word+y)&0xFFFF);
+					res = a-val;
+					carry = (a >= val);
+					z = res;
+					n = res^0x80;
+					cycles += 4 + crossCycle(val);
+					continue;
+				case 0xDD: //CMP abs,x
+					val = readByte((word+x)&0xFFFF);
+					res = a-val;
+					carry = (a >= val);
+					z = res;
+					n = res^0x80;
+					cycles += 4 + crossCycle(val);
+					continue;
+				case 0xDE: //DEC abs,x
+					addr = (word+x)&0xFFFF;
+					res = (readByte(addr)-1)&0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 7 + crossCycle(addr);
+					continue;
+				case 0xE0: //CPX #imm
+					val = op;
+					res = x-val;
+					carry = (x >= val);
+					z = res;
+					n = res^0x80;
+					cycles += 2;
+					continue;
+				case 0xE1: //SBC (zp,x)
+					val = readByte(readInt((op+x)&255));
+					cycles += 6;
+					res = sbc(a, val, carry, decimal);
+					break alu;
+				case 0xE4: //CPX zp
+					val = readByte(op);
+					res = x-val;
+					carry = (x >= val);
+					z = res;
+					n = res^0x80;
+					cycles += 3;
+					continue;
+				case 0xE5: //SBC zp
+					val = readByte(op);
+					cycles += 3;
+					res = sbc(a, val, carry, decimal);
+					break alu;
+				case 0xE6: //INC zp
+					addr = op;
+					res = (readByte(addr)+1)&0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 5;
+					continue;
+				case 0xE8: //INX
+					x = (x+1)&0xFF;
+					z = n = x;
+					cycles += 2;
+					continue;
+				case 0xE9: //SBC #imm
+					val = op;
+					cycles += 2;
+					res = sbc(a, val, carry, decimal);
+					break alu;
+				case 0xEA: //NOP
+					cycles += 2;
+					continue;
+				case 0xEC: //CPX abs
+					val = readByte(word);
+					res = x-val;
+					carry = (x >= val);
+					z = res;
+					n = res^0x80;
+					cycles += 4;
+					continue;
+				case 0xED: //SBC abs
+					val = readByte(word);
+					cycles += 4;
+					res = sbc(a, val, carry, decimal);
+					break alu;
+				case 0xEE: //INC abs
+					addr = word;
+					res = (readByte(addr)+1)&0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 6;
+					continue;
+				case 0xF0: //BEQ rel
+					val = op;
+					if(z == 0) {
+						pc = (pc+val)&0xFFFF;
+						cycles++;
+					}
+					cycles += 2;
+					continue;
+				case 0xF1: //SBC (zp),y
+					val = readByte((readInt(op)+y)&0xFFFF);
+					cycles += 5 + crossCycle(val);
+					res = sbc(a, val, carry, decimal);
+					break alu;
+				case 0xF5: //SBC zp,x
+					val = readByte((op+x)&255);
+					cycles += 4;
+					res = sbc(a, val, carry, decimal);
+					break alu;
+				case 0xF6: //INC zp,x
+					addr = (op+x)&255;
+					res = (readByte(addr)+1)&0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 6;
+					continue;
+				case 0xF8: //SED
+					decimal = true;
+					cycles += 2;
+					continue;
+				case 0xF9: //SBC abs,y
+					val = readByte((word+y)&0xFFFF);
+					cycles += 4 + crossCycle(val);
+					res = sbc(a, val, carry, decimal);
+					break alu;
+				case 0xFD: //SBC abs,x
+					val = readByte((word+x)&0xFFFF);
+					cycles += 4 + crossCycle(val);
+					res = sbc(a, val, carry, decimal);
+					break alu;
+				case 0xFE: //INC abs,x
+					addr = (word+x)&0xFFFF;
+					res = (readByte(addr)+1)&0xFF;
+					writeByte(addr, res);
+					z = n = res;
+					cycles += 7 + crossCycle(addr);
+					continue;
+				default:
+					if(instList[opcode] == null) {
+						pc = (start+1)&0xFFFF;
+						haltReason = StopReason.UNKNOWN_OPCODE;
+						break loop;
+					}
+					//Opcodes of the variant run their instruction
+					regs.PC = start;
+					regs.SP = sp;
+					regs.A = a;
+					regs.X = x;
+					regs.Y = y;
+					regs.carry = carry;
+					regs.interrupt = interrupt;
+					regs.decimal = decimal;
+					regs.brk = brk;
+					regs.overflow = overflow;
+					regs.zeroResult = z;
+					regs.negativeResult = n;
+					cycles += step();
+					count--;
+					pc = regs.PC;
+					sp = regs.SP;
+					a = regs.A;
+					x = regs.X;
+					y = regs.Y;
+					carry = regs.carry;
+					interrupt = regs.interrupt;
+					decimal = regs.decimal;
+					brk = regs.brk;
+					overflow = regs.overflow;
+					z = regs.zeroResult;
+					n = regs.negativeResult;
+					continue;
+				}
+			}
+			//ADC and SBC: unpack the ALU result
+			a = res&0xFF;
+			carry = (res&ALU_CARRY) != 0;
+			overflow = (res&ALU_OVERFLOW) != 0;
+			z = ~res&ALU_ZERO;
+			n = res>>8;
+		}
+		if(profiled >= 0)
+			profiler.record(profiled, profiledOpcode, cycles-profiledCycles, pc);
+		if(pc == start && haltReason == null)
+			trapped();
+		regs.PC = pc;
+		regs.SP = sp;
+		regs.A = a;
+		regs.X = x;
+		regs.Y = y;
+		regs.carry = carry;
+		regs.zeroResult = z;
+		regs.interrupt = interrupt;
+		regs.decimal = decimal;
+		regs.brk = brk;
+		regs.overflow = overflow;
+		regs.negativeResult = n;
+		instructions += count;
+		return cycles;
+	}
+
+	/**
+	 * @return number of cycles executed since creation
+	 */
+	public long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * @return true if the page is memory rather than a device
+	 */
+	private boolean isMemoryPage(int page) {
+		return readPages[page] != null || ioHandlers[page] instanceof BufferPages;
+	}
+
+	/**
+	 * Save the cpu state. I/O pages other than the $2000-$3FFF registers 
+	 * are left out, they belong to their devices.
+	 */
+	public Snapshot snapshot() {
+		byte[] pageSet = new byte[32];
+		int pages = 0;
+		for(int page = 0; page < 256; page++) {
+			if(isMemoryPage(page)) {
+				pageSet[page>>3] |= 1<<(page&7);
+				pages++;
+			}
 		}
-	}	
+		int length = Snapshot.HEADER_SIZE+28+registers.length+pageSet.length+(pages<<8);
+		ByteBuffer out = ByteBuffer.allocate(length);
+		out.putInt(Snapshot.MAGIC).putShort((short)Snapshot.VERSION).putInt(length);
+		out.putShort((short)regs.PC).put((byte)regs.SP).put((byte)regs.A).put((byte)regs.X).put((byte)regs.Y);
+		out.put((byte)packFlags(regs.carry, regs.isZero(), regs.interrupt, regs.decimal, 
+				regs.brk, regs.overflow, regs.isNegative()));
+		out.put((byte)((nmiLine ? 1 : 0)|(nmiPending ? 2 : 0)));
+		out.putLong(ticks).putDouble(clockSpeed);
+		out.putInt(irqSources);
+		for(int val : registers)
+			out.put((byte)val);
+		out.put(pageSet);
+		for(int page = 0; page < 256; page++) {
+			if(readPages[page] != null)
+				out.put(readPages[page]);
+			else if(isMemoryPage(page)) {
+				BufferPages bufferPages = (BufferPages)ioHandlers[page];
+				ByteBuffer in = bufferPages.buffer.duplicate();
+				in.limit(bufferPages.base+(page<<8)+256).position(bufferPages.base+(page<<8));
+				out.put(in);
+			}
+		}
+		out.flip();
+		return new Snapshot(out);
+	}
+
+	/**
+	 * Restore a state saved by snapshot(). Pages which are no longer mapped
+	 * to memory are skipped.
+	 */
+	public void restore(Snapshot snapshot) {
+		ByteBuffer in = snapshot.data.duplicate();
+		Snapshot.checkHeader(in);
+		regs.PC = in.getShort()&0xFFFF;
+		regs.SP = in.get()&0xFF;
+		regs.A = in.get()&0xFF;
+		regs.X = in.get()&0xFF;
+		regs.Y = in.get()&0xFF;
+		int flags = in.get();
+		regs.carry = (flags&ProcessorFlags.CARRY.value) != 0;
+		regs.setZero((flags&ProcessorFlags.ZERO.value) != 0);
+		regs.interrupt = (flags&ProcessorFlags.INTERRUPT.value) != 0;
+		regs.decimal = (flags&ProcessorFlags.DECIMAL.value) != 0;
+		regs.brk = (flags&ProcessorFlags.BREAK.value) != 0;
+		regs.overflow = (flags&ProcessorFlags.OVERFLOW.value) != 0;
+		regs.setNegative((flags&ProcessorFlags.NEGATIVE.value) != 0);
+		int nmi = in.get();
+		nmiLine = (nmi&1) != 0;
+		nmiPending = (nmi&2) != 0;
+		ticks = in.getLong();
+		clockSpeed = in.getDouble();
+		irqSources = in.getInt();
+		for(int i = 0; i < registers.length; i++)
+			registers[i] = in.get()&0xFF;
+		byte[] pageSet = new byte[32];
+		in.get(pageSet);
+		for(int page = 0; page < 256; page++) {
+			if((pageSet[page>>3]&(1<<(page&7))) == 0)
+				continue;
+			if(writeTargets[page] != null) {
+				if(copyOnWrite[page])
+					copyPage(page);
+				in.get(writeTargets[page]);
+				if(codePages != null)
+					codeWritten(page<<8);
+			}
+			else if(ioHandlers[page] instanceof BufferPages) {
+				BufferPages bufferPages = (BufferPages)ioHandlers[page];
+				ByteBuffer out = bufferPages.buffer.duplicate();
+				out.position(bufferPages.base+(page<<8));
+				in.limit(in.position()+256);
+				out.put(in);
+				in.limit(in.capacity());
+			}
+			else
+				in.position(in.position()+256);
+		}
+	}
+
+	public int getPC() {
+		return regs.PC;
+	}
+
+	public int getA() {
+		return regs.A;
+	}
+
+	public int getX() {
+		return regs.X;
+	}
+
+	public int getY() {
+		return regs.Y;
+	}
+
+	public int getSP() {
+		return regs.SP;
+	}
+
+	public int getFlags() {
+		return regs.getFlags();
+	}
+
+	/**
+	 * Ask a running cpu to return from run(), it stops at the end of the
+	 * current quantum
+	 */
+	public void stop() {
+		stopRequested = true;
+	}
+
+	private RunStatus finishRun(long cycles, StopReason reason) {
+		if(reason == StopReason.UNKNOWN_OPCODE)
+			unknownOpcodes++;
+		if(reason == StopReason.STOPPED)
+			stopRequested = false;
+		else if(haltReason != null)
+			haltReason = null;
+		return new RunStatus(cycles, reason);
+	}
+
+	/**
+	 * Run at clockSpeed until stopped or halted. The cpu runs freely for 
+	 * throttleQuantum cycles then sleeps until the deadline of that quantum. 
+	 * The fractional part of each quantum duration is carried over to the 
+	 * next one so the emulated clock doesn't drift.
+	 * @return the reason why the cpu stopped
+	 */
+	public RunStatus run() {
+		long executed = 0;
+		long deadline = System.nanoTime();
+		double lag = 0;
+		while(!stopRequested) {
+			//sample the interrupt lines every scanline
+			int cycles = 0;
+			while(cycles < throttleQuantum && haltReason == null)
+				cycles += emulate(Math.min(throttleQuantum-cycles, SCANLINE_CYCLES));
+			executed += cycles;
+			if(haltReason != null)
+				return finishRun(executed, haltReason);
+			double quantumTime = cycles*clockSpeed+lag;
+			long wholeTime = (long)quantumTime;
+			lag = quantumTime-wholeTime;
+			deadline += wholeTime;
+			long now = System.nanoTime();
+			long remaining = deadline-now;
+			drift = -remaining;
+			if(remaining < -MAX_LAG_NS) {
+				//Too late to catch up (debugger, gc...), restart from now
+				deadline = System.nanoTime();
+				lagResets++;
+				JfrEvents.lagReset(getMBeanName(), metrics);
+				continue;
+			}
+			if(remaining > 0) {
+				while(remaining > 0) {
+					LockSupport.parkNanos(remaining);
+					remaining = deadline-System.nanoTime();
+				}
+				throttleSleep += deadline-remaining-now;
+			}
+		}
+		return finishRun(executed, StopReason.STOPPED);
+	}
+
+	/**
+	 * Run as fast as possible, without any throttling
+	 * @param maxCycles cycle budget, the last instruction may overshoot it
+	 * @return cycles executed and the reason why the cpu stopped
+	 */
+	public RunStatus run(long maxCycles) {
+		return runUnthrottled(maxCycles, 0, false);
+	}
+
+	/**
+	 * Run as fast as possible during the given wall-clock time
+	 * @param timeout maximum time to run
+	 * @param unit unit of timeout
+	 * @return cycles executed and the reason why the cpu stopped
+	 */
+	public RunStatus runFor(long timeout, TimeUnit unit) {
+		return runUnthrottled(Long.MAX_VALUE, System.nanoTime()+unit.toNanos(timeout), true);
+	}
+
+	private RunStatus runUnthrottled(long maxCycles, long deadline, boolean timed) {
+		long executed = 0;
+		while(executed < maxCycles) {
+			if(stopRequested)
+				return finishRun(executed, StopReason.STOPPED);
+			if(timed && System.nanoTime()-deadline >= 0)
+				return finishRun(executed, StopReason.TIME_LIMIT);
+			int slice = (int)Math.min(maxCycles-executed, SCANLINE_CYCLES);
+			executed += emulate(slice);
+			if(haltReason != null)
+				return finishRun(executed, haltReason);
+		}
+		return finishRun(executed, StopReason.CYCLE_LIMIT);
+	}
 }
@@ -0,0 +1,338 @@
+/*
+ * Generated by tools/GenOpcodes.java from the @InstructionClass classes
+ * of Cpu6502, do not edit: run it again after adding or changing one.
+ */
+final class Cpu6502Opcodes {
+
+	private Cpu6502Opcodes() {
+	}
+
+	/**
+	 * Opcodes of the NMOS instruction set, by increasing value
+	 */
+	static final int[] OPCODES = {
+		0x00, 0x01, 0x05, 0x06, 0x08, 0x09, 0x0A, 0x0D, 0x0E, 0x10, 0x11, 0x15,
+		0x16, 0x18, 0x19, 0x1D, 0x1E, 0x20, 0x21, 0x24, 0x25, 0x26, 0x28, 0x29,
+		0x2A, 0x2C, 0x2D, 0x2E, 0x30, 0x31, 0x35, 0x36, 0x38, 0x39, 0x3D, 0x3E,
+		0x40, 0x41, 0x45, 0x46, 0x48, 0x49, 0x4A, 0x4C, 0x4D, 0x4E, 0x50, 0x51,
+		0x55, 0x56, 0x58, 0x59, 0x5D, 0x5E, 0x60, 0x61, 0x65, 0x66, 0x68, 0x69,
+		0x6A, 0x6C, 0x6D, 0x6E, 0x70, 0x71, 0x75, 0x76, 0x78, 0x79, 0x7D, 0x7E,
+		0x81, 0x84, 0x85, 0x86, 0x88, 0x8A, 0x8C, 0x8D, 0x8E, 0x90, 0x91, 0x94,
+		0x95, 0x96, 0x98, 0x99, 0x9A, 0x9D, 0xA0, 0xA1, 0xA2, 0xA4, 0xA5, 0xA6,
+		0xA9, 0xAA, 0xAC, 0xAD, 0xAE, 0xB0, 0xB1, 0xB4, 0xB5, 0xB6, 0xB8, 0xB9,
+		0xBA, 0xBC, 0xBD, 0xBE, 0xC0, 0xC1, 0xC4, 0xC5, 0xC6, 0xC8, 0xC9, 0xCA,
+		0xCC, 0xCD, 0xCE, 0xD0, 0xD1, 0xD5, 0xD6, 0xD8, 0xD9, 0xDD, 0xDE, 0xE0,
+		0xE1, 0xE4, 0xE5, 0xE6, 0xE8, 0xE9, 0xEA, 0xEC, 0xED, 0xEE, 0xF0, 0xF1,
+		0xF5, 0xF6, 0xF8, 0xF9, 0xFD, 0xFE
+	};
+
+	/**
+	 * @return instruction of the cpu for opcode, null for an unknown opcode
+	 */
+	static Cpu6502.Instruction create(Cpu6502 cpu, int opcode) {
+		switch(opcode) {
+		case 0x00:
+			return cpu.new InstrBRK();
+		case 0x01:
+			return cpu.new InstrORAIndX();
+		case 0x05:
+			return cpu.new InstrORAZp();
+		case 0x06:
+			return cpu.new InstrASLZp();
+		case 0x08:
+			return cpu.new InstrPHP();
+		case 0x09:
+			return cpu.new InstrORAImm();
+		case 0x0A:
+			return cpu.new InstrASLAcc();
+		case 0x0D:
+			return cpu.new InstrORAAbs();
+		case 0x0E:
+			return cpu.new InstrASLAbs();
+		case 0x10:
+			return cpu.new InstrBPL();
+		case 0x11:
+			return cpu.new InstrORAIndY();
+		case 0x15:
+			return cpu.new InstrORAZpX();
+		case 0x16:
+			return cpu.new InstrASLZpX();
+		case 0x18:
+			return cpu.new InstrCLC();
+		case 0x19:
+			return cpu.new InstrORAAbsY();
+		case 0x1D:
+			return cpu.new InstrORAAbsX();
+		case 0x1E:
+			return cpu.new InstrASLAbsX();
+		case 0x20:
+			return cpu.new InstrJSR();
+		case 0x21:
+			return cpu.new InstrANDIndX();
+		case 0x24:
+			return cpu.new InstrBITZp();
+		case 0x25:
+			return cpu.new InstrANDZp();
+		case 0x26:
+			return cpu.new InstrROLZp();
+		case 0x28:
+			return cpu.new InstrPLP();
+		case 0x29:
+			return cpu.new InstrANDImm();
+		case 0x2A:
+			return cpu.new InstrROLAcc();
+		case 0x2C:
+			return cpu.new InstrBITAbs();
+		case 0x2D:
+			return cpu.new InstrANDAbs();
+		case 0x2E:
+			return cpu.new InstrROLAbs();
+		case 0x30:
+			return cpu.new InstrBMI();
+		case 0x31:
+			return cpu.new InstrANDIndY();
+		case 0x35:
+			return cpu.new InstrANDZpX();
+		case 0x36:
+			return cpu.new InstrROLZpX();
+		case 0x38:
+			return cpu.new InstrSEC();
+		case 0x39:
+			return cpu.new InstrANDAbsY();
+		case 0x3D:
+			return cpu.new InstrANDAbsX();
+		case 0x3E:
+			return cpu.new InstrROLAbsX();
+		case 0x40:
+			return cpu.new InstrRTI();
+		case 0x41:
+			return cpu.new InstrEORIndX();
+		case 0x45:
+			return cpu.new InstrEORZp();
+		case 0x46:
+			return cpu.new InstrLSRZp();
+		case 0x48:
+			return cpu.new InstrPHA();
+		case 0x49:
+			return cpu.new InstrEORImm();
+		case 0x4A:
+			return cpu.new InstrLSRAcc();
+		case 0x4C:
+			return cpu.new InstrJMPAbs();
+		case 0x4D:
+			return cpu.new InstrEORAbs();
+		case 0x4E:
+			return cpu.new InstrLSRAbs();
+		case 0x50:
+			return cpu.new InstrBVC();
+		case 0x51:
+			return cpu.new InstrEORIndY();
+		case 0x55:
+			return cpu.new InstrEORZpX();
+		case 0x56:
+			return cpu.new InstrLSRZpX();
+		case 0x58:
+			return cpu.new InstrCLI();
+		case 0x59:
+			return cpu.new InstrEORAbsY();
+		case 0x5D:
+			return cpu.new InstrEORAbsX();
+		case 0x5E:
+			return cpu.new InstrLSRAbsX();
+		case 0x60:
+			return cpu.new InstrRTS();
+		case 0x61:
+			return cpu.new InstrADCIndX();
+		case 0x65:
+			return cpu.new InstrADCZp();
+		case 0x66:
+			return cpu.new InstrRORZp();
+		case 0x68:
+			return cpu.new InstrPLA();
+		case 0x69:
+			return cpu.new InstrADCImm();
+		case 0x6A:
+			return cpu.new InstrRORAcc();
+		case 0x6C:
+			return cpu.new InstrJMPInd();
+		case 0x6D:
+			return cpu.new InstrADCAbs();
+		case 0x6E:
+			return cpu.new InstrRORAbs();
+		case 0x70:
+			return cpu.new InstrBVS();
+		case 0x71:
+			return cpu.new InstrADCIndY();
+		case 0x75:
+			return cpu.new InstrADCZpX();
+		case 0x76:
+			return cpu.new InstrRORZpX();
+		case 0x78:
+			return cpu.new InstrSEI();
+		case 0x79:
+			return cpu.new InstrADCAbsY();
+		case 0x7D:
+			return cpu.new InstrADCAbsX();
+		case 0x7E:
+			return cpu.new InstrRORAbsX();
+		case 0x81:
+			return cpu.new InstrSTAIndX();
+		case 0x84:
+			return cpu.new InstrSTYZp();
+		case 0x85:
+			return cpu.new InstrSTAZp();
+		case 0x86:
+			return cpu.new InstrSTXZp();
+		case 0x88:
+			return cpu.new InstrDEY();
+		case 0x8A:
+			return cpu.new InstrTXA();
+		case 0x8C:
+			return cpu.new InstrSTYAbs();
+		case 0x8D:
+			return cpu.new InstrSTAAbs();
+		case 0x8E:
+			return cpu.new InstrSTXAbs();
+		case 0x90:
+			return cpu.new InstrBCC();
+		case 0x91:
+			return cpu.new InstrSTAIndY();
+		case 0x94:
+			return cpu.new InstrSTYZpX();
+		case 0x95:
+			return cpu.new InstrSTAZpX();
+		case 0x96:
+			return cpu.new InstrSTXZpY();
+		case 0x98:
+			return cpu.new InstrTYA();
+		case 0x99:
+			return cpu.new InstrSTAAbsY();
+		case 0x9A:
+			return cpu.new InstrTXS();
+		case 0x9D:
+			return cpu.new InstrSTAAbsX();
+		case 0xA0:
+			return cpu.new InstrLDYImm();
+		case 0xA1:
+			return cpu.new InstrLDAIndX();
+		case 0xA2:
+			return cpu.new InstrLDXImm();
+		case 0xA4:
+			return cpu.new InstrLDYZp();
+		case 0xA5:
+			return cpu.new InstrLDAZp();
+		case 0xA6:
+			return cpu.new InstrLDXZp();
+		case 0xA9:
+			return cpu.new InstrLDAImm();
+		case 0xAA:
+			return cpu.new InstrTAX();
+		case 0xAC:
+			return cpu.new InstrLDYAbs();
+		case 0xAD:
+			return cpu.new InstrLDAAbs();
+		case 0xAE:
+			return cpu.new InstrLDXAbs();
+		case 0xB0:
+			return cpu.new InstrBCS();
+		case 0xB1:
+			return cpu.new InstrLDAIndY();
+		case 0xB4:
+			return cpu.new InstrLDYZpX();
+		case 0xB5:
+			return cpu.new InstrLDAZpX();
+		case 0xB6:
+			return cpu.new InstrLDXZpY();
+		case 0xB8:
+			return cpu.new InstrCLV();
+		case 0xB9:
+			return cpu.new InstrLDAAbsY();
+		case 0xBA:
+			return cpu.new InstrTSX();
+		case 0xBC:
+			return cpu.new InstrLDYAbsX();
+		case 0xBD:
+			return cpu.new InstrLDAAbsX();
+		case 0xBE:
+			return cpu.new InstrLDXAbsY();
+		case 0xC0:
+			return cpu.new InstrCPYImm();
+		case 0xC1:
+			return cpu.new InstrCMPIndX();
+		case 0xC4:
+			return cpu.new InstrCPYZp();
+		case 0xC5:
+			return cpu.new InstrCMPZp();
+		case 0xC6:
+			return cpu.new InstrDECZp();
+		case 0xC8:
+			return cpu.new InstrINY();
+		case 0xC9:
+			return cpu.new InstrCMPImm();
+		case 0xCA:
+			return cpu.new InstrDEX();
+		case 0xCC:
+			return cpu.new InstrCPYAbs();
+		case 0xCD:
+			return cpu.new InstrCMPAbs();
+		case 0xCE:
+			return cpu.new InstrDECAbs();
+		case 0xD0:
+			return cpu.new InstrBNE();
+		case 0xD1:
+			return cpu.new InstrCMPIndY();
+		case 0xD5:
+			return cpu.new InstrCMPZpX();
+		case 0xD6:
+			return cpu.new InstrDECZpX();
+		case 0xD8:
+			return cpu.new InstrCLD();
+		case 0xD9:
+			return cpu.new InstrCMPAbsY();
+		case 0xDD:
+			return cpu.new InstrCMPAbsX();
+		case 0xDE:
+			return cpu.new InstrDECAbsX();
+		case 0xE0:
+			return cpu.new InstrCPXImm();
+		case 0xE1:
+			return cpu.new InstrSBCIndX();
+		case 0xE4:
+			return cpu.new InstrCPXZp();
+		case 0xE5:
+			return cpu.new InstrSBCZp();
+		case 0xE6:
+			return cpu.new InstrINCZp();
+		case 0xE8:
+			return cpu.new InstrINX();
+		case 0xE9:
+			return cpu.new InstrSBCImm();
+		case 0xEA:
+			return cpu.new InstrNOP();
+		case 0xEC:
+			return cpu.new InstrCPXAbs();
+		case 0xED:
+			return cpu.new InstrSBCAbs();
+		case 0xEE:
+			return cpu.new InstrINCAbs();
+		case 0xF0:
+			return cpu.new InstrBEQ();
+		case 0xF1:
+			return cpu.new InstrSBCIndY();
+		case 0xF5:
+			return cpu.new InstrSBCZpX();
+		case 0xF6:
+			return cpu.new InstrINCZpX();
+		case 0xF8:
+			return cpu.new InstrSED();
+		case 0xF9:
+			return cpu.new InstrSBCAbsY();
+		case 0xFD:
+			return cpu.new InstrSBCAbsX();
+		case 0xFE:
+			return cpu.new InstrINCAbsX();
+		default:
+			return null;
+		}
+	}
+}
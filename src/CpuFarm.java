@@ -0,0 +1,228 @@
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many independent cpus on a pool of threads, one per processor by
+ * default. Idle threads take the next job from a shared queue, so long and
+ * short jobs balance themselves, and results come back in completion order.
+ */
+public final class CpuFarm {
+
+	/**
+	 * Test run between slices to end a job before its cycle budget is spent
+	 */
+	public interface ExitCondition {
+		boolean isDone(Cpu6502 cpu);
+	}
+
+	/**
+	 * A program or initial state to run. The cpu is only built by the thread
+	 * running the job, so pending jobs don't hold any emulated memory.
+	 */
+	public static abstract class Job {
+		private final long maxCycles;
+		private final ExitCondition exitCondition;
+
+		/**
+		 * @param maxCycles cycle budget
+		 * @param exitCondition checked every slice, null to always run the
+		 * whole budget
+		 */
+		protected Job(long maxCycles, ExitCondition exitCondition) {
+			this.maxCycles = maxCycles;
+			this.exitCondition = exitCondition;
+		}
+
+		/**
+		 * @return a cpu with its program loaded, ready to run
+		 */
+		protected abstract Cpu6502 createCpu() throws Exception;
+	}
+
+	public static final class Result {
+		private final Job job;
+		private final Cpu6502 cpu;
+		private final Cpu6502.RunStatus status;
+		private final boolean exitConditionMet;
+		private final Throwable error;
+
+		Result(Job job, Cpu6502 cpu, Cpu6502.RunStatus status, boolean exitConditionMet, Throwable error) {
+			this.job = job;
+			this.cpu = cpu;
+			this.status = status;
+			this.exitConditionMet = exitConditionMet;
+			this.error = error;
+		}
+
+		public Job getJob() {
+			return job;
+		}
+
+		/**
+		 * @return the cpu in its final state, null if it couldn't be built
+		 * or the farm was shut down before the job started
+		 */
+		public Cpu6502 getCpu() {
+			return cpu;
+		}
+
+		/**
+		 * @return total cycles run and why the job ended, STOPPED when its
+		 * exit condition was met or the farm was shut down. Null on error.
+		 */
+		public Cpu6502.RunStatus getStatus() {
+			return status;
+		}
+
+		public boolean isExitConditionMet() {
+			return exitConditionMet;
+		}
+
+		/**
+		 * @return exception thrown while building or running the cpu, null
+		 * if the job completed
+		 */
+		public Throwable getError() {
+			return error;
+		}
+
+		public String toString() {
+			return error != null ? "failed: " + error : status.toString();
+		}
+	}
+
+	/**
+	 * Results of a batch of jobs, in completion order. next() blocks until
+	 * another job completes.
+	 */
+	public final class Results implements Iterator<Result> {
+		private final CompletionService<Result> completion;
+		private int remaining;
+
+		Results(CompletionService<Result> completion, int count) {
+			this.completion = completion;
+			this.remaining = count;
+		}
+
+		public boolean hasNext() {
+			return remaining > 0;
+		}
+
+		public Result next() {
+			if(remaining == 0)
+				throw new NoSuchElementException();
+			try {
+				Result result = completion.take().get();
+				remaining--;
+				return result;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for a result", e);
+			} catch (ExecutionException e) {
+				//runJob() catches everything
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private final ExecutorService executor;
+	private volatile boolean stopped;
+	private int sliceCycles = Cpu6502.FRAME_CYCLES;
+
+	public CpuFarm() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public CpuFarm(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "cpu-farm-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @param cycles number of cycles run between two checks of the exit
+	 * condition, FRAME_CYCLES by default
+	 */
+	public void setSliceCycles(int cycles) {
+		if(cycles <= 0)
+			throw new IllegalArgumentException("Slice must be positive: " + cycles);
+		sliceCycles = cycles;
+	}
+
+	/**
+	 * Queue jobs to run
+	 * @return their results, as they complete
+	 */
+	public Results submit(Collection<? extends Job> jobs) {
+		CompletionService<Result> completion = new ExecutorCompletionService<Result>(executor);
+		final int slice = sliceCycles;
+		for(final Job job : jobs) {
+			completion.submit(new Callable<Result>() {
+				public Result call() {
+					return runJob(job, slice);
+				}
+			});
+		}
+		return new Results(completion, jobs.size());
+	}
+
+	private Result runJob(Job job, int slice) {
+		Cpu6502 cpu = null;
+		try {
+			if(stopped)
+				return new Result(job, null, new Cpu6502.RunStatus(0, Cpu6502.StopReason.STOPPED), false, null);
+			cpu = job.createCpu();
+			long executed = 0;
+			while(executed < job.maxCycles) {
+				if(stopped)
+					return new Result(job, cpu, new Cpu6502.RunStatus(executed, Cpu6502.StopReason.STOPPED), false, null);
+				Cpu6502.RunStatus status = cpu.run(Math.min(slice, job.maxCycles-executed));
+				executed += status.getCycles();
+				if(status.getReason() != Cpu6502.StopReason.CYCLE_LIMIT)
+					return new Result(job, cpu, new Cpu6502.RunStatus(executed, status.getReason()), false, null);
+				if(job.exitCondition != null && job.exitCondition.isDone(cpu))
+					return new Result(job, cpu, new Cpu6502.RunStatus(executed, Cpu6502.StopReason.STOPPED), true, null);
+			}
+			return new Result(job, cpu, new Cpu6502.RunStatus(executed, Cpu6502.StopReason.CYCLE_LIMIT), false, null);
+		} catch (Throwable e) {
+			return new Result(job, cpu, null, false, e);
+		}
+	}
+
+	/**
+	 * Stop the farm: running jobs end with STOPPED at the end of their 
+	 * current slice, pending ones with STOPPED without building their cpu.
+	 * The threads exit once every result is delivered.
+	 */
+	public void shutdown() {
+		stopped = true;
+		executor.shutdown();
+	}
+
+	/**
+	 * Wait for the threads to exit after shutdown()
+	 * @return false if some are still running after the timeout
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+}
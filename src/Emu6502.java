@@ -1,31 +1,162 @@
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Vector;
+import javax.management.JMException;
 
 public class Emu6502 {
 
-	private static void loadO65InMemory(String objName, Cpu6502 cpu) {		
+	private static final int LOAD_ADDRESS = 0x1000;
+	//-Demu6502.trace=N keeps the last N instructions, logged on unknown opcodes
+	private static final int TRACE_SIZE = Integer.getInteger("emu6502.trace", 0);
+	//-Demu6502.profile writes a hotspot report and collapsed stacks when a program halts
+	private static final boolean PROFILE = System.getProperty("emu6502.profile") != null;
+	//-Demu6502.jmx shows the metrics of the cpu in jconsole while a program runs
+	private static final boolean JMX = System.getProperty("emu6502.jmx") != null;
+	private static final int HOTSPOT_LINES = 40;
+
+	/**
+	 * @return a cpu with the o65 module relocated at LOAD_ADDRESS, starting
+	 * at its entry point, or with the iNES cartridge inserted. Other files 
+	 * are loaded as they are and started at LOAD_ADDRESS.
+	 */
+	static Cpu6502 loadProgram(String objName) throws IOException {
+		return loadProgram(objName, Cpu6502.Core.INSTRUCTION);
+	}
+
+	static Cpu6502 loadProgram(String objName, Cpu6502.Core core) throws IOException {
+		ByteBuffer file = Cpu6502.readImage(new File(objName), Integer.MAX_VALUE);
+		if(Cartridge.isINes(file)) {
+			Cpu6502 cpu = new Cpu6502(0, core, Cpu6502.MemoryBackend.BYTE_ARRAY, Cpu6502.Variant.RICOH_2A03);
+			Cartridge.read(file).insert(cpu);
+			return cpu;
+		}
+		if(!O65.isO65(file)) {
+			Cpu6502 cpu = new Cpu6502(LOAD_ADDRESS, core);
+			cpu.load(LOAD_ADDRESS, file);
+			return cpu;
+		}
+		O65.Image image = O65.load(file, LOAD_ADDRESS, O65.ZERO_AS_LINKED, Collections.<String, Integer>emptyMap());
+		Cpu6502 cpu = new Cpu6502(image.getEntry(), core);
+		image.loadInto(cpu);
+		return cpu;
+	}
+
+	private static final class FileJob extends CpuFarm.Job {
+		private final String objName;
+
+		FileJob(String objName) {
+			super(Long.MAX_VALUE, null);
+			this.objName = objName;
+		}
+
+		protected Cpu6502 createCpu() throws IOException {
+			return observed(loadProgram(objName));
+		}
+	}
+
+	private static Cpu6502 observed(Cpu6502 cpu) {
+		if(TRACE_SIZE > 0)
+			cpu.setTrace(new Trace(TRACE_SIZE));
+		if(PROFILE)
+			cpu.setProfiler(new Profiler());
+		return cpu;
+	}
+
+	/**
+	 * Report an unknown opcode, and write next to the program the trace of
+	 * a cpu stopped by one, in objName.trace.log, and its profile, in objName.hotspots.txt
+	 * and objName.collapsed
+	 */
+	private static void writeLogs(String objName, Cpu6502 cpu, Cpu6502.RunStatus status) {
+		if(cpu == null || status == null)
+			return;
+		if(status.getReason() == Cpu6502.StopReason.UNKNOWN_OPCODE) {
+			//PC is past the opcode
+			int pc = (cpu.getPC()-1)&0xFFFF;
+			System.err.printf("%s: unknown opcode $%02X at $%04X\n", objName, cpu.peek(pc), pc);
+		}
 		try {
-			FileInputStream in = new FileInputStream(objName);
-			int c;
-			int addr = 0x1000;
-			while ((c = in.read()) != -1) {
-				cpu.writeByte(addr++, c);
+			if(cpu.getTrace() != null && status.getReason() == Cpu6502.StopReason.UNKNOWN_OPCODE) {
+				FileWriter out = new FileWriter(objName + ".trace.log");
+				try {
+					cpu.getTrace().writeText(out, cpu);
+				} finally {
+					out.close();
+				}
+			}
+			if(cpu.getProfiler() != null) {
+				FileWriter out = new FileWriter(objName + ".hotspots.txt");
+				try {
+					cpu.getProfiler().writeHotspots(out, cpu, HOTSPOT_LINES);
+				} finally {
+					out.close();
+				}
+				out = new FileWriter(objName + ".collapsed");
+				try {
+					cpu.getProfiler().writeCollapsedStacks(out);
+				} finally {
+					out.close();
+				}
 			}
-			in.close();
 		} catch (IOException e) {
 			e.printStackTrace();
-		}		
+		}
+	}
+
+	/**
+	 * Run every file unthrottled on all processors, until each one halts
+	 */
+	private static void runFarm(String[] objNames) {
+		List<FileJob> jobs = new ArrayList<FileJob>();
+		for(String objName : objNames)
+			jobs.add(new FileJob(objName));
+		CpuFarm farm = new CpuFarm();
+		for(CpuFarm.Results results = farm.submit(jobs); results.hasNext();) {
+			CpuFarm.Result result = results.next();
+			String objName = ((FileJob)result.getJob()).objName;
+			System.out.println(objName + ": " + result);
+			writeLogs(objName, result.getCpu(), result.getStatus());
+		}
+		farm.shutdown();
 	}
 	
 	public static void main(String[] args) {
-		if(args.length != 1)
+		if(args.length == 0)
 			System.exit(0);
+		if(args.length > 1) {
+			runFarm(args);
+			return;
+		}
 		
-		Cpu6502 cpu = new Cpu6502(0x1000);
-		loadO65InMemory(args[0], cpu);
-		cpu.run();		
+		Cpu6502 cpu;
+		try {
+			cpu = observed(loadProgram(args[0]));
+			if(JMX)
+				cpu.registerMBean(new File(args[0]).getName());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		} catch (JMException e) {
+			e.printStackTrace();
+			return;
+		}
+		try {
+			writeLogs(args[0], cpu, cpu.run());
+		} finally {
+			if(JMX) {
+				try {
+					cpu.unregisterMBean();
+				} catch (JMException e) {
+					e.printStackTrace();
+				}
+			}
+		}
 	}
 
 }
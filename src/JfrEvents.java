@@ -0,0 +1,107 @@
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Metrics of the cpus as JFR events, recorded with
+ * -XX:StartFlightRecording on JVMs with Flight Recorder (Java 11 and
+ * later): emu6502.CpuRates each time a cpu samples its rates, about every
+ * million cycles, and emu6502.ThrottleLagReset each time run() gives up
+ * catching up. The tree compiles for releases without jdk.jfr, so the
+ * events are defined at runtime with jdk.jfr.EventFactory, by reflection.
+ * Without it nothing is recorded.
+ */
+final class JfrEvents {
+
+	private static final Method NEW_EVENT;
+	private static final Method SET;
+	private static final Method SHOULD_COMMIT;
+	private static final Method COMMIT;
+	//event factories, null without Flight Recorder
+	private static final Object RATES;
+	private static final Object LAG_RESET;
+
+	static {
+		Method newEvent = null, set = null, shouldCommit = null, commit = null;
+		Object rates = null, lagReset = null;
+		try {
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			newEvent = Class.forName("jdk.jfr.EventFactory").getMethod("newEvent");
+			set = event.getMethod("set", int.class, Object.class);
+			shouldCommit = event.getMethod("shouldCommit");
+			commit = event.getMethod("commit");
+			rates = create("emu6502.CpuRates", "Cpu Rates",
+					new String[] { "cpu", "ticks", "instructions", "unknownOpcodes", "instructionsPerSecond",
+						"effectiveMHz", "targetMHz", "throttleSleepNanos", "throttleDriftNanos" },
+					new Class<?>[] { String.class, long.class, long.class, long.class, double.class,
+						double.class, double.class, long.class, long.class });
+			lagReset = create("emu6502.ThrottleLagReset", "Throttle Lag Reset",
+					new String[] { "cpu", "throttleDriftNanos", "throttleLagResets" },
+					new Class<?>[] { String.class, long.class, long.class });
+		} catch (Exception e) {
+			rates = null;
+			lagReset = null;
+		}
+		NEW_EVENT = newEvent;
+		SET = set;
+		SHOULD_COMMIT = shouldCommit;
+		COMMIT = commit;
+		RATES = rates;
+		LAG_RESET = lagReset;
+	}
+
+	private JfrEvents() {
+	}
+
+	/**
+	 * @return factory of the events of the given name and fields
+	 */
+	private static Object create(String name, String label, String[] fields, Class<?>[] types) throws Exception {
+		Constructor<?> annotation = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+		List<Object> annotations = new ArrayList<Object>();
+		annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), name));
+		annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), label));
+		annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "Emu6502" }));
+		annotations.add(annotation.newInstance(Class.forName("jdk.jfr.StackTrace"), false));
+		Constructor<?> field = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+		List<Object> values = new ArrayList<Object>();
+		for(int i = 0; i < fields.length; i++)
+			values.add(field.newInstance(types[i], fields[i]));
+		return Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class)
+				.invoke(null, annotations, values);
+	}
+
+	/**
+	 * Commit an event with the values of its fields, if a recording wants it
+	 */
+	private static void commit(Object factory, Object... values) {
+		try {
+			Object event = NEW_EVENT.invoke(factory);
+			if(!(Boolean)SHOULD_COMMIT.invoke(event))
+				return;
+			for(int i = 0; i < values.length; i++)
+				SET.invoke(event, i, values[i]);
+			COMMIT.invoke(event);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param cpu name of the MBean of the cpu, null if not registered
+	 */
+	static void rates(String cpu, Cpu6502.MetricsMXBean metrics) {
+		if(RATES == null)
+			return;
+		commit(RATES, cpu, metrics.getTicks(), metrics.getInstructions(), metrics.getUnknownOpcodes(),
+				metrics.getInstructionsPerSecond(), metrics.getEffectiveMHz(), metrics.getTargetMHz(),
+				metrics.getThrottleSleepNanos(), metrics.getThrottleDriftNanos());
+	}
+
+	static void lagReset(String cpu, Cpu6502.MetricsMXBean metrics) {
+		if(LAG_RESET == null)
+			return;
+		commit(LAG_RESET, cpu, metrics.getThrottleDriftNanos(), metrics.getThrottleLagResets());
+	}
+}
@@ -0,0 +1,385 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loader of o65 relocatable objects (see the o65 file format by Andre
+ * Fachat). Text and data are loaded next to each other at any address,
+ * followed by bss, the zero page segment being placed separately, and
+ * references to undefined symbols are resolved from the exports of
+ * modules loaded before. Relocated images are cached by file hash and
+ * load addresses, so loading a module again only costs its hash.
+ */
+public final class O65 {
+
+	private static final byte[] MARKER = { 0x01, 0x00, 'o', '6', '5' };
+
+	private static final int MODE_65816 = 0x8000;
+	private static final int MODE_PAGED = 0x4000;
+	private static final int MODE_LONG = 0x2000;
+	private static final int MODE_CHAIN = 0x0400;
+	private static final int MODE_BSSZERO = 0x0200;
+
+	private static final int SEG_UNDEFINED = 0;
+	private static final int SEG_TEXT = 2;
+	private static final int SEG_DATA = 3;
+	private static final int SEG_BSS = 4;
+	private static final int SEG_ZERO = 5;
+
+	private static final int RELOC_WORD = 0x80;
+	private static final int RELOC_HIGH = 0x40;
+	private static final int RELOC_LOW = 0x20;
+	private static final int RELOC_SEGADR = 0xC0;
+	private static final int RELOC_SEG = 0xA0;
+
+	public static final int OPTION_FILENAME = 0;
+	public static final int OPTION_OS = 1;
+	public static final int OPTION_ASSEMBLER = 2;
+	public static final int OPTION_AUTHOR = 3;
+	public static final int OPTION_DATE = 4;
+
+	/**
+	 * Zero page address keeping the zero page segment where it was linked
+	 */
+	public static final int ZERO_AS_LINKED = -1;
+
+	/**
+	 * Exported symbol used as entry point, execution starts at the text
+	 * segment without it
+	 */
+	public static final String ENTRY_SYMBOL = "main";
+
+	private static final int CACHE_SIZE = 1024;
+
+	/**
+	 * A relocated module, ready to be loaded in any number of cpus
+	 */
+	public static final class Image {
+		private final byte[] textAndData;
+		private final int address;
+		private final int bssAddress;
+		private final int bssLength;
+		private final int zeroAddress;
+		private final int zeroLength;
+		private final boolean bssZero;
+		private final int entry;
+		private final Map<String, Integer> exports;
+		private final Map<Integer, byte[]> options;
+
+		Image(byte[] textAndData, int address, int bssAddress, int bssLength, int zeroAddress, int zeroLength,
+				boolean bssZero, int entry, Map<String, Integer> exports, Map<Integer, byte[]> options) {
+			this.textAndData = textAndData;
+			this.address = address;
+			this.bssAddress = bssAddress;
+			this.bssLength = bssLength;
+			this.zeroAddress = zeroAddress;
+			this.zeroLength = zeroLength;
+			this.bssZero = bssZero;
+			this.entry = entry;
+			this.exports = Collections.unmodifiableMap(exports);
+			this.options = options;
+		}
+
+		/**
+		 * @return address of the text segment, followed by data and bss
+		 */
+		public int getAddress() {
+			return address;
+		}
+
+		/**
+		 * @return first address after the module, where the next one can go
+		 */
+		public int getEnd() {
+			return bssAddress+bssLength;
+		}
+
+		public int getZeroAddress() {
+			return zeroAddress;
+		}
+
+		public int getZeroLength() {
+			return zeroLength;
+		}
+
+		/**
+		 * @return address of the exported main symbol, or of the text segment
+		 */
+		public int getEntry() {
+			return entry;
+		}
+
+		/**
+		 * @return relocated addresses of the exported symbols
+		 */
+		public Map<String, Integer> getExports() {
+			return exports;
+		}
+
+		/**
+		 * @param type OPTION_FILENAME, OPTION_ASSEMBLER...
+		 * @return value of the header option, null if missing
+		 */
+		public byte[] getOption(int type) {
+			byte[] option = options.get(type);
+			return option != null ? option.clone() : null;
+		}
+
+		/**
+		 * Copy text and data to memory, clearing bss if the module asks for it
+		 */
+		public void loadInto(Cpu6502 cpu) {
+			cpu.load(address, ByteBuffer.wrap(textAndData).asReadOnlyBuffer());
+			if(bssZero && bssLength > 0)
+				cpu.load(bssAddress, ByteBuffer.allocate(bssLength));
+		}
+	}
+
+	private static final class Key {
+		private final byte[] digest;
+		private final int address;
+		private final int zeroAddress;
+		private final Map<String, Integer> imports;
+
+		Key(byte[] digest, int address, int zeroAddress, Map<String, Integer> imports) {
+			this.digest = digest;
+			this.address = address;
+			this.zeroAddress = zeroAddress;
+			this.imports = imports;
+		}
+
+		public boolean equals(Object o) {
+			if(!(o instanceof Key))
+				return false;
+			Key key = (Key)o;
+			return address == key.address && zeroAddress == key.zeroAddress
+					&& Arrays.equals(digest, key.digest) && imports.equals(key.imports);
+		}
+
+		public int hashCode() {
+			return Arrays.hashCode(digest)*31+address*17+zeroAddress+imports.hashCode();
+		}
+	}
+
+	//least recently used images
+	private static final Map<Key, Image> cache = Collections.synchronizedMap(
+			new LinkedHashMap<Key, Image>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(Map.Entry<Key, Image> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			});
+
+	private O65() {
+	}
+
+	/**
+	 * @return true if the file starts with the o65 marker
+	 */
+	public static boolean isO65(ByteBuffer file) {
+		if(file.remaining() < MARKER.length)
+			return false;
+		for(int i = 0; i < MARKER.length; i++)
+			if(file.get(file.position()+i) != MARKER[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Read and relocate a module without undefined references
+	 * @see #load(ByteBuffer, int, int, Map)
+	 */
+	public static Image load(File file, int address) throws IOException {
+		return load(Cpu6502.readImage(file, Integer.MAX_VALUE), address, ZERO_AS_LINKED,
+				Collections.<String, Integer>emptyMap());
+	}
+
+	/**
+	 * Relocate a module, or get it from the cache when it was already
+	 * relocated at the same addresses with the same imports
+	 * @param address where text goes, followed by data and bss
+	 * @param zeroAddress where the zero page segment goes, or ZERO_AS_LINKED
+	 * @param imports addresses of the undefined symbols, the exports of
+	 * the modules loaded before
+	 */
+	public static Image load(ByteBuffer file, int address, int zeroAddress, Map<String, Integer> imports) {
+		Key key = new Key(digest(file), address, zeroAddress, new HashMap<String, Integer>(imports));
+		Image image = cache.get(key);
+		if(image == null) {
+			try {
+				image = relocate(file.duplicate(), address, zeroAddress, imports);
+			} catch (BufferUnderflowException e) {
+				throw new IllegalArgumentException("Truncated o65 file");
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new IllegalArgumentException("Relocation outside of its segment");
+			}
+			cache.put(key, image);
+		}
+		return image;
+	}
+
+	private static byte[] digest(ByteBuffer file) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(file.duplicate());
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			//every JRE has SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Image relocate(ByteBuffer in, int address, int zeroAddress, Map<String, Integer> imports) {
+		if(!isO65(in))
+			throw new IllegalArgumentException("Not an o65 file");
+		in.order(ByteOrder.LITTLE_ENDIAN);
+		in.position(in.position()+MARKER.length);
+		int version = in.get()&0xFF;
+		if(version != 0)
+			throw new IllegalArgumentException("Unsupported o65 version " + version);
+		int mode = in.getShort()&0xFFFF;
+		if((mode&MODE_CHAIN) != 0)
+			throw new IllegalArgumentException("Chained o65 files are not supported");
+		boolean longSizes = (mode&MODE_LONG) != 0;
+		int textBase = readSize(in, longSizes);
+		int textLength = readSize(in, longSizes);
+		int dataBase = readSize(in, longSizes);
+		int dataLength = readSize(in, longSizes);
+		int bssBase = readSize(in, longSizes);
+		int bssLength = readSize(in, longSizes);
+		int zeroBase = readSize(in, longSizes);
+		int zeroLength = readSize(in, longSizes);
+		readSize(in, longSizes); //stack size
+		Map<Integer, byte[]> options = new HashMap<Integer, byte[]>();
+		for(int length; (length = in.get()&0xFF) != 0;) {
+			if(length < 2)
+				throw new IllegalArgumentException("Bad o65 option length " + length);
+			int type = in.get()&0xFF;
+			byte[] value = new byte[length-2];
+			in.get(value);
+			options.put(type, value);
+		}
+
+		int dataAddress = address+textLength;
+		int bssAddress = dataAddress+dataLength;
+		if(zeroAddress == ZERO_AS_LINKED)
+			zeroAddress = zeroBase;
+		int limit = (mode&MODE_65816) != 0 ? 0x1000000 : 0x10000;
+		if(address < 0 || bssAddress+bssLength > limit || zeroAddress < 0 || zeroAddress+zeroLength > 0x100)
+			throw new IllegalArgumentException("Module doesn't fit at " + Integer.toHexString(address));
+		byte[] textAndData = new byte[textLength+dataLength];
+		in.get(textAndData);
+
+		List<String> undefined = new ArrayList<String>();
+		for(int count = readSize(in, longSizes); count > 0; count--)
+			undefined.add(readName(in));
+		int[] undefinedAddresses = new int[undefined.size()];
+		for(int i = 0; i < undefinedAddresses.length; i++) {
+			Integer value = imports.get(undefined.get(i));
+			if(value == null)
+				throw new IllegalArgumentException("Undefined symbol " + undefined.get(i));
+			undefinedAddresses[i] = value;
+		}
+		int[] offsets = new int[6];
+		offsets[SEG_TEXT] = address-textBase;
+		offsets[SEG_DATA] = dataAddress-dataBase;
+		offsets[SEG_BSS] = bssAddress-bssBase;
+		offsets[SEG_ZERO] = zeroAddress-zeroBase;
+		relocateSegment(in, textAndData, 0, mode, offsets, undefinedAddresses);
+		relocateSegment(in, textAndData, textLength, mode, offsets, undefinedAddresses);
+
+		Map<String, Integer> exports = new HashMap<String, Integer>();
+		for(int count = readSize(in, longSizes); count > 0; count--) {
+			String name = readName(in);
+			int segment = in.get()&0xFF;
+			int value = readSize(in, longSizes);
+			if(segment >= offsets.length)
+				throw new IllegalArgumentException("Bad segment " + segment + " for " + name);
+			exports.put(name, value+offsets[segment]);
+		}
+		Integer main = exports.get(ENTRY_SYMBOL);
+		return new Image(textAndData, address, bssAddress, bssLength, zeroAddress, zeroLength,
+				(mode&MODE_BSSZERO) != 0, main != null ? main : address, exports, options);
+	}
+
+	/**
+	 * Apply the relocation table of the segment starting at start
+	 * @param offsets value added to the addresses in each segment
+	 */
+	private static void relocateSegment(ByteBuffer in, byte[] image, int start, int mode,
+			int[] offsets, int[] undefinedAddresses) {
+		boolean longSizes = (mode&MODE_LONG) != 0;
+		int addr = start-1;
+		for(int skip; (skip = in.get()&0xFF) != 0;) {
+			if(skip == 255) {
+				addr += 254;
+				continue;
+			}
+			addr += skip;
+			int typeByte = in.get()&0xFF;
+			int type = typeByte&0xE0;
+			int segment = typeByte&0x07;
+			//the low bits of HIGH and SEG relocations come before the undefined index
+			int low = 0;
+			if(type == RELOC_HIGH && (mode&MODE_PAGED) == 0)
+				low = in.get()&0xFF;
+			else if(type == RELOC_SEG)
+				low = in.getShort()&0xFFFF;
+			int offset;
+			if(segment == SEG_UNDEFINED)
+				offset = undefinedAddresses[readSize(in, longSizes)];
+			else if(segment < offsets.length)
+				offset = offsets[segment];
+			else
+				throw new IllegalArgumentException("Bad relocation segment " + segment);
+			int value;
+			switch(type) {
+			case RELOC_WORD:
+				value = (image[addr]&0xFF|(image[addr+1]&0xFF)<<8)+offset;
+				image[addr] = (byte)value;
+				image[addr+1] = (byte)(value>>8);
+				break;
+			case RELOC_HIGH:
+				image[addr] = (byte)((((image[addr]&0xFF)<<8|low)+offset)>>8);
+				break;
+			case RELOC_LOW:
+				image[addr] = (byte)(image[addr]+offset);
+				break;
+			case RELOC_SEGADR:
+				value = (image[addr]&0xFF|(image[addr+1]&0xFF)<<8|(image[addr+2]&0xFF)<<16)+offset;
+				image[addr] = (byte)value;
+				image[addr+1] = (byte)(value>>8);
+				image[addr+2] = (byte)(value>>16);
+				break;
+			case RELOC_SEG:
+				image[addr] = (byte)((((image[addr]&0xFF)<<16|low)+offset)>>16);
+				break;
+			default:
+				throw new IllegalArgumentException("Bad relocation type " + Integer.toHexString(type));
+			}
+		}
+	}
+
+	private static int readSize(ByteBuffer in, boolean longSizes) {
+		return longSizes ? in.getInt() : in.getShort()&0xFFFF;
+	}
+
+	private static String readName(ByteBuffer in) {
+		StringBuilder name = new StringBuilder();
+		for(int c; (c = in.get()&0xFF) != 0;)
+			name.append((char)c);
+		return name.toString();
+	}
+}
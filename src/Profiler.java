@@ -0,0 +1,298 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Execution profile of a cpu (see Cpu6502.setProfiler()): executions and
+ * cycles per address and per opcode, and the JSR/RTS call stack, giving
+ * the inclusive cycles of each subroutine and the cycles of each stack
+ * for flame graphs. Counting is a few array increments per instruction,
+ * or per compiled block run by the TIERED core, the reports are built
+ * when they are written.
+ */
+public final class Profiler {
+
+	private static final int JSR = 0x20;
+	private static final int RTS = 0x60;
+	private static final int MAX_DEPTH = 1024;
+	private static final int ROOT = 0;
+
+	private final long[] executions = new long[65536];
+	private final long[] cycles = new long[65536];
+	private final long[] opcodeExecutions = new long[256];
+	private final long[] opcodeCycles = new long[256];
+	private long totalCycles;
+
+	//subroutines by entry address, recursive calls count once
+	private final long[] calls = new long[65536];
+	private final long[] inclusiveCycles = new long[65536];
+	private final int[] activeCalls = new int[65536];
+
+	/*
+	 * Call stack: node of each frame in the tree of the stacks seen so far,
+	 * and total cycles when the frame was entered. Calls deeper than
+	 * MAX_DEPTH are counted in the deepest frame.
+	 */
+	private final int[] frames = new int[MAX_DEPTH];
+	private final long[] frameStarts = new long[MAX_DEPTH];
+	private int depth;
+	private int lostDepth;
+
+	/*
+	 * Tree of stacks: parent, subroutine address and self cycles of each
+	 * node, and an open addressing table of the children, keyed by parent
+	 * and address
+	 */
+	private int[] nodeParents = new int[64];
+	private int[] nodeAddresses = new int[64];
+	private long[] nodeCycles = new long[64];
+	private int nodes;
+	private long[] childKeys = new long[128];
+	private int[] childNodes = new int[128];
+
+	private final Map<Integer, String> symbols = new HashMap<Integer, String>();
+
+	public Profiler() {
+		clear();
+	}
+
+	public void clear() {
+		Arrays.fill(executions, 0);
+		Arrays.fill(cycles, 0);
+		Arrays.fill(opcodeExecutions, 0);
+		Arrays.fill(opcodeCycles, 0);
+		Arrays.fill(calls, 0);
+		Arrays.fill(inclusiveCycles, 0);
+		Arrays.fill(activeCalls, 0);
+		Arrays.fill(childKeys, -1);
+		totalCycles = 0;
+		nodes = 0;
+		addNode(-1, -1);
+		frames[0] = ROOT;
+		depth = 0;
+		lostDepth = 0;
+	}
+
+	/**
+	 * Name subroutines in the reports, with the exports of o65 modules for
+	 * instance. Other subroutines are named by their address.
+	 */
+	public void addSymbols(Map<String, Integer> addresses) {
+		for(Map.Entry<String, Integer> symbol : addresses.entrySet())
+			symbols.put(symbol.getValue(), symbol.getKey());
+	}
+
+	/**
+	 * @param nextPC PC after the instruction, the subroutine called by JSR
+	 */
+	void record(int pc, int opcode, int cycles, int nextPC) {
+		executions[pc]++;
+		this.cycles[pc] += cycles;
+		opcodeExecutions[opcode]++;
+		opcodeCycles[opcode] += cycles;
+		nodeCycles[frames[depth]] += cycles;
+		totalCycles += cycles;
+		if(opcode == JSR)
+			call(nextPC);
+		else if(opcode == RTS)
+			ret();
+	}
+
+	/**
+	 * Count a run of a compiled block as one execution at its entry
+	 * address, without counting its opcodes. Blocks end with their JSR or
+	 * RTS, so call stacks are the same as instruction by instruction.
+	 * @param exitOpcode JSR or RTS if the block left through its last
+	 * instruction, else -1
+	 * @param nextPC PC after the block
+	 */
+	void recordBlock(int pc, int cycles, int exitOpcode, int nextPC) {
+		executions[pc]++;
+		this.cycles[pc] += cycles;
+		nodeCycles[frames[depth]] += cycles;
+		totalCycles += cycles;
+		if(exitOpcode == JSR)
+			call(nextPC);
+		else if(exitOpcode == RTS)
+			ret();
+	}
+
+	private void call(int addr) {
+		calls[addr]++;
+		if(depth+1 == MAX_DEPTH) {
+			lostDepth++;
+			return;
+		}
+		depth++;
+		frames[depth] = child(frames[depth-1], addr);
+		if(activeCalls[addr]++ == 0)
+			frameStarts[depth] = totalCycles;
+	}
+
+	private void ret() {
+		if(lostDepth > 0) {
+			lostDepth--;
+			return;
+		}
+		//RTS used as an indirect jump
+		if(depth == 0)
+			return;
+		int addr = nodeAddresses[frames[depth]];
+		if(--activeCalls[addr] == 0)
+			inclusiveCycles[addr] += totalCycles-frameStarts[depth];
+		depth--;
+	}
+
+	private int child(int parent, int addr) {
+		long key = (long)parent<<16|addr;
+		int mask = childKeys.length-1;
+		int slot = (int)(key*0x9E3779B97F4A7C15L>>>40)&mask;
+		while(childKeys[slot] != -1) {
+			if(childKeys[slot] == key)
+				return childNodes[slot];
+			slot = (slot+1)&mask;
+		}
+		int node = addNode(parent, addr);
+		childKeys[slot] = key;
+		childNodes[slot] = node;
+		if(nodes*2 > childKeys.length)
+			growChildren();
+		return node;
+	}
+
+	private int addNode(int parent, int addr) {
+		if(nodes == nodeParents.length) {
+			nodeParents = Arrays.copyOf(nodeParents, nodes*2);
+			nodeAddresses = Arrays.copyOf(nodeAddresses, nodes*2);
+			nodeCycles = Arrays.copyOf(nodeCycles, nodes*2);
+		}
+		nodeParents[nodes] = parent;
+		nodeAddresses[nodes] = addr;
+		nodeCycles[nodes] = 0;
+		return nodes++;
+	}
+
+	private void growChildren() {
+		long[] keys = childKeys;
+		int[] values = childNodes;
+		childKeys = new long[keys.length*2];
+		childNodes = new int[keys.length*2];
+		Arrays.fill(childKeys, -1);
+		int mask = childKeys.length-1;
+		for(int i = 0; i < keys.length; i++) {
+			if(keys[i] == -1)
+				continue;
+			int slot = (int)(keys[i]*0x9E3779B97F4A7C15L>>>40)&mask;
+			while(childKeys[slot] != -1)
+				slot = (slot+1)&mask;
+			childKeys[slot] = keys[i];
+			childNodes[slot] = values[i];
+		}
+	}
+
+	public long getTotalCycles() {
+		return totalCycles;
+	}
+
+	public long getExecutions(int addr) {
+		return executions[addr];
+	}
+
+	public long getCycles(int addr) {
+		return cycles[addr];
+	}
+
+	public long getOpcodeExecutions(int opcode) {
+		return opcodeExecutions[opcode];
+	}
+
+	public long getOpcodeCycles(int opcode) {
+		return opcodeCycles[opcode];
+	}
+
+	public long getCalls(int addr) {
+		return calls[addr];
+	}
+
+	/**
+	 * @return cycles spent in the subroutine at addr and the ones it calls,
+	 * up to its last completed RTS
+	 */
+	public long getInclusiveCycles(int addr) {
+		return inclusiveCycles[addr];
+	}
+
+	private String name(int addr) {
+		if(addr < 0)
+			return "root";
+		String name = symbols.get(addr);
+		return name != null ? name : String.format("$%04X", addr);
+	}
+
+	/**
+	 * @return indexes of the non zero values, largest first
+	 */
+	private static List<Integer> sorted(final long[] values, int limit) {
+		List<Integer> indexes = new ArrayList<Integer>();
+		for(int i = 0; i < values.length; i++)
+			if(values[i] != 0)
+				indexes.add(i);
+		Collections.sort(indexes, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return values[a] < values[b] ? 1 : values[a] > values[b] ? -1 : a-b;
+			}
+		});
+		return indexes.subList(0, Math.min(limit, indexes.size()));
+	}
+
+	private double percent(long cycles) {
+		return totalCycles == 0 ? 0 : cycles*100.0/totalCycles;
+	}
+
+	/**
+	 * Write the hottest addresses, subroutines and opcodes by cycles
+	 * @param cpu cpu used to disassemble the hot addresses
+	 * @param limit number of lines of each table
+	 */
+	public void writeHotspots(Appendable out, Cpu6502 cpu, int limit) throws IOException {
+		out.append(String.format("%d cycles\n\naddress  executions       cycles       %%  instruction\n", totalCycles));
+		for(int addr : sorted(cycles, limit)) {
+			int opcode = cpu.peek(addr);
+			out.append(String.format("$%04X  %12d %12d  %6.2f  %s\n", addr, executions[addr], cycles[addr],
+					percent(cycles[addr]), cpu.disassemble(addr, opcode, cpu.peek(addr+1)|cpu.peek(addr+2)<<8)));
+		}
+		out.append("\nsubroutine            calls    inclusive       %\n");
+		for(int addr : sorted(inclusiveCycles, limit))
+			out.append(String.format("%-16s %10d %12d  %6.2f\n", name(addr), calls[addr], inclusiveCycles[addr],
+					percent(inclusiveCycles[addr])));
+		out.append("\nopcode  executions       cycles       %\n");
+		for(int opcode : sorted(opcodeCycles, limit))
+			out.append(String.format("$%02X   %12d %12d  %6.2f\n", opcode, opcodeExecutions[opcode],
+					opcodeCycles[opcode], percent(opcodeCycles[opcode])));
+	}
+
+	/**
+	 * Write the cycles of each call stack in the collapsed format of flame
+	 * graph tools: frames from the root separated by ';', then the cycles
+	 * spent in the last frame
+	 */
+	public void writeCollapsedStacks(Appendable out) throws IOException {
+		StringBuilder stack = new StringBuilder();
+		for(int node = 0; node < nodes; node++) {
+			if(nodeCycles[node] == 0)
+				continue;
+			stack.setLength(0);
+			for(int frame = node; frame >= 0; frame = nodeParents[frame]) {
+				if(stack.length() > 0)
+					stack.insert(0, ';');
+				stack.insert(0, name(nodeAddresses[frame]));
+			}
+			out.append(stack).append(' ').append(Long.toString(nodeCycles[node])).append('\n');
+		}
+	}
+}
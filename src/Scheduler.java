@@ -0,0 +1,185 @@
+import java.util.Arrays;
+
+/**
+ * Timed events of the devices of a cpu (see Cpu6502.setScheduler()),
+ * keyed on absolute cpu cycle: scanlines, frame counters, timers, DMA.
+ * The cpu runs freely up to the next deadline, the events due are fired
+ * between two slices. Events due on the same cycle fire in the order they
+ * were scheduled. Devices catch up with the cpu when their registers are
+ * accessed rather than at each instruction (see Device).
+ */
+public final class Scheduler {
+
+	public interface Event {
+		/**
+		 * @param cycle deadline of the event, the cpu may be a few cycles
+		 * past it
+		 */
+		void fire(Scheduler scheduler, long cycle);
+	}
+
+	/*
+	 * Binary min-heap ordered by deadline, then by sequence number so that
+	 * events due on the same cycle keep their scheduling order
+	 */
+	private long[] deadlines = new long[16];
+	private long[] sequences = new long[16];
+	private Event[] events = new Event[16];
+	private int size;
+	private long nextSequence;
+
+	/**
+	 * Fire the event once the cpu reaches cycle. An event can schedule
+	 * itself again when fired.
+	 */
+	public void schedule(long cycle, Event event) {
+		if(size == deadlines.length) {
+			deadlines = Arrays.copyOf(deadlines, size*2);
+			sequences = Arrays.copyOf(sequences, size*2);
+			events = Arrays.copyOf(events, size*2);
+		}
+		siftUp(size++, cycle, nextSequence++, event);
+	}
+
+	/**
+	 * Remove every pending occurrence of the event
+	 * @return true if the event was scheduled
+	 */
+	public boolean cancel(Event event) {
+		boolean found = false;
+		for(int i = size-1; i >= 0; i--) {
+			if(events[i] == event) {
+				removeAt(i);
+				found = true;
+			}
+		}
+		return found;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return cycle of the next event, Long.MAX_VALUE when there is none
+	 */
+	public long nextDeadline() {
+		return size == 0 ? Long.MAX_VALUE : deadlines[0];
+	}
+
+	/**
+	 * Fire the events due at cycle or before, earliest first
+	 */
+	void fireDue(long cycle) {
+		while(size > 0 && deadlines[0] <= cycle) {
+			long deadline = deadlines[0];
+			Event event = events[0];
+			removeAt(0);
+			event.fire(this, deadline);
+		}
+	}
+
+	private void removeAt(int i) {
+		size--;
+		long deadline = deadlines[size];
+		long sequence = sequences[size];
+		Event event = events[size];
+		events[size] = null;
+		if(i == size)
+			return;
+		if(siftDown(i, deadline, sequence, event) == i)
+			siftUp(i, deadline, sequence, event);
+	}
+
+	private boolean before(long deadline, long sequence, int i) {
+		return deadline < deadlines[i] || (deadline == deadlines[i] && sequence < sequences[i]);
+	}
+
+	private void siftUp(int i, long deadline, long sequence, Event event) {
+		while(i > 0) {
+			int parent = (i-1)>>1;
+			if(!before(deadline, sequence, parent))
+				break;
+			set(i, deadlines[parent], sequences[parent], events[parent]);
+			i = parent;
+		}
+		set(i, deadline, sequence, event);
+	}
+
+	/**
+	 * @return index where the event ended
+	 */
+	private int siftDown(int i, long deadline, long sequence, Event event) {
+		while(true) {
+			int child = 2*i+1;
+			if(child >= size)
+				break;
+			if(child+1 < size && before(deadlines[child+1], sequences[child+1], child))
+				child++;
+			if(before(deadline, sequence, child))
+				break;
+			set(i, deadlines[child], sequences[child], events[child]);
+			i = child;
+		}
+		set(i, deadline, sequence, event);
+		return i;
+	}
+
+	private void set(int i, long deadline, long sequence, Event event) {
+		deadlines[i] = deadline;
+		sequences[i] = sequence;
+		events[i] = event;
+	}
+
+	/**
+	 * Device mapped with Cpu6502.mapIo(), brought up to date with the cpu
+	 * only when one of its registers is read or written, or when one of its
+	 * events fires
+	 */
+	public static abstract class Device implements Cpu6502.IoHandler {
+		protected final Cpu6502 cpu;
+		private long cycle;
+
+		protected Device(Cpu6502 cpu) {
+			this.cpu = cpu;
+			this.cycle = cpu.getCycle();
+		}
+
+		/**
+		 * Run the device from its last cycle to the current cycle of the cpu
+		 */
+		protected final void catchUp() {
+			long now = cpu.getCycle();
+			if(now > cycle) {
+				advance(cycle, now);
+				cycle = now;
+			}
+		}
+
+		/**
+		 * @return cycle the device is up to date with
+		 */
+		public final long getCycle() {
+			return cycle;
+		}
+
+		/**
+		 * Emulate the device from cycle from to cycle to
+		 */
+		protected abstract void advance(long from, long to);
+
+		protected abstract int readRegister(int addr);
+
+		protected abstract void writeRegister(int addr, int val);
+
+		public final int read(int addr) {
+			catchUp();
+			return readRegister(addr);
+		}
+
+		public final void write(int addr, int val) {
+			catchUp();
+			writeRegister(addr, val);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Ring buffer of the last instructions executed by a cpu (see
+ * Cpu6502.setTrace()). Recording only stores two longs and a count per
+ * instruction in preallocated arrays, the log is formatted when it is
+ * dumped. An entry can stand for a compiled block of the TIERED core: it
+ * then has the registers before its first instruction and the number of
+ * instructions the block ran.
+ */
+public final class Trace {
+
+	public static final int MAGIC = 0x36355452;
+	public static final int VERSION = 2;
+
+	/*
+	 * Two longs per instruction: PC, opcode, operand bytes, A, X and Y in
+	 * the first one, SP, P and the cycle count before the instruction in
+	 * the second one
+	 */
+	private final long[] entries;
+	//instructions of each entry
+	private final int[] instructions;
+	private final int capacity;
+	private int next;
+	private long recorded;
+
+	/**
+	 * @param capacity number of entries kept
+	 */
+	public Trace(int capacity) {
+		if(capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		this.capacity = capacity;
+		this.entries = new long[capacity*2];
+		this.instructions = new int[capacity];
+	}
+
+	void record(int pc, int opcode, int operand, int a, int x, int y, int sp, int p, long ticks) {
+		int index = next;
+		entries[index] = pc|(long)opcode<<16|(long)operand<<24|(long)a<<40|(long)x<<48|(long)y<<56;
+		entries[index+1] = sp|p<<8|ticks<<16;
+		instructions[index>>1] = 1;
+		next = index+2 == entries.length ? 0 : index+2;
+		recorded++;
+	}
+
+	/**
+	 * Make the last entry stand for the instructions run by a compiled
+	 * block from its address
+	 */
+	void setLastCount(int count) {
+		instructions[(next == 0 ? entries.length : next)/2-1] = count;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return number of entries in the trace, at most its capacity
+	 */
+	public int size() {
+		return (int)Math.min(recorded, capacity);
+	}
+
+	/**
+	 * @return number of entries recorded since creation or clear()
+	 */
+	public long getRecorded() {
+		return recorded;
+	}
+
+	public void clear() {
+		next = 0;
+		recorded = 0;
+	}
+
+	/**
+	 * @return index in entries of the i-th oldest instruction
+	 */
+	private int entry(int i) {
+		int index = next-size()*2+i*2;
+		return index < 0 ? index+entries.length : index;
+	}
+
+	public int getPC(int i) {
+		return (int)entries[entry(i)]&0xFFFF;
+	}
+
+	public int getOpcode(int i) {
+		return (int)(entries[entry(i)]>>16)&0xFF;
+	}
+
+	public long getTicks(int i) {
+		return entries[entry(i)+1]>>>16;
+	}
+
+	/**
+	 * @return number of instructions of the i-th oldest entry, more than
+	 * 1 for a compiled block
+	 */
+	public int getCount(int i) {
+		return instructions[entry(i)>>1];
+	}
+
+	/**
+	 * Save the trace, oldest instruction first: a header (magic, version,
+	 * count) followed by 20 bytes per entry, PC, opcode, operand, A, X, Y,
+	 * SP, P, the cycle count on 48 bits and the number of instructions,
+	 * big endian
+	 */
+	public void writeBinary(WritableByteChannel out) throws IOException {
+		int size = size();
+		ByteBuffer buffer = ByteBuffer.allocate(10+size*20);
+		buffer.putInt(MAGIC).putShort((short)VERSION).putInt(size);
+		for(int i = 0; i < size; i++) {
+			long state = entries[entry(i)];
+			long counts = entries[entry(i)+1];
+			buffer.putShort((short)state).put((byte)(state>>16)).putShort((short)(state>>24));
+			buffer.put((byte)(state>>40)).put((byte)(state>>48)).put((byte)(state>>56));
+			buffer.put((byte)counts).put((byte)(counts>>8));
+			buffer.putShort((short)(counts>>>48)).putInt((int)(counts>>>16));
+			buffer.putInt(instructions[entry(i)>>1]);
+		}
+		buffer.flip();
+		while(buffer.hasRemaining())
+			out.write(buffer);
+	}
+
+	/**
+	 * Write the trace as a nestest style log, oldest instruction first:
+	 * address, instruction bytes, disassembly, registers before the
+	 * instruction and cycle count. P has its unused bit 5 set, as when
+	 * pushed. Compiled blocks end with the number of instructions they ran.
+	 * @param cpu cpu used to decode the opcodes
+	 */
+	public void writeText(Appendable out, Cpu6502 cpu) throws IOException {
+		int size = size();
+		for(int i = 0; i < size; i++) {
+			long state = entries[entry(i)];
+			long counts = entries[entry(i)+1];
+			int pc = (int)state&0xFFFF;
+			int opcode = (int)(state>>16)&0xFF;
+			int operand = (int)(state>>24)&0xFFFF;
+			int length = cpu.instructionLength(opcode);
+			String bytes = String.format(length == 1 ? "%02X" : length == 2 ? "%02X %02X" : "%02X %02X %02X",
+					opcode, operand&0xFF, operand>>8);
+			out.append(String.format("%04X  %-8s  %-30s  A:%02X X:%02X Y:%02X P:%02X SP:%02X CYC:%d",
+					pc, bytes, cpu.disassemble(pc, opcode, operand), (state>>40)&0xFF, (state>>48)&0xFF,
+					(state>>56)&0xFF, ((counts>>8)&0xFF)|0x20, counts&0xFF, counts>>>16));
+			int count = instructions[entry(i)>>1];
+			if(count > 1)
+				out.append(String.format("  BLOCK:%d", count));
+			out.append('\n');
+		}
+	}
+}
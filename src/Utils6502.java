@@ -51,4 +51,18 @@ public final class Utils6502 {
 		return unpckBcd2Pck [unpacked];
 	}
 
+	/**
+	 * @return true if unpackBcd() accepts the number
+	 */
+	static public boolean isPackedBcd(int packed) {
+		return packed >= 0 && packed < pckBcd2UnpckBcd.length;
+	}
+
+	/**
+	 * @return true if packBcd() accepts the number
+	 */
+	static public boolean isUnpackedBcd(int unpacked) {
+		return unpacked >= 0 && unpacked < unpckBcd2Pck.length;
+	}
+
 }
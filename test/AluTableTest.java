@@ -0,0 +1,105 @@
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Every entry of the precomputed ADC and SBC tables against the
+ * instructions as they computed them before the tables
+ */
+public class AluTableTest {
+
+	private static final int CARRY = 0x01<<8;
+	private static final int ZERO = 0x02<<8;
+	private static final int OVERFLOW = 0x40<<8;
+	private static final int NEGATIVE = 0x80<<8;
+
+	private static int result(int a, boolean carry, boolean zero, boolean overflow, boolean negative) {
+		return a|(carry?CARRY:0)|(zero?ZERO:0)|(overflow?OVERFLOW:0)|(negative?NEGATIVE:0);
+	}
+
+	private static int binaryAdd(int a, int operand, int carry) {
+		int res = a+operand+carry;
+		return result(res&255, res>255, (res&255) == 0, res>127 || res<-128, (res&0x80) != 0);
+	}
+
+	private static int binarySub(int a, int operand, int carry) {
+		int res = a-operand-(1-carry);
+		return result(res&255, (res&0x100) == 0, (res&255) == 0, res>127 || res<-128, (res&0x80) != 0);
+	}
+
+	private static int bcdAdd(int a, int operand, int carry) {
+		if(a < 100 && operand < 100) {
+			int res = Utils6502.unpackBcd(operand)+Utils6502.unpackBcd(a)+carry;
+			if(Utils6502.isUnpackedBcd(res))
+				return result(Utils6502.packBcd(res), res>99, res%100 == 0, res>99, false);
+		}
+		//digit by digit as an NMOS 6502
+		int lo = (a&0x0F)+(operand&0x0F)+carry;
+		int res = (a&0xF0)+(operand&0xF0)+(lo > 9 ? ((lo+6)&0x0F)+0x10 : lo);
+		if(res >= 0xA0)
+			res += 0x60;
+		return result(res&255, res>255, (res&255) == 0, res>255, false);
+	}
+
+	private static int bcdSub(int a, int operand, int carry) {
+		if(a < 100 && operand < 100) {
+			int res = Utils6502.unpackBcd(operand)-Utils6502.unpackBcd(a)-(1-carry);
+			if(Utils6502.isUnpackedBcd(res))
+				return result(Utils6502.packBcd(res), res >= 0, res%100 == 0, false, res<0);
+		}
+		int lo = (a&0x0F)-(operand&0x0F)-(1-carry);
+		int res = (a&0xF0)-(operand&0xF0)+(lo < 0 ? ((lo-6)&0x0F)-0x10 : lo);
+		if(res < 0)
+			res -= 0x60;
+		boolean borrow = a-operand-(1-carry) < 0;
+		return result(res&255, !borrow, (res&255) == 0, false, borrow);
+	}
+
+	private static void compare(Cpu6502.Variant variant) {
+		Cpu6502 cpu = new Cpu6502(0, Cpu6502.Core.INSTRUCTION, Cpu6502.MemoryBackend.BYTE_ARRAY, variant);
+		//the 2A03 has no decimal mode
+		boolean decimalMode = variant != Cpu6502.Variant.RICOH_2A03;
+		for(int carry = 0; carry < 2; carry++) {
+			for(int a = 0; a < 256; a++) {
+				for(int operand = 0; operand < 256; operand++) {
+					String message = String.format("%s A=$%02X operand=$%02X C=%d", variant, a, operand, carry);
+					assertEquals("ADC " + message, binaryAdd(a, operand, carry), cpu.adc(a, operand, carry == 1, false));
+					assertEquals("SBC " + message, binarySub(a, operand, carry), cpu.sbc(a, operand, carry == 1, false));
+					assertEquals("ADC decimal " + message,
+							decimalMode ? bcdAdd(a, operand, carry) : binaryAdd(a, operand, carry),
+							cpu.adc(a, operand, carry == 1, true));
+					assertEquals("SBC decimal " + message,
+							decimalMode ? bcdSub(a, operand, carry) : binarySub(a, operand, carry),
+							cpu.sbc(a, operand, carry == 1, true));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void nmos() {
+		compare(Cpu6502.Variant.NMOS);
+	}
+
+	@Test
+	public void ricoh2A03() {
+		compare(Cpu6502.Variant.RICOH_2A03);
+	}
+
+	@Test
+	public void cmos65C02() {
+		compare(Cpu6502.Variant.CMOS_65C02);
+	}
+
+	/**
+	 * Decimal operands the BCD tables can't compute
+	 */
+	@Test
+	public void invalidDecimal() {
+		Cpu6502 cpu = new Cpu6502(0, Cpu6502.Core.INSTRUCTION);
+		assertEquals(0x66|CARRY|OVERFLOW, cpu.adc(0xF9, 0x07, false, true));
+		assertEquals(0x55|CARRY|OVERFLOW, cpu.adc(0xFF, 0xFF, true, true));
+		assertEquals(0x99|CARRY, cpu.sbc(0xA0, 0x01, true, true));
+		assertEquals(0x00|ZERO|NEGATIVE, cpu.sbc(0x00, 0xA0, true, true));
+	}
+}
@@ -0,0 +1,185 @@
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Breakpoints and watchpoints stopping the cpu before the instruction
+ * executing, reading or writing their address
+ */
+public class BreakpointsTest {
+
+	private static final int START = 0x0400;
+
+	private static Cpu6502 cpu(Cpu6502.MemoryBackend backend, int... program) {
+		Cpu6502 cpu = new Cpu6502(START, Cpu6502.Core.TIERED, backend, Cpu6502.Variant.NMOS);
+		byte[] bytes = new byte[program.length+3];
+		for(int i = 0; i < program.length; i++)
+			bytes[i] = (byte)program[i];
+		//JMP * after the program
+		int end = START+program.length;
+		bytes[program.length] = 0x4C;
+		bytes[program.length+1] = (byte)end;
+		bytes[program.length+2] = (byte)(end>>8);
+		cpu.load(START, ByteBuffer.wrap(bytes));
+		return cpu;
+	}
+
+	private static Cpu6502 cpu(int... program) {
+		return cpu(Cpu6502.MemoryBackend.BYTE_ARRAY, program);
+	}
+
+	/**
+	 * Run until the breakpoint
+	 * @param pc address of the instruction it must stop before
+	 */
+	private static void assertHit(Cpu6502 cpu, Breakpoints breakpoints, Breakpoints.Kind kind, int addr, int pc) {
+		assertEquals(Cpu6502.StopReason.BREAKPOINT, cpu.run(1000).getReason());
+		assertEquals(pc, cpu.getPC());
+		assertEquals(kind, breakpoints.getHitKind());
+		assertEquals(addr, breakpoints.getHitAddress());
+	}
+
+	private static Breakpoints watch(Cpu6502 cpu, Breakpoints.Kind kind, int addr) {
+		Breakpoints breakpoints = new Breakpoints();
+		breakpoints.add(kind, addr);
+		cpu.setBreakpoints(breakpoints);
+		return breakpoints;
+	}
+
+	@Test
+	public void execute() {
+		Cpu6502 cpu = cpu(
+			0xA9, 0x01,             // LDA #1
+			0x85, 0x10,             // STA $10
+			0xE6, 0x10);            // INC $10
+		Breakpoints breakpoints = watch(cpu, Breakpoints.Kind.EXECUTE, START+4);
+		assertHit(cpu, breakpoints, Breakpoints.Kind.EXECUTE, START+4, START+4);
+		assertEquals(1, cpu.peek(0x10));
+		//runs on from the breakpoint
+		assertEquals(Cpu6502.StopReason.TRAPPED, cpu.run(1000).getReason());
+		assertEquals(2, cpu.peek(0x10));
+	}
+
+	@Test
+	public void readAndWrite() {
+		Cpu6502 cpu = cpu(
+			0xA5, 0x10,             // LDA $10
+			0x8D, 0x00, 0x05,       // STA $0500
+			0xAD, 0x00, 0x05);      // LDA $0500
+		Breakpoints breakpoints = new Breakpoints();
+		breakpoints.add(Breakpoints.Kind.WRITE, 0x0500);
+		breakpoints.add(Breakpoints.Kind.READ, 0x0500);
+		cpu.setBreakpoints(breakpoints);
+		assertHit(cpu, breakpoints, Breakpoints.Kind.WRITE, 0x0500, START+2);
+		assertHit(cpu, breakpoints, Breakpoints.Kind.READ, 0x0500, START+5);
+		assertEquals(Cpu6502.StopReason.TRAPPED, cpu.run(1000).getReason());
+	}
+
+	@Test
+	public void readModifyWrite() {
+		Cpu6502 cpu = cpu(0xE6, 0x10);  // INC $10
+		Breakpoints breakpoints = watch(cpu, Breakpoints.Kind.READ, 0x10);
+		assertHit(cpu, breakpoints, Breakpoints.Kind.READ, 0x10, START);
+	}
+
+	@Test
+	public void condition() {
+		Cpu6502 cpu = cpu(
+			0xA2, 0x00,             // LDX #0
+			0xE8,                   // INX
+			0xE0, 0x10,             // CPX #$10
+			0xF0, 0x03,             // BEQ START+10
+			0x4C, 0x02, 0x04);      // JMP START+2
+		Breakpoints breakpoints = new Breakpoints();
+		breakpoints.add(Breakpoints.Kind.EXECUTE, START+3, new Breakpoints.Condition() {
+			public boolean test(Cpu6502 cpu, int addr) {
+				return cpu.getX() == 5;
+			}
+		});
+		cpu.setBreakpoints(breakpoints);
+		assertHit(cpu, breakpoints, Breakpoints.Kind.EXECUTE, START+3, START+3);
+		assertEquals(5, cpu.getX());
+		assertEquals(Cpu6502.StopReason.TRAPPED, cpu.run(1000).getReason());
+	}
+
+	/**
+	 * $0810 and $1810 are mirrors of $0010, on both memory backends
+	 */
+	@Test
+	public void mirrors() {
+		for(Cpu6502.MemoryBackend backend : Cpu6502.MemoryBackend.values()) {
+			Cpu6502 cpu = cpu(backend,
+				0xA9, 0x01,             // LDA #1
+				0x85, 0x20,             // STA $20
+				0x8D, 0x10, 0x08,       // STA $0810
+				0xAD, 0x10, 0x18);      // LDA $1810
+			Breakpoints breakpoints = new Breakpoints();
+			breakpoints.add(Breakpoints.Kind.WRITE, 0x0010);
+			breakpoints.add(Breakpoints.Kind.READ, 0x0810);
+			cpu.setBreakpoints(breakpoints);
+			assertHit(cpu, breakpoints, Breakpoints.Kind.WRITE, 0x0010, START+4);
+			assertHit(cpu, breakpoints, Breakpoints.Kind.READ, 0x0810, START+7);
+			assertEquals(Cpu6502.StopReason.TRAPPED, cpu.run(1000).getReason());
+		}
+	}
+
+	@Test
+	public void indexedAbsolute() {
+		Cpu6502 cpu = cpu(
+			0xA2, 0x34,             // LDX #$34
+			0xBD, 0x00, 0x12,       // LDA $1200,X
+			0xA0, 0x10,             // LDY #$10
+			0x99, 0xF8, 0xFF);      // STA $FFF8,Y
+		Breakpoints breakpoints = new Breakpoints();
+		breakpoints.add(Breakpoints.Kind.READ, 0x1234);
+		breakpoints.add(Breakpoints.Kind.WRITE, 0x0008);
+		cpu.setBreakpoints(breakpoints);
+		assertHit(cpu, breakpoints, Breakpoints.Kind.READ, 0x1234, START+2);
+		//wraps at $FFFF
+		assertHit(cpu, breakpoints, Breakpoints.Kind.WRITE, 0x0008, START+7);
+	}
+
+	@Test
+	public void indexedZeroPage() {
+		Cpu6502 cpu = cpu(
+			0xA2, 0x20,             // LDX #$20
+			0xB5, 0xF0,             // LDA $F0,X
+			0x95, 0xF5);            // STA $F5,X
+		Breakpoints breakpoints = new Breakpoints();
+		//wraps in the zero page
+		breakpoints.add(Breakpoints.Kind.READ, 0x0010);
+		breakpoints.add(Breakpoints.Kind.WRITE, 0x0015);
+		cpu.setBreakpoints(breakpoints);
+		assertHit(cpu, breakpoints, Breakpoints.Kind.READ, 0x0010, START+2);
+		assertHit(cpu, breakpoints, Breakpoints.Kind.WRITE, 0x0015, START+4);
+	}
+
+	@Test
+	public void indirect() {
+		Cpu6502 cpu = cpu(
+			0xA9, 0x00,             // LDA #$00
+			0x85, 0x40,             // STA $40
+			0xA9, 0x06,             // LDA #$06
+			0x85, 0x41,             // STA $41
+			0xA2, 0x02,             // LDX #2
+			0xA1, 0x3E,             // LDA ($3E,X)
+			0xA0, 0x07,             // LDY #7
+			0x91, 0x40);            // STA ($40),Y
+		Breakpoints breakpoints = new Breakpoints();
+		breakpoints.add(Breakpoints.Kind.READ, 0x0600);
+		breakpoints.add(Breakpoints.Kind.WRITE, 0x0607);
+		cpu.setBreakpoints(breakpoints);
+		assertHit(cpu, breakpoints, Breakpoints.Kind.READ, 0x0600, START+10);
+		assertHit(cpu, breakpoints, Breakpoints.Kind.WRITE, 0x0607, START+14);
+	}
+
+	@Test
+	public void disarmed() {
+		Cpu6502 cpu = cpu(0x85, 0x10);  // STA $10
+		Breakpoints breakpoints = watch(cpu, Breakpoints.Kind.WRITE, 0x10);
+		breakpoints.remove(Breakpoints.Kind.WRITE, 0x10);
+		assertEquals(Cpu6502.StopReason.TRAPPED, cpu.run(1000).getReason());
+	}
+}
@@ -0,0 +1,66 @@
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * iNES headers
+ */
+public class CartridgeTest {
+
+	/**
+	 * iNES file with 8KB of CHR-ROM, each 16KB PRG-ROM bank filled with its
+	 * number
+	 * @param header bytes 4-15 of the header, starting with the number of
+	 * PRG-ROM banks
+	 */
+	private static ByteBuffer image(int... header) {
+		byte[] file = new byte[16+header[0]*0x4000+0x2000];
+		file[0] = 'N';
+		file[1] = 'E';
+		file[2] = 'S';
+		file[3] = 0x1A;
+		for(int i = 0; i < header.length; i++)
+			file[4+i] = (byte)header[i];
+		for(int i = 0; i < header[0]*0x4000; i++)
+			file[16+i] = (byte)(i>>14);
+		return ByteBuffer.wrap(file);
+	}
+
+	@Test
+	public void diskDudeHeader() {
+		byte[] name = "DiskDude!".getBytes();
+		int[] header = new int[12];
+		header[0] = 1;
+		header[1] = 1;
+		header[2] = 0x10;
+		for(int i = 0; i < name.length; i++)
+			header[3+i] = name[i];
+		assertEquals(Cartridge.MMC1, Cartridge.read(image(header)).getMapper());
+	}
+
+	@Test
+	public void nes20Header() {
+		assertEquals(Cartridge.UXROM, Cartridge.read(image(1, 1, 0x20, 0x08, 0, 0, 0, 0, 0, 0, 0, 0x01)).getMapper());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void inesHeaderMapperHighNibble() {
+		Cartridge.read(image(1, 1, 0x10, 0x10));
+	}
+
+	@Test
+	public void forkedMapper() {
+		Cpu6502 parent = new Cpu6502(0x8000, Cpu6502.Core.INSTRUCTION);
+		Cartridge.read(image(4, 1, 0x20)).insert(parent);
+		Cpu6502 fork = parent.fork();
+		fork.writeByte(0x8000, 1);
+		assertEquals(0, parent.peek(0x8000));
+		assertEquals(1, fork.peek(0x8000));
+		parent.writeByte(0x8000, 2);
+		assertEquals(2, parent.peek(0x8000));
+		assertEquals(1, fork.peek(0x8000));
+		assertEquals(3, fork.peek(0xC000));
+	}
+}
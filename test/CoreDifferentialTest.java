@@ -0,0 +1,162 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Every opcode of each variant, with random operands, registers, flags and
+ * memory, on the SWITCH and TIERED cores against the INSTRUCTION core. The
+ * instruction is repeated in a loop long enough for the TIERED core to
+ * compile it, and may jump anywhere: the cores must end in the same state,
+ * without throwing.
+ */
+public class CoreDifferentialTest {
+
+	private static final int PREAMBLE = 0x0300;
+	private static final int SEEDS = 4;
+	private static final int BUDGET = 3000;
+
+	/**
+	 * Random image of the whole address space, with a preamble loading the
+	 * registers and flags and jumping to the instruction, repeated by a JMP
+	 */
+	private static byte[] image(Random random, int opcode) {
+		byte[] image = new byte[0x10000];
+		random.nextBytes(image);
+		int target = 0x0400+random.nextInt(0x3F0);
+		int[] preamble = {
+			0xA2, random.nextInt(256),            // LDX #sp
+			0x9A,                                 // TXS
+			0xA9, random.nextInt(256),            // LDA #flags
+			0x48,                                 // PHA
+			0xA9, random.nextInt(256),            // LDA #a
+			0xA2, random.nextInt(256),            // LDX #x
+			0xA0, random.nextInt(256),            // LDY #y
+			0x28,                                 // PLP
+			0x4C, target&0xFF, target>>8          // JMP target
+		};
+		for(int i = 0; i < preamble.length; i++)
+			image[PREAMBLE+i] = (byte)preamble[i];
+		image[target] = (byte)opcode;
+		image[target+3] = 0x4C;
+		image[target+4] = (byte)target;
+		image[target+5] = (byte)(target>>8);
+		return image;
+	}
+
+	/**
+	 * @param memory filled with the memory of the cpu after the run
+	 * @return how the run ended and the registers
+	 */
+	private static String run(Cpu6502.Core core, Cpu6502.Variant variant, byte[] image, byte[] memory) {
+		Cpu6502 cpu = new Cpu6502(PREAMBLE, core, Cpu6502.MemoryBackend.BYTE_ARRAY, variant);
+		//Leave the I/O registers at $2000-$3FFF alone
+		cpu.load(0x0000, ByteBuffer.wrap(image, 0x0000, 0x2000));
+		cpu.load(0x4000, ByteBuffer.wrap(image, 0x4000, 0xC000));
+		StringBuilder state = new StringBuilder();
+		state.append(cpu.run(BUDGET));
+		state.append(String.format(" PC=%04X A=%02X X=%02X Y=%02X SP=%02X P=%02X ticks=%d", cpu.getPC(),
+				cpu.getA(), cpu.getX(), cpu.getY(), cpu.getSP(), cpu.getFlags(), cpu.getTicks()));
+		for(int addr = 0; addr < 0x10000; addr++)
+			memory[addr] = (byte)cpu.peek(addr);
+		return state.toString();
+	}
+
+	private static void compareCores(Cpu6502.Variant variant) {
+		for(int opcode = 0; opcode < 256; opcode++) {
+			for(int seed = 0; seed < SEEDS; seed++) {
+				byte[] image = image(new Random(opcode*SEEDS+seed), opcode);
+				byte[] expectedMemory = new byte[0x10000];
+				String expected = run(Cpu6502.Core.INSTRUCTION, variant, image, expectedMemory);
+				for(Cpu6502.Core core : new Cpu6502.Core[] { Cpu6502.Core.SWITCH, Cpu6502.Core.TIERED }) {
+					String message = String.format("%s %s opcode $%02X seed %d", core, variant, opcode, seed);
+					byte[] memory = new byte[0x10000];
+					assertEquals(message, expected, run(core, variant, image, memory));
+					assertArrayEquals(message, expectedMemory, memory);
+				}
+			}
+		}
+	}
+
+	private static final int WRAP_LOOP = 0x0400;
+
+	/**
+	 * Indexed addresses and the PC wrapping at $FFFF, repeated long enough
+	 * for the TIERED core to compile the loop
+	 */
+	private static void addressWrap(Cpu6502.Core core, Cpu6502.Variant variant) {
+		Cpu6502 cpu = new Cpu6502(WRAP_LOOP, core, Cpu6502.MemoryBackend.BYTE_ARRAY, variant);
+		cpu.load(WRAP_LOOP, ByteBuffer.wrap(new byte[] {
+			(byte)0xA2, 0x10,                     // LDX #$10
+			(byte)0xBD, (byte)0xF8, (byte)0xFF,   // LDA $FFF8,X
+			(byte)0x85, 0x20,                     // STA $20
+			(byte)0xA0, 0x20,                     // LDY #$20
+			(byte)0x99, (byte)0xF0, (byte)0xFF,   // STA $FFF0,Y
+			(byte)0xA9, (byte)0xF8,               // LDA #$F8
+			(byte)0x85, 0x30,                     // STA $30
+			(byte)0xA9, (byte)0xFF,               // LDA #$FF
+			(byte)0x85, 0x31,                     // STA $31
+			(byte)0xB1, 0x30,                     // LDA ($30),Y
+			(byte)0x85, 0x21,                     // STA $21
+			0x4C, (byte)0xFF, (byte)0xFF          // JMP $FFFF
+		}));
+		cpu.load(0xFFFF, ByteBuffer.wrap(new byte[] { (byte)0xA9 }));  // LDA #
+		cpu.load(0x0000, ByteBuffer.wrap(new byte[] {
+			0x42,                                 // #$42
+			(byte)0x85, 0x22,                     // STA $22
+			0x4C, (byte)WRAP_LOOP, (byte)(WRAP_LOOP>>8),  // JMP WRAP_LOOP
+			0, 0, 0x11,                           // $0008
+		}));
+		cpu.load(0x0018, ByteBuffer.wrap(new byte[] { 0x33 }));
+		String message = core+" "+variant;
+		assertEquals(message, Cpu6502.StopReason.CYCLE_LIMIT, cpu.run(20000).getReason());
+		assertEquals(message, 0x11, cpu.peek(0x20));
+		assertEquals(message, 0x11, cpu.peek(0x10));
+		assertEquals(message, 0x33, cpu.peek(0x21));
+		assertEquals(message, 0x42, cpu.peek(0x22));
+	}
+
+	@Test
+	public void addressWrap() {
+		for(Cpu6502.Variant variant : Cpu6502.Variant.values())
+			for(Cpu6502.Core core : Cpu6502.Core.values())
+				addressWrap(core, variant);
+	}
+
+	/**
+	 * JMP (abs,X) reading its target at $FFFF-$0000
+	 */
+	@Test
+	public void indirectAtTopOfMemory() {
+		for(Cpu6502.Core core : Cpu6502.Core.values()) {
+			Cpu6502 cpu = new Cpu6502(WRAP_LOOP, core, Cpu6502.MemoryBackend.BYTE_ARRAY, Cpu6502.Variant.CMOS_65C02);
+			cpu.load(WRAP_LOOP, ByteBuffer.wrap(new byte[] {
+				(byte)0xA2, 0x0F,                     // LDX #$0F
+				0x7C, (byte)0xF0, (byte)0xFF          // JMP ($FFF0,X)
+			}));
+			cpu.load(0xFFFF, ByteBuffer.wrap(new byte[] { 0x00 }));
+			cpu.load(0x0000, ByteBuffer.wrap(new byte[] { 0x06 }));
+			cpu.load(0x0600, ByteBuffer.wrap(new byte[] { 0x4C, 0x00, 0x06 }));  // JMP *
+			assertEquals(core.toString(), Cpu6502.StopReason.TRAPPED, cpu.run(1000).getReason());
+			assertEquals(core.toString(), 0x0600, cpu.getPC());
+		}
+	}
+
+	@Test
+	public void nmos() {
+		compareCores(Cpu6502.Variant.NMOS);
+	}
+
+	@Test
+	public void ricoh2A03() {
+		compareCores(Cpu6502.Variant.RICOH_2A03);
+	}
+
+	@Test
+	public void cmos65C02() {
+		compareCores(Cpu6502.Variant.CMOS_65C02);
+	}
+}
@@ -0,0 +1,146 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Jobs run by a CpuFarm and their results
+ */
+public class CpuFarmTest {
+
+	private static final int LOOP = 0x0400;
+
+	/**
+	 * Job counting in $10, or halting at once
+	 */
+	private static class CountJob extends CpuFarm.Job {
+		private final boolean halt;
+
+		CountJob(long maxCycles, CpuFarm.ExitCondition exitCondition, boolean halt) {
+			super(maxCycles, exitCondition);
+			this.halt = halt;
+		}
+
+		protected Cpu6502 createCpu() {
+			Cpu6502 cpu = new Cpu6502(LOOP, Cpu6502.Core.SWITCH);
+			if(halt)
+				cpu.load(LOOP, ByteBuffer.wrap(new byte[] { 0x4C, (byte)LOOP, (byte)(LOOP>>8) }));  // JMP *
+			else
+				cpu.load(LOOP, ByteBuffer.wrap(new byte[] {
+					(byte)0xE6, 0x10,                 // INC $10
+					0x4C, (byte)LOOP, (byte)(LOOP>>8) // JMP LOOP
+				}));
+			return cpu;
+		}
+	}
+
+	private static CpuFarm.ExitCondition countReached(final int count) {
+		return new CpuFarm.ExitCondition() {
+			public boolean isDone(Cpu6502 cpu) {
+				return cpu.peek(0x10) >= count;
+			}
+		};
+	}
+
+	private static Map<CpuFarm.Job, CpuFarm.Result> results(CpuFarm.Results results) {
+		Map<CpuFarm.Job, CpuFarm.Result> byJob = new IdentityHashMap<CpuFarm.Job, CpuFarm.Result>();
+		while(results.hasNext()) {
+			CpuFarm.Result result = results.next();
+			byJob.put(result.getJob(), result);
+		}
+		return byJob;
+	}
+
+	@Test
+	public void exitConditions() {
+		CpuFarm farm = new CpuFarm(2);
+		farm.setSliceCycles(100);
+		List<CpuFarm.Job> jobs = new ArrayList<CpuFarm.Job>();
+		for(int count = 10; count <= 200; count += 10)
+			jobs.add(new CountJob(1000000, countReached(count), false));
+		CpuFarm.Job budget = new CountJob(1000, null, false);
+		CpuFarm.Job never = new CountJob(2000, countReached(256), false);
+		CpuFarm.Job trapped = new CountJob(1000, countReached(1), true);
+		jobs.add(budget);
+		jobs.add(never);
+		jobs.add(trapped);
+		Map<CpuFarm.Job, CpuFarm.Result> results = results(farm.submit(jobs));
+		farm.shutdown();
+		assertEquals(jobs.size(), results.size());
+		for(int i = 0; i < 20; i++) {
+			CpuFarm.Result result = results.get(jobs.get(i));
+			assertTrue(result.isExitConditionMet());
+			assertEquals(Cpu6502.StopReason.STOPPED, result.getStatus().getReason());
+			//checked every 100 cycles, 8 cycles per count
+			int count = result.getCpu().peek(0x10);
+			assertTrue(count >= (i+1)*10 && count < (i+1)*10+13);
+		}
+		assertEquals(Cpu6502.StopReason.CYCLE_LIMIT, results.get(budget).getStatus().getReason());
+		assertEquals(1000, results.get(budget).getStatus().getCycles());
+		assertFalse(results.get(never).isExitConditionMet());
+		assertEquals(Cpu6502.StopReason.CYCLE_LIMIT, results.get(never).getStatus().getReason());
+		assertEquals(Cpu6502.StopReason.TRAPPED, results.get(trapped).getStatus().getReason());
+		assertFalse(results.get(trapped).isExitConditionMet());
+	}
+
+	@Test
+	public void createCpuError() {
+		CpuFarm farm = new CpuFarm(1);
+		final IOException error = new IOException("no program");
+		CpuFarm.Job failing = new CpuFarm.Job(1000, null) {
+			protected Cpu6502 createCpu() throws IOException {
+				throw error;
+			}
+		};
+		CpuFarm.Job ok = new CountJob(1000, null, false);
+		List<CpuFarm.Job> jobs = new ArrayList<CpuFarm.Job>();
+		jobs.add(failing);
+		jobs.add(ok);
+		Map<CpuFarm.Job, CpuFarm.Result> results = results(farm.submit(jobs));
+		farm.shutdown();
+		assertSame(error, results.get(failing).getError());
+		assertNull(results.get(failing).getCpu());
+		assertNull(results.get(failing).getStatus());
+		assertNull(results.get(ok).getError());
+		assertEquals(Cpu6502.StopReason.CYCLE_LIMIT, results.get(ok).getStatus().getReason());
+	}
+
+	@Test
+	public void shutdown() throws InterruptedException {
+		CpuFarm farm = new CpuFarm(1);
+		final CountDownLatch running = new CountDownLatch(1);
+		CpuFarm.ExitCondition started = new CpuFarm.ExitCondition() {
+			public boolean isDone(Cpu6502 cpu) {
+				running.countDown();
+				return false;
+			}
+		};
+		List<CpuFarm.Job> jobs = new ArrayList<CpuFarm.Job>();
+		for(int i = 0; i < 3; i++)
+			jobs.add(new CountJob(Long.MAX_VALUE, started, false));
+		CpuFarm.Results results = farm.submit(jobs);
+		running.await();
+		farm.shutdown();
+		Map<CpuFarm.Job, CpuFarm.Result> byJob = results(results);
+		assertTrue(farm.awaitTermination(10, TimeUnit.SECONDS));
+		//the first job stops at the end of its slice, the others never start
+		assertEquals(Cpu6502.StopReason.STOPPED, byJob.get(jobs.get(0)).getStatus().getReason());
+		assertFalse(byJob.get(jobs.get(0)).isExitConditionMet());
+		for(int i = 1; i < 3; i++) {
+			assertNull(byJob.get(jobs.get(i)).getCpu());
+			assertEquals(Cpu6502.StopReason.STOPPED, byJob.get(jobs.get(i)).getStatus().getReason());
+		}
+	}
+}
@@ -0,0 +1,87 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * A forked cpu and its parent share memory until one of them writes, and
+ * never see each other's writes
+ */
+public class ForkTest {
+
+	private static void separateWrites(Cpu6502.MemoryBackend backend) {
+		String message = backend.toString();
+		Cpu6502 parent = new Cpu6502(0x0400, Cpu6502.Core.INSTRUCTION, backend, Cpu6502.Variant.NMOS);
+		parent.writeByte(0x0010, 1);
+		parent.writeByte(0x4000, 1);
+		parent.writeByte(0x2000, 1);
+		Cpu6502 fork = parent.fork();
+		assertEquals(message, 1, fork.peek(0x0010));
+		assertEquals(message, 1, fork.peek(0x1810));
+		assertEquals(message, 1, fork.peek(0x4000));
+
+		//$0810 and $1010 are mirrors of $0010
+		fork.writeByte(0x0810, 2);
+		parent.writeByte(0x1010, 3);
+		fork.writeByte(0x4000, 2);
+		parent.writeByte(0x2008, 3);
+		for(int addr = 0x0010; addr < 0x2000; addr += 0x0800) {
+			assertEquals(message, 3, parent.peek(addr));
+			assertEquals(message, 2, fork.peek(addr));
+		}
+		assertEquals(message, 1, parent.peek(0x4000));
+		assertEquals(message, 2, fork.peek(0x4000));
+		//I/O registers, which peek() doesn't read
+		assertEquals(message, 3, parent.readByte(0x2000));
+		assertEquals(message, 1, fork.readByte(0x2000));
+	}
+
+	@Test
+	public void byteArray() {
+		separateWrites(Cpu6502.MemoryBackend.BYTE_ARRAY);
+	}
+
+	@Test
+	public void directBuffer() {
+		separateWrites(Cpu6502.MemoryBackend.DIRECT_BUFFER);
+	}
+
+	@Test
+	public void mappedBuffer() {
+		ByteBuffer buffer = ByteBuffer.allocate(0x200);
+		Cpu6502 parent = new Cpu6502(0x0400, Cpu6502.Core.INSTRUCTION);
+		//both pages mapped to the same bytes
+		parent.mapBuffer(0x80, 1, buffer, 0x100);
+		parent.mapBuffer(0x81, 1, buffer, 0x100);
+		parent.writeByte(0x8000, 1);
+		Cpu6502 fork = parent.fork();
+		fork.writeByte(0x8100, 2);
+		assertEquals(1, parent.peek(0x8000));
+		assertEquals(1, parent.peek(0x8100));
+		assertEquals(2, fork.peek(0x8000));
+		assertEquals(2, fork.peek(0x8100));
+		assertEquals(1, buffer.get(0x100));
+	}
+
+	@Test
+	public void forkRunsCode() {
+		for(Cpu6502.Core core : Cpu6502.Core.values()) {
+			Cpu6502 parent = new Cpu6502(0x0400, core);
+			parent.load(0x0400, ByteBuffer.wrap(new byte[] {
+				(byte)0xE6, 0x10,                 // INC $10
+				(byte)0xEE, 0x10, 0x08,           // INC $0810
+				0x4C, 0x00, 0x04                  // JMP $0400
+			}));
+			parent.run(1000);
+			int count = parent.peek(0x10);
+			Cpu6502 fork = parent.fork();
+			fork.run(1000);
+			assertEquals(core.toString(), count, parent.peek(0x10));
+			assertNotEquals(core.toString(), count, fork.peek(0x10));
+			parent.run(1000);
+			assertEquals(core.toString(), fork.peek(0x10), parent.peek(0x10));
+		}
+	}
+}
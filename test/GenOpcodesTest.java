@@ -0,0 +1,45 @@
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+/**
+ * src/Cpu6502Opcodes.java is what tools/GenOpcodes.java generates from the
+ * instruction classes as they are now
+ */
+public class GenOpcodesTest {
+
+	private static String read(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int)in.length()];
+			in.readFully(bytes);
+			return new String(bytes, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the source file, from the project or from the core module
+	 */
+	private static File source(String path) {
+		File file = new File(path);
+		return file.exists() ? file : new File("..", path);
+	}
+
+	@Test
+	public void upToDate() throws Exception {
+		File generated = File.createTempFile("Cpu6502Opcodes", ".java");
+		try {
+			GenOpcodes.main(new String[] { generated.getPath() });
+			assertEquals("src/Cpu6502Opcodes.java is stale: run tools/GenOpcodes.java again",
+					read(source("src/Cpu6502Opcodes.java")), read(generated));
+		} finally {
+			generated.delete();
+		}
+	}
+}
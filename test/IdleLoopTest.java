@@ -0,0 +1,59 @@
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * A jump to itself waits for the interrupts that can still arrive instead
+ * of halting the cpu
+ */
+public class IdleLoopTest {
+
+	private static final int LOOP = 0x0400;
+	private static final int HANDLER = 0x0500;
+	//late enough for the TIERED core to compile the loop
+	private static final long NMI_CYCLE = 20000;
+
+	private static void nmiFromIdleLoop(Cpu6502.Core core) {
+		final Cpu6502 cpu = new Cpu6502(LOOP, core);
+		cpu.load(LOOP, ByteBuffer.wrap(new byte[] { 0x4C, (byte)LOOP, (byte)(LOOP>>8) }));  // JMP LOOP
+		cpu.load(HANDLER, ByteBuffer.wrap(new byte[] { (byte)0xE6, 0x10, 0x40 }));          // INC $10 RTI
+		cpu.load(0xFFFA, ByteBuffer.wrap(new byte[] { (byte)HANDLER, (byte)(HANDLER>>8) }));
+		Scheduler scheduler = new Scheduler();
+		scheduler.schedule(NMI_CYCLE, new Scheduler.Event() {
+			public void fire(Scheduler scheduler, long cycle) {
+				cpu.setNmi(true);
+			}
+		});
+		cpu.setScheduler(scheduler);
+		Cpu6502.RunStatus status = cpu.run(2*NMI_CYCLE);
+		assertEquals(core.toString(), Cpu6502.StopReason.CYCLE_LIMIT, status.getReason());
+		assertEquals(core.toString(), 1, cpu.peek(0x10));
+		assertEquals(core.toString(), LOOP, cpu.getPC());
+	}
+
+	@Test
+	public void instruction() {
+		nmiFromIdleLoop(Cpu6502.Core.INSTRUCTION);
+	}
+
+	@Test
+	public void switchCore() {
+		nmiFromIdleLoop(Cpu6502.Core.SWITCH);
+	}
+
+	@Test
+	public void tiered() {
+		nmiFromIdleLoop(Cpu6502.Core.TIERED);
+	}
+
+	@Test
+	public void haltsWithoutInterrupt() {
+		for(Cpu6502.Core core : Cpu6502.Core.values()) {
+			Cpu6502 cpu = new Cpu6502(LOOP, core);
+			cpu.load(LOOP, ByteBuffer.wrap(new byte[] { 0x4C, (byte)LOOP, (byte)(LOOP>>8) }));
+			assertEquals(core.toString(), Cpu6502.StopReason.TRAPPED, cpu.run(1000).getReason());
+		}
+	}
+}
@@ -0,0 +1,88 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * When interrupts are taken and the state the cpu takes them in
+ */
+public class InterruptTest {
+
+	private static final int START = 0x0400;
+	private static final int HANDLER = 0x0500;
+
+	private static Cpu6502 cpu(Cpu6502.Variant variant, byte[] program, byte[] handler) {
+		Cpu6502 cpu = new Cpu6502(START, Cpu6502.Core.SWITCH, Cpu6502.MemoryBackend.BYTE_ARRAY, variant);
+		cpu.load(START, ByteBuffer.wrap(program));
+		cpu.load(HANDLER, ByteBuffer.wrap(handler));
+		cpu.load(0xFFFE, ByteBuffer.wrap(new byte[] { (byte)HANDLER, (byte)(HANDLER>>8) }));
+		return cpu;
+	}
+
+	/**
+	 * An IRQ raised by a device in the middle of a throttle quantum is taken
+	 * at the end of the scanline, not of the quantum
+	 */
+	@Test
+	public void throttledRunSamplesEveryScanline() {
+		final Cpu6502 cpu = cpu(Cpu6502.Variant.NMOS, new byte[] {
+			(byte)0xA2, 0x00,                       // LDX #0
+			(byte)0xE8,                             // INX
+			(byte)0xD0, 0x03,                       // BNE START+8
+			(byte)0x8D, 0x00, 0x50,                 // STA $5000
+			0x4C, 0x02, 0x04                        // JMP START+2
+		}, new byte[] {
+			(byte)0x8D, 0x00, 0x51,                 // STA $5100
+			(byte)0xE6, 0x10,                       // INC $10
+			0x4C, 0x03, 0x05                        // JMP HANDLER+3
+		});
+		final long[] cycles = new long[2];
+		cpu.mapIo(0x50, 2, new Cpu6502.IoHandler() {
+			public int read(int addr) {
+				return 0;
+			}
+
+			public void write(int addr, int val) {
+				if(addr == 0x5000 && cycles[0] == 0) {
+					cycles[0] = cpu.getCycle();
+					cpu.setIrq(0, true);
+				}
+				else if(addr == 0x5100) {
+					cycles[1] = cpu.getCycle();
+					cpu.setIrq(0, false);
+					cpu.stop();
+				}
+			}
+		});
+		cpu.setClockSpeed(0.001);
+		assertEquals(Cpu6502.StopReason.STOPPED, cpu.run().getReason());
+		assertTrue(cycles[0] > 0);
+		assertTrue("IRQ taken " + (cycles[1]-cycles[0]) + " cycles late",
+				cycles[1]-cycles[0] <= Cpu6502.SCANLINE_CYCLES+16);
+	}
+
+	private static int flagsInHandler(Cpu6502.Variant variant) {
+		Cpu6502 cpu = cpu(variant, new byte[] {
+			(byte)0xF8,                             // SED
+			0x58,                                   // CLI
+			0x4C, 0x02, 0x04                        // JMP *
+		}, new byte[] {
+			0x4C, 0x00, 0x05                        // JMP *
+		});
+		assertEquals(Cpu6502.StopReason.TRAPPED, cpu.run(1000).getReason());
+		cpu.setIrq(0, true);
+		assertEquals(Cpu6502.StopReason.TRAPPED, cpu.run(1000).getReason());
+		assertEquals(HANDLER, cpu.getPC());
+		//P pushed with decimal mode on
+		assertEquals(0x08, cpu.peek(0x0100+cpu.getSP()+1)&0x08);
+		return cpu.getFlags();
+	}
+
+	@Test
+	public void decimalModeInHandler() {
+		assertEquals(0x08, flagsInHandler(Cpu6502.Variant.NMOS)&0x08);
+		assertEquals(0x00, flagsInHandler(Cpu6502.Variant.CMOS_65C02)&0x08);
+	}
+}
@@ -0,0 +1,109 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Smoke test of the native image of Emu6502, run by the native profile
+ * once the image is built (mvn -Pnative package), skipped otherwise
+ */
+public class NativeImageTest {
+
+	private static final String IMAGE = System.getProperty("emu6502.image");
+
+	private final List<File> files = new ArrayList<File>();
+
+	@Before
+	public void imageBuilt() {
+		assumeTrue(IMAGE != null);
+	}
+
+	@After
+	public void deleteFiles() {
+		for(File file : files)
+			file.delete();
+	}
+
+	/**
+	 * @return file of a raw program, loaded at $1000
+	 */
+	private File program(int... bytes) throws IOException {
+		File file = File.createTempFile("emu6502", ".bin");
+		files.add(file);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for(int b : bytes)
+				out.write(b);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * @return what the image wrote to stdout and stderr
+	 */
+	private static String run(String... args) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(IMAGE);
+		command.addAll(Arrays.asList(args));
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		InputStream in = process.getInputStream();
+		byte[] buffer = new byte[4096];
+		for(int n; (n = in.read(buffer)) >= 0;)
+			output.write(buffer, 0, n);
+		assertEquals(0, process.waitFor());
+		return output.toString();
+	}
+
+	private String read(File file) throws IOException {
+		files.add(file);
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int)in.length()];
+			in.readFully(bytes);
+			return new String(bytes, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void unknownOpcode() throws Exception {
+		File program = program(0xEA, 0xEA, 0x02);
+		assertTrue(run(program.getPath()).contains("unknown opcode $02 at $1002"));
+	}
+
+	@Test
+	public void profile() throws Exception {
+		File program = program(0xEA, 0xEA, 0x02);
+		run("-Demu6502.profile", program.getPath());
+		assertTrue(read(new File(program.getPath() + ".hotspots.txt")).contains("$1001"));
+		read(new File(program.getPath() + ".collapsed"));
+	}
+
+	/**
+	 * Registering the metrics MXBean needs the reflection configuration of
+	 * the image
+	 */
+	@Test
+	public void jmx() throws Exception {
+		String output = run("-Demu6502.jmx", program(0x02).getPath());
+		assertFalse(output, output.contains("Exception"));
+	}
+}
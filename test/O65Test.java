@@ -0,0 +1,136 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Relocation of a hand made o65 module
+ */
+public class O65Test {
+
+	private static final int EXT = 0xABCD;
+
+	/**
+	 * Module linked with text at $1000, data at $2000, bss at $3000 and
+	 * zero page at $20, using each kind of segment and relocation:
+	 * <pre>
+	 * $1000  LDA data      WORD data
+	 * $1003  STA zp        LOW zero page
+	 * $1005  LDA #>$1090   HIGH text (main)
+	 * $1007  RTS
+	 * $2000  .word bss     WORD bss
+	 * $2002  .word ext     WORD undefined (table)
+	 * </pre>
+	 */
+	private static ByteBuffer module() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bytes(out, 0x01, 0x00, 'o', '6', '5', 0);
+		words(out, 0x0200, 0x1000, 8, 0x2000, 4, 0x3000, 16, 0x20, 4, 0);
+		bytes(out, 6, 0, 't', '.', 'o', 'b', 0);                    // filename option
+		bytes(out, 0xAD, 0x00, 0x20, 0x85, 0x20, 0xA9, 0x10, 0x60); // text
+		bytes(out, 0x00, 0x30, 0x00, 0x00);                         // data
+		words(out, 1);
+		bytes(out, 'e', 'x', 't', 0);
+		bytes(out, 2, 0x83, 3, 0x25, 2, 0x42, 0x90, 0);             // text relocations
+		bytes(out, 1, 0x84, 2, 0x80, 0, 0, 0);                      // data relocations
+		words(out, 2);
+		bytes(out, 'm', 'a', 'i', 'n', 0, 2);
+		words(out, 0x1005);
+		bytes(out, 't', 'a', 'b', 'l', 'e', 0, 3);
+		words(out, 0x2002);
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+
+	private static void bytes(ByteArrayOutputStream out, int... bytes) {
+		for(int b : bytes)
+			out.write(b);
+	}
+
+	private static void words(ByteArrayOutputStream out, int... words) {
+		for(int w : words) {
+			out.write(w);
+			out.write(w>>8);
+		}
+	}
+
+	private static Map<String, Integer> imports() {
+		return Collections.singletonMap("ext", EXT);
+	}
+
+	private static int[] memory(Cpu6502 cpu, int addr, int length) {
+		int[] bytes = new int[length];
+		for(int i = 0; i < length; i++)
+			bytes[i] = cpu.peek(addr+i);
+		return bytes;
+	}
+
+	@Test
+	public void relocate() {
+		O65.Image image = O65.load(module(), 0x0880, 0x40, imports());
+		assertEquals(0x0880, image.getAddress());
+		assertEquals(0x089C, image.getEnd());
+		assertEquals(0x40, image.getZeroAddress());
+		assertEquals(4, image.getZeroLength());
+		assertEquals(0x0885, image.getEntry());
+		Map<String, Integer> exports = new HashMap<String, Integer>();
+		exports.put("main", 0x0885);
+		exports.put("table", 0x088A);
+		assertEquals(exports, image.getExports());
+		assertArrayEquals(new byte[] { 't', '.', 'o', 'b' }, image.getOption(O65.OPTION_FILENAME));
+
+		Cpu6502 cpu = new Cpu6502(0, Cpu6502.Core.INSTRUCTION);
+		for(int addr = 0x088C; addr < 0x089C; addr++)
+			cpu.writeByte(addr, 0xFF);
+		image.loadInto(cpu);
+		assertArrayEquals(new int[] {
+			0xAD, 0x88, 0x08,     // data moved to $0888
+			0x85, 0x40,           // zero page moved to $40
+			0xA9, 0x09,           // >$1090 moved by -$0780, carrying from its low byte
+			0x60,
+			0x8C, 0x08,           // bss moved to $088C
+			0xCD, 0xAB            // ext
+		}, memory(cpu, 0x0880, 12));
+		//bss cleared
+		assertArrayEquals(new int[16], memory(cpu, 0x088C, 16));
+	}
+
+	@Test
+	public void relocateTwice() {
+		Cpu6502 cpu = new Cpu6502(0, Cpu6502.Core.INSTRUCTION);
+		O65.Image image = O65.load(module(), 0xC000, O65.ZERO_AS_LINKED, imports());
+		assertEquals(0xC005, image.getEntry());
+		assertEquals(0x20, image.getZeroAddress());
+		image.loadInto(cpu);
+		assertArrayEquals(new int[] {
+			0xAD, 0x08, 0xC0, 0x85, 0x20, 0xA9, 0xC0, 0x60, 0x0C, 0xC0, 0xCD, 0xAB
+		}, memory(cpu, 0xC000, 12));
+		//the other address still gets its own image
+		assertEquals(0x0885, O65.load(module(), 0x0880, 0x40, imports()).getEntry());
+	}
+
+	@Test
+	public void cache() {
+		O65.Image image = O65.load(module(), 0x4000, 0x80, imports());
+		assertSame(image, O65.load(module(), 0x4000, 0x80, imports()));
+		assertNotSame(image, O65.load(module(), 0x4100, 0x80, imports()));
+		assertNotSame(image, O65.load(module(), 0x4000, 0x80, Collections.singletonMap("ext", 0x1234)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void undefinedSymbol() {
+		O65.load(module(), 0x0880, 0x40, Collections.<String, Integer>emptyMap());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void doesntFit() {
+		O65.load(module(), 0xFFF0, 0x40, imports());
+	}
+}
@@ -0,0 +1,77 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Profiles taken by each core
+ */
+public class ProfilerTest {
+
+	private static final int START = 0x0400;
+	private static final int CYCLES = 100000;
+
+	/**
+	 * Profile of a loop calling a subroutine which calls another one
+	 */
+	private static Profiler profile(Cpu6502.Core core) {
+		Cpu6502 cpu = new Cpu6502(START, core);
+		cpu.load(START, ByteBuffer.wrap(new byte[] {
+			(byte)0xA2, 0x00,             // LDX #0
+			0x20, 0x00, 0x05,             // JSR $0500
+			(byte)0xE8,                   // INX
+			0x4C, 0x02, 0x04              // JMP START+2
+		}));
+		cpu.load(0x0500, ByteBuffer.wrap(new byte[] {
+			(byte)0xA5, 0x10,             // LDA $10
+			0x18,                         // CLC
+			0x69, 0x01,                   // ADC #1
+			(byte)0x85, 0x10,             // STA $10
+			0x20, 0x10, 0x05,             // JSR $0510
+			0x60,                         // RTS
+			0, 0, 0, 0, 0,
+			(byte)0xE6, 0x11,             // INC $11
+			0x60                          // RTS
+		}));
+		Profiler profiler = new Profiler();
+		cpu.setProfiler(profiler);
+		cpu.run(CYCLES);
+		return profiler;
+	}
+
+	private static String stacks(Profiler profiler) throws IOException {
+		StringBuilder text = new StringBuilder();
+		profiler.writeCollapsedStacks(text);
+		return text.toString();
+	}
+
+	private static String hotspots(Profiler profiler) throws IOException {
+		StringBuilder text = new StringBuilder();
+		profiler.writeHotspots(text, new Cpu6502(0, Cpu6502.Core.INSTRUCTION), 20);
+		return text.toString();
+	}
+
+	@Test
+	public void switchCore() throws IOException {
+		assertEquals(hotspots(profile(Cpu6502.Core.INSTRUCTION)), hotspots(profile(Cpu6502.Core.SWITCH)));
+	}
+
+	@Test
+	public void tieredCore() throws IOException {
+		Profiler expected = profile(Cpu6502.Core.INSTRUCTION);
+		Profiler profiler = profile(Cpu6502.Core.TIERED);
+		assertEquals(expected.getTotalCycles(), profiler.getTotalCycles());
+		//the loop ran as compiled blocks, counted at their entry
+		assertEquals(expected.getExecutions(0x0500), profiler.getExecutions(0x0500));
+		assertTrue(profiler.getExecutions(0x0502)*4 < expected.getExecutions(0x0502));
+		assertTrue(profiler.getCycles(0x0500) > expected.getCycles(0x0500));
+		for(int addr : new int[] { 0x0500, 0x0510 }) {
+			assertEquals(expected.getCalls(addr), profiler.getCalls(addr));
+			assertEquals(expected.getInclusiveCycles(addr), profiler.getInclusiveCycles(addr));
+		}
+		assertEquals(stacks(expected), stacks(profiler));
+	}
+}
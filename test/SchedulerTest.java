@@ -0,0 +1,125 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Order in which scheduled events fire
+ */
+public class SchedulerTest {
+
+	/**
+	 * Event recording its name and deadline when fired
+	 */
+	private static class Recorder implements Scheduler.Event {
+		private final String name;
+		private final List<String> fired;
+
+		Recorder(String name, List<String> fired) {
+			this.name = name;
+			this.fired = fired;
+		}
+
+		public void fire(Scheduler scheduler, long cycle) {
+			fired.add(name + "@" + cycle);
+		}
+	}
+
+	@Test
+	public void heapOrder() {
+		List<Long> cycles = new ArrayList<Long>();
+		for(long cycle = 0; cycle < 1000; cycle++)
+			cycles.add(cycle*7);
+		Collections.shuffle(cycles, new Random(1));
+		Scheduler scheduler = new Scheduler();
+		List<String> fired = new ArrayList<String>();
+		for(long cycle : cycles)
+			scheduler.schedule(cycle, new Recorder("e", fired));
+		assertEquals(1000, scheduler.size());
+		assertEquals(0, scheduler.nextDeadline());
+		scheduler.fireDue(3500);
+		assertEquals(501, fired.size());
+		assertEquals(3507, scheduler.nextDeadline());
+		scheduler.fireDue(Long.MAX_VALUE);
+		assertEquals(1000, fired.size());
+		for(int i = 0; i < fired.size(); i++)
+			assertEquals("e@" + i*7, fired.get(i));
+		assertEquals(Long.MAX_VALUE, scheduler.nextDeadline());
+	}
+
+	@Test
+	public void sameCycleFifo() {
+		Scheduler scheduler = new Scheduler();
+		List<String> fired = new ArrayList<String>();
+		List<String> expected = new ArrayList<String>();
+		for(int i = 0; i < 50; i++) {
+			//interleaved with later events so that the heap moves them around
+			scheduler.schedule(200-i, new Recorder("late" + i, fired));
+			scheduler.schedule(100, new Recorder("e" + i, fired));
+			expected.add("e" + i + "@100");
+		}
+		scheduler.fireDue(100);
+		assertEquals(expected, fired);
+	}
+
+	@Test
+	public void cancelInsideHeap() {
+		Scheduler scheduler = new Scheduler();
+		List<String> fired = new ArrayList<String>();
+		Recorder cancelled = new Recorder("cancelled", fired);
+		Random random = new Random(2);
+		for(int i = 0; i < 100; i++)
+			scheduler.schedule(random.nextInt(1000), new Recorder("e", fired));
+		scheduler.schedule(500, cancelled);
+		scheduler.schedule(20, cancelled);
+		for(int i = 0; i < 100; i++)
+			scheduler.schedule(random.nextInt(1000), new Recorder("e", fired));
+		assertTrue(scheduler.cancel(cancelled));
+		assertFalse(scheduler.cancel(cancelled));
+		assertEquals(200, scheduler.size());
+		scheduler.fireDue(Long.MAX_VALUE);
+		assertEquals(200, fired.size());
+		long last = 0;
+		for(String event : fired) {
+			assertTrue(event.startsWith("e@"));
+			long cycle = Long.parseLong(event.substring(2));
+			assertTrue(cycle >= last);
+			last = cycle;
+		}
+	}
+
+	@Test
+	public void rescheduleWhileFiring() {
+		final Scheduler scheduler = new Scheduler();
+		final List<String> fired = new ArrayList<String>();
+		scheduler.schedule(10, new Scheduler.Event() {
+			public void fire(Scheduler scheduler, long cycle) {
+				fired.add("periodic@" + cycle);
+				if(cycle < 40)
+					scheduler.schedule(cycle+10, this);
+			}
+		});
+		scheduler.schedule(25, new Recorder("once", fired));
+		//scheduled in the past from a callback: fires in the same call
+		scheduler.schedule(30, new Scheduler.Event() {
+			public void fire(Scheduler scheduler, long cycle) {
+				fired.add("chain@" + cycle);
+				scheduler.schedule(cycle-5, new Recorder("late", fired));
+			}
+		});
+		scheduler.fireDue(35);
+		assertEquals(Arrays.asList("periodic@10", "periodic@20", "once@25", "chain@30",
+				"late@25", "periodic@30"), fired);
+		assertEquals(40, scheduler.nextDeadline());
+		scheduler.fireDue(100);
+		assertEquals("periodic@40", fired.get(fired.size()-1));
+		assertEquals(0, scheduler.size());
+	}
+}
@@ -0,0 +1,44 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * State saved and restored by snapshots
+ */
+public class SnapshotTest {
+
+	private static final int NMI_HANDLER = 0x0500;
+	private static final int IRQ_HANDLER = 0x0600;
+
+	private static Cpu6502 cpu() {
+		Cpu6502 cpu = new Cpu6502(0x0400, Cpu6502.Core.INSTRUCTION);
+		cpu.load(NMI_HANDLER, ByteBuffer.wrap(new byte[] { 0x58, 0x4C, 0x01, 0x05 }));  // CLI JMP *
+		cpu.load(IRQ_HANDLER, ByteBuffer.wrap(new byte[] { 0x4C, 0x00, 0x06 }));        // JMP *
+		cpu.load(0xFFFA, ByteBuffer.wrap(new byte[] {
+			(byte)NMI_HANDLER, (byte)(NMI_HANDLER>>8), 0, 0, (byte)IRQ_HANDLER, (byte)(IRQ_HANDLER>>8)
+		}));
+		return cpu;
+	}
+
+	@Test
+	public void interruptLines() {
+		Cpu6502 cpu = cpu();
+		cpu.setNmi(true);
+		cpu.setIrq(3, true);
+		Cpu6502.Snapshot snapshot = cpu.snapshot();
+
+		Cpu6502 restored = cpu();
+		restored.restore(snapshot);
+		assertTrue(restored.isIrqAsserted());
+		//the pending NMI comes first, the IRQ once its handler clears I
+		restored.run(1);
+		assertEquals(NMI_HANDLER, restored.getPC());
+		//still high: no new edge, no second NMI
+		restored.setNmi(true);
+		assertEquals(Cpu6502.StopReason.TRAPPED, restored.run(Cpu6502.FRAME_CYCLES).getReason());
+		assertEquals(IRQ_HANDLER, restored.getPC());
+	}
+}
@@ -0,0 +1,82 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Traces recorded by each core
+ */
+public class TraceTest {
+
+	private static final int START = 0x0400;
+	private static final int CYCLES = 20000;
+
+	/**
+	 * Trace of a loop summing in $10-$11, long enough for the TIERED core
+	 * to compile it
+	 */
+	private static Trace trace(Cpu6502.Core core) {
+		Cpu6502 cpu = new Cpu6502(START, core);
+		cpu.load(START, ByteBuffer.wrap(new byte[] {
+			0x18,                         // CLC
+			(byte)0xA5, 0x10,             // LDA $10
+			0x69, 0x03,                   // ADC #3
+			(byte)0x85, 0x10,             // STA $10
+			(byte)0x90, 0x02,             // BCC +2
+			(byte)0xE6, 0x11,             // INC $11
+			(byte)0xE8,                   // INX
+			0x4C, 0x00, 0x04              // JMP START
+		}));
+		Trace trace = new Trace(100000);
+		cpu.setTrace(trace);
+		cpu.run(CYCLES);
+		return trace;
+	}
+
+	private static String text(Trace trace) throws IOException {
+		StringBuilder text = new StringBuilder();
+		trace.writeText(text, new Cpu6502(0, Cpu6502.Core.INSTRUCTION));
+		return text.toString();
+	}
+
+	@Test
+	public void switchCore() throws IOException {
+		Trace expected = trace(Cpu6502.Core.INSTRUCTION);
+		Trace trace = trace(Cpu6502.Core.SWITCH);
+		assertEquals(expected.size(), trace.size());
+		assertEquals(text(expected), text(trace));
+	}
+
+	@Test
+	public void tieredCore() {
+		Trace expected = trace(Cpu6502.Core.INSTRUCTION);
+		Trace trace = trace(Cpu6502.Core.TIERED);
+		//blocks stand for several instructions: the TIERED core ran them
+		assertTrue(trace.size() < expected.size());
+		int instructions = 0;
+		for(int i = 0; i < trace.size(); i++) {
+			assertEquals(expected.getPC(instructions), trace.getPC(i));
+			assertEquals(expected.getTicks(instructions), trace.getTicks(i));
+			instructions += trace.getCount(i);
+		}
+		assertEquals(expected.size(), instructions);
+	}
+
+	@Test
+	public void ringBuffer() {
+		Trace trace = new Trace(3);
+		for(int pc = 0; pc < 5; pc++)
+			trace.record(pc, 0xEA, 0, 0, 0, 0, 0xFF, 0, pc*2);
+		trace.setLastCount(7);
+		assertEquals(3, trace.size());
+		assertEquals(5, trace.getRecorded());
+		assertEquals(2, trace.getPC(0));
+		assertEquals(4, trace.getPC(2));
+		assertEquals(8, trace.getTicks(2));
+		assertEquals(1, trace.getCount(1));
+		assertEquals(7, trace.getCount(2));
+	}
+}
@@ -0,0 +1,71 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Build time generator of src/Cpu6502Opcodes.java, the opcode registry of
+ * the @InstructionClass classes of Cpu6502. Reflection is only used here,
+ * on the compiled classes, so that cpus build their instructions with
+ * plain constructor calls. Run it again after adding or changing an
+ * instruction class:
+ *
+ *   javac -d out src/*.java tools/GenOpcodes.java
+ *   java -cp out GenOpcodes src/Cpu6502Opcodes.java
+ *
+ * GenOpcodesTest fails the build while the file is out of date.
+ */
+public class GenOpcodes {
+
+	public static void main(String[] args) throws Exception {
+		if(args.length != 1) {
+			System.err.println("usage: GenOpcodes <output file>");
+			System.exit(1);
+		}
+		Cpu6502 cpu = new Cpu6502(0);
+		Map<Integer, String> classes = new TreeMap<Integer, String>();
+		for(Class<?> c : Cpu6502.class.getDeclaredClasses()) {
+			if(!c.isAnnotationPresent(Cpu6502.InstructionClass.class))
+				continue;
+			Constructor<?> ctor = c.getConstructor(Cpu6502.class);
+			int opcode = (Integer)c.getMethod("getOpcode").invoke(ctor.newInstance(cpu));
+			String previous = classes.put(opcode, c.getSimpleName());
+			if(previous != null)
+				throw new IllegalStateException(previous + " and " + c.getSimpleName() + " share opcode " + opcode);
+		}
+		Writer out = new FileWriter(args[0]);
+		try {
+			write(out, classes);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void write(Writer out, Map<Integer, String> classes) throws IOException {
+		out.write("/*\n");
+		out.write(" * Generated by tools/GenOpcodes.java from the @InstructionClass classes\n");
+		out.write(" * of Cpu6502, do not edit: run it again after adding or changing one.\n");
+		out.write(" */\n");
+		out.write("final class Cpu6502Opcodes {\n\n");
+		out.write("\tprivate Cpu6502Opcodes() {\n\t}\n\n");
+		out.write("\t/**\n\t * Opcodes of the NMOS instruction set, by increasing value\n\t */\n");
+		out.write("\tstatic final int[] OPCODES = {");
+		int i = 0;
+		for(int opcode : classes.keySet()) {
+			String separator = i == 0 ? "\n\t\t" : i%12 == 0 ? ",\n\t\t" : ", ";
+			out.write(String.format("%s0x%02X", separator, opcode));
+			i++;
+		}
+		out.write("\n\t};\n\n");
+		out.write("\t/**\n\t * @return instruction of the cpu for opcode, null for an unknown opcode\n\t */\n");
+		out.write("\tstatic Cpu6502.Instruction create(Cpu6502 cpu, int opcode) {\n");
+		out.write("\t\tswitch(opcode) {\n");
+		for(Map.Entry<Integer, String> entry : classes.entrySet()) {
+			out.write(String.format("\t\tcase 0x%02X:\n", entry.getKey()));
+			out.write(String.format("\t\t\treturn cpu.new %s();\n", entry.getValue()));
+		}
+		out.write("\t\tdefault:\n\t\t\treturn null;\n\t\t}\n\t}\n}\n");
+	}
+}